@@ -0,0 +1,126 @@
+/****************************************************************************
+ *
+ *   Copyright (c) 2017 Eike Mansfeld ecm@gmx.de. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ * 3. Neither the name of the copyright holder nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS
+ * OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED
+ * AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ ****************************************************************************/
+
+
+
+package com.comino.realsense.boofcv;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import javax.imageio.ImageIO;
+
+import com.comino.server.mjpeg.impl.MJPEGBroadcaster.JpegFrame;
+import com.comino.server.mjpeg.impl.MJPEGEncoder;
+
+/**
+ * Measures the MJPEG encode time of a synthetic RGB frame with ImageIO.write and with
+ * MJPEGEncoder at several quality and scale settings. Run on the target JRE:
+ * <pre>
+ * java -cp bin:lib/* com.comino.realsense.boofcv.MJPEGEncoderBenchmark [width height frames]
+ * </pre>
+ *
+ * @author Eike Mansfeld
+ */
+public class MJPEGEncoderBenchmark {
+
+	private static final int WARMUP = 200;
+
+	public static void main(String[] args) throws IOException {
+		int width  = args.length > 0 ? Integer.parseInt(args[0]) : 320;
+		int height = args.length > 1 ? Integer.parseInt(args[1]) : 240;
+		int frames = args.length > 2 ? Integer.parseInt(args[2]) : 2000;
+
+		BufferedImage image = createImage(width, height);
+
+		System.out.println("MJPEG encode "+width+"x"+height+", "+frames+" frames, Java "+System.getProperty("java.version"));
+
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		for(int i = 0; i < WARMUP; i++) {
+			bos.reset();
+			ImageIO.write(image, "jpg", bos);
+		}
+		long tms_ns = System.nanoTime();
+		for(int i = 0; i < frames; i++) {
+			bos.reset();
+			ImageIO.write(image, "jpg", bos);
+		}
+		print("ImageIO.write (default q=0.75)", System.nanoTime() - tms_ns, frames, bos.size());
+
+		run(image, 0.75f, 1.0f, frames);
+		run(image, 0.70f, 1.0f, frames);
+		run(image, 0.50f, 1.0f, frames);
+		run(image, 0.70f, 0.5f, frames);
+	}
+
+	private static void run(BufferedImage image, float quality, float scale, int frames) throws IOException {
+		MJPEGEncoder encoder = new MJPEGEncoder(quality, scale);
+		JpegFrame    frame   = new JpegFrame();
+
+		for(int i = 0; i < WARMUP; i++)
+			encoder.encode(image, frame);
+		long tms_ns = System.nanoTime();
+		for(int i = 0; i < frames; i++)
+			encoder.encode(image, frame);
+		print(String.format("encoder q=%.2f%s", quality, scale < 1 ? ", scale "+scale : ""),
+				System.nanoTime() - tms_ns, frames, frame.size());
+	}
+
+	private static void print(String name, long ns, int frames, int bytes) {
+		System.out.println(String.format("  %-32s %6.2f ms %7d bytes", name, ns / 1e6 / frames, bytes));
+	}
+
+	/**
+	 * Gradient with noise and some shapes, roughly as compressible as a camera frame
+	 */
+	private static BufferedImage createImage(int width, int height) {
+		BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR);
+		Random random = new Random(42);
+		for(int y = 0; y < height; y++)
+			for(int x = 0; x < width; x++) {
+				int n = random.nextInt(16);
+				image.setRGB(x, y, new Color((x * 255 / width + n) & 0xFF, (y * 255 / height + n) & 0xFF, 128 + n).getRGB());
+			}
+		Graphics2D ctx = image.createGraphics();
+		ctx.setColor(Color.WHITE);
+		for(int i = 0; i < 20; i++)
+			ctx.drawRect(random.nextInt(width), random.nextInt(height), random.nextInt(width / 4), random.nextInt(height / 4));
+		ctx.drawString("MJPEG benchmark", 10, 20);
+		ctx.dispose();
+		return image;
+	}
+}
@@ -0,0 +1,562 @@
+/****************************************************************************
+ *
+ *   Copyright (c) 2017 Eike Mansfeld ecm@gmx.de. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ * 3. Neither the name of the copyright holder nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS
+ * OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED
+ * AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ ****************************************************************************/
+
+
+
+package com.comino.server.http.impl;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import com.comino.main.MSPConfig;
+import com.comino.server.http.IHttpCachedResource;
+import com.comino.server.http.IHttpResource;
+import com.comino.server.http.IHttpStream;
+import com.comino.server.metrics.Counter;
+import com.comino.server.metrics.Gauge;
+import com.comino.server.metrics.LabeledCounter;
+import com.comino.server.metrics.MetricsRegistry;
+import com.comino.server.mjpeg.impl.MJPEGBroadcaster;
+import com.comino.server.mjpeg.impl.MJPEGBroadcaster.JpegFrame;
+
+/**
+ * Single threaded HTTP server based on a selector. Streams are served as multipart
+ * responses from a broadcaster with non-blocking writes. Each client has a send queue
+ * of depth one: while a frame is still being written, newer frames replace each other
+ * in the broadcaster and only the latest one is sent next, so slow clients drop stale
+ * frames instead of delaying all others.
+ * <p>
+ * A stream may provide several levels, encoded once for all clients on the same level.
+ * Per client, the time to write a frame into a small socket send buffer is measured, and
+ * level and frame interval are adapted to the link, see {@link StreamRateControl}.
+ * <p>
+ * Other resources are served as a single response. Connections are closed after the
+ * response. Cached resources are revalidated by their entity tag and answered with
+ * 304 Not Modified if unchanged; their Age header tells clients how old the body is.
+ *
+ * @author Eike Mansfeld
+ */
+public class HttpStreamServer implements Runnable {
+
+	private static final String BOUNDARY          = "--BoundaryString";
+	private static final int    MAX_REQUEST       = 2048;
+	private static final long   REQUEST_TIMEOUT_MS = 5000;
+	private static final long   SELECT_TIMEOUT_MS  = 250;
+
+	private static final byte[] TRAILER = "\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+
+	private final Map<String,Stream>        streams    = new HashMap<String,Stream>();
+	private final Map<String,IHttpResource> resources  = new HashMap<String,IHttpResource>();
+	private final List<Connection>          connections = new ArrayList<Connection>();
+	private final Map<MJPEGBroadcaster,Boolean> watched = new IdentityHashMap<MJPEGBroadcaster,Boolean>();
+
+	private final int  port;
+	private final int  max_connections;
+	private final long client_timeout_ms;
+	private final int  send_buffer;
+	private final long max_interval_ms;
+
+	private final ByteBuffer discard = ByteBuffer.allocate(512);
+
+	private Selector            selector;
+	private ServerSocketChannel server;
+	private Thread              thread;
+	private volatile boolean    running = false;
+	private long                last_check_ms = 0;
+
+	private final Counter sent     = MetricsRegistry.getInstance().counter("mjpeg_sent_total",
+			"Frames sent to stream clients");
+	private final Counter dropped  = MetricsRegistry.getInstance().counter("mjpeg_dropped_total",
+			"Frames skipped for stream clients busy with a previous frame");
+	private final Counter rejected = MetricsRegistry.getInstance().counter("http_rejected_total",
+			"Connections rejected due to the connection limit");
+	private final Counter timeouts = MetricsRegistry.getInstance().counter("http_timeouts_total",
+			"Connections closed due to an idle or stalled client");
+	private final Gauge   viewers  = MetricsRegistry.getInstance().gauge("mjpeg_clients",
+			"Connected stream clients");
+	private final LabeledCounter adaptations = MetricsRegistry.getInstance().counter("mjpeg_adaptations_total",
+			"Stream level or frame interval changes of clients", null, "direction");
+
+	/**
+	 * Reads stream_max_connections, stream_client_timeout_ms, stream_send_buffer and
+	 * stream_max_interval_ms from the configuration
+	 */
+	public HttpStreamServer(int port, MSPConfig config) {
+		this.port              = port;
+		this.max_connections   = config.getIntProperty("stream_max_connections", "8");
+		this.client_timeout_ms = config.getIntProperty("stream_client_timeout_ms", "5000");
+		this.send_buffer       = config.getIntProperty("stream_send_buffer", "65536");
+		this.max_interval_ms   = config.getIntProperty("stream_max_interval_ms", "1000");
+	}
+
+	/**
+	 * Serves a stream as multipart response. The levels are requested from the stream for
+	 * each client with the query of the request. Must be called before start.
+	 */
+	public void addStream(String path, IHttpStream stream) {
+		streams.put(path, new Stream(stream));
+	}
+
+	/**
+	 * Serves a resource as single response. Must be called before start.
+	 */
+	public void addResource(String path, IHttpResource resource) {
+		resources.put(path, resource);
+	}
+
+	public void start() throws IOException {
+		selector = Selector.open();
+		server   = ServerSocketChannel.open();
+		server.socket().setReuseAddress(true);
+		server.bind(new InetSocketAddress(port));
+		server.configureBlocking(false);
+		server.register(selector, SelectionKey.OP_ACCEPT);
+
+		running = true;
+		thread = new Thread(this, "HTTP-server");
+		thread.setDaemon(true);
+		thread.start();
+		System.out.println("[vis] HTTP server on port "+port+" (max. "+max_connections+" connections)");
+	}
+
+	public void stop() {
+		running = false;
+		if(selector != null)
+			selector.wakeup();
+	}
+
+	@Override
+	public void run() {
+		while(running) {
+			try {
+				selector.select(selectTimeout());
+			} catch (IOException e) {
+				break;
+			}
+
+			Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+			while(it.hasNext()) {
+				SelectionKey key = it.next(); it.remove();
+				if(!key.isValid())
+					continue;
+				if(key.isAcceptable()) {
+					accept();
+					continue;
+				}
+				Connection c = (Connection)key.attachment();
+				try {
+					if(key.isReadable())
+						read(c);
+					if(key.isValid() && key.isWritable())
+						pump(c);
+				} catch(IOException e) {
+					close(c);
+				}
+			}
+
+			// idle stream clients take a newly published frame once they are due
+			for(int i = connections.size()-1; i >= 0; i--) {
+				Connection c = connections.get(i);
+				if(c.stream == null || c.out != null || c.request != null)
+					continue;
+				try {
+					pump(c);
+				} catch(IOException e) {
+					close(c);
+				}
+			}
+
+			checkTimeouts();
+		}
+
+		for(int i = connections.size()-1; i >= 0; i--)
+			close(connections.get(i));
+		try {
+			server.close();
+			selector.close();
+		} catch (IOException e) { }
+	}
+
+	private void accept() {
+		SocketChannel channel;
+		try {
+			channel = server.accept();
+			if(channel == null)
+				return;
+			if(connections.size() >= max_connections) {
+				rejected.inc();
+				channel.configureBlocking(false);
+				channel.write(ByteBuffer.wrap(status("503 Service Unavailable").getBytes(StandardCharsets.US_ASCII)));
+				channel.close();
+				return;
+			}
+			channel.configureBlocking(false);
+			channel.socket().setTcpNoDelay(true);
+			// keep the send buffer small, so frames do not queue up in the socket of a slow link
+			channel.socket().setSendBufferSize(send_buffer);
+			Connection c = new Connection(channel);
+			c.key = channel.register(selector, SelectionKey.OP_READ, c);
+			connections.add(c);
+		} catch(IOException e) { }
+	}
+
+	private void read(Connection c) throws IOException {
+		if(c.request == null || c.out != null) {
+			// request already handled: only detect closed connections
+			discard.clear();
+			if(c.channel.read(discard) < 0)
+				close(c);
+			return;
+		}
+
+		if(c.channel.read(c.request) < 0) {
+			close(c);
+			return;
+		}
+
+		int end = endOfHeader(c.request);
+		if(end < 0) {
+			if(!c.request.hasRemaining())
+				respond(c, status("400 Bad Request"), null);
+			return;
+		}
+
+		String target = parseTarget(c.request, end);
+		String if_none_match = parseHeader(c.request, end, "If-None-Match");
+		c.request = null;
+
+		if(target == null) {
+			respond(c, status("400 Bad Request"), null);
+			return;
+		}
+
+		int q = target.indexOf('?');
+		String path  = q < 0 ? target : target.substring(0, q);
+		String query = q < 0 ? null : target.substring(q + 1);
+
+		Stream stream = streams.get(path);
+		if(stream != null) {
+			MJPEGBroadcaster[] levels = stream.source.getLevels(query);
+			if(levels == null || levels.length == 0) {
+				respond(c, status("400 Bad Request"), null);
+				return;
+			}
+			watch(levels);
+			c.stream = stream;
+			c.levels = levels;
+			c.rate   = new StreamRateControl(levels.length, stream.source.getMinInterval(), max_interval_ms);
+			levels[0].connect();
+			viewers.set(countViewers());
+			respond(c, "HTTP/1.1 200 OK\r\nContent-Type: multipart/x-mixed-replace; boundary="+BOUNDARY+
+					"\r\nCache-Control: no-cache\r\nConnection: close\r\n\r\n", null);
+			return;
+		}
+
+		IHttpResource resource = resources.get(path);
+		if(resource == null) {
+			respond(c, status("404 Not Found"), null);
+			return;
+		}
+
+		byte[] body = resource.get();
+		if(body == null) {
+			respond(c, "HTTP/1.1 503 Service Unavailable\r\nRetry-After: 1\r\nContent-Length: 0\r\nConnection: close\r\n\r\n", null);
+			return;
+		}
+
+		String etag = null; String age = "";
+		if(resource instanceof IHttpCachedResource) {
+			IHttpCachedResource cached = (IHttpCachedResource)resource;
+			etag = cached.getETag();
+			age  = "\r\nAge: "+cached.getAge() / 1000;
+		}
+		if(etag == null) {
+			respond(c, "HTTP/1.1 200 OK\r\nContent-Type: "+resource.getContentType()+"\r\nContent-Length: "+body.length+
+					"\r\nCache-Control: no-cache\r\nConnection: close\r\n\r\n", body);
+		} else if(if_none_match != null && if_none_match.contains(etag)) {
+			respond(c, "HTTP/1.1 304 Not Modified\r\nETag: "+etag+age+"\r\nCache-Control: no-cache\r\nConnection: close\r\n\r\n", null);
+		} else {
+			respond(c, "HTTP/1.1 200 OK\r\nContent-Type: "+resource.getContentType()+"\r\nContent-Length: "+body.length+
+					"\r\nETag: "+etag+age+"\r\nCache-Control: no-cache\r\nConnection: close\r\n\r\n", body);
+		}
+	}
+
+	private void respond(Connection c, String header, byte[] body) throws IOException {
+		ByteBuffer h = ByteBuffer.wrap(header.getBytes(StandardCharsets.US_ASCII));
+		c.out = body != null ? new ByteBuffer[] { h, ByteBuffer.wrap(body) } : new ByteBuffer[] { h };
+		c.close_after_write = c.stream == null;
+		c.last_progress_ms = System.currentTimeMillis();
+		pump(c);
+	}
+
+	/**
+	 * Writes pending data as far as the socket accepts it. Once written, a stream
+	 * connection continues with the latest frame of its broadcaster, if newer than the
+	 * one sent last.
+	 */
+	private void pump(Connection c) throws IOException {
+		while(true) {
+			if(c.out == null && (c.stream == null || !nextFrame(c))) {
+				c.key.interestOps(SelectionKey.OP_READ);
+				return;
+			}
+
+			if(c.channel.write(c.out) > 0)
+				c.last_progress_ms = System.currentTimeMillis();
+
+			if(c.out[c.out.length-1].hasRemaining()) {
+				c.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+				return;
+			}
+
+			c.out = null;
+			if(c.frame != null) {
+				c.levels[c.level].release(c.frame);
+				c.frame = null;
+				sent.inc();
+				adapt(c);
+			}
+
+			if(c.close_after_write) {
+				close(c);
+				return;
+			}
+		}
+	}
+
+	private boolean nextFrame(Connection c) {
+		if(System.currentTimeMillis() < c.rate.getNextStart())
+			return false;
+
+		JpegFrame frame = c.levels[c.level].latest(c.seq);
+		if(frame == null)
+			return false;
+
+		if(c.seq > 0 && frame.getSequence() > c.seq + 1)
+			dropped.add(frame.getSequence() - c.seq - 1);
+		c.seq   = frame.getSequence();
+		c.frame = frame;
+
+		c.header.clear();
+		c.header.put(c.stream.prefix);
+		putDecimal(c.header, frame.size());
+		c.header.put(TRAILER);
+		c.header.flip();
+
+		c.parts[0] = c.header;
+		c.parts[1] = ByteBuffer.wrap(frame.getData(), 0, frame.size());
+		c.parts[2] = ByteBuffer.wrap(TRAILER);
+		c.out = c.parts;
+		c.start_ns = System.nanoTime();
+		return true;
+	}
+
+	private void adapt(Connection c) {
+		long write_ns = System.nanoTime() - c.start_ns;
+		int  bytes    = c.parts[1].limit();
+		int  change   = c.rate.update(System.currentTimeMillis() - write_ns / 1000000L, write_ns / 1000000L, bytes);
+		if(change == 0)
+			return;
+
+		adaptations.inc(change < 0 ? "degrade" : "restore");
+		if(c.rate.getLevel() != c.level) {
+			c.levels[c.level].disconnect();
+			c.level = c.rate.getLevel();
+			c.levels[c.level].connect();
+			// sequence numbers are per level
+			c.seq = 0;
+		}
+		System.out.println("[vis] Stream client "+c.channel.socket().getRemoteSocketAddress()+": level "+c.level+
+				", interval "+c.rate.getInterval()+"ms ("+(int)(c.rate.getThroughput()/1024)+" kB/s, load "+
+				(int)(c.rate.getLoad()*100)+"%)");
+	}
+
+	/**
+	 * @return Time until the next idle client is due to take a frame, at most SELECT_TIMEOUT_MS
+	 */
+	private long selectTimeout() {
+		long now = System.currentTimeMillis(), timeout = SELECT_TIMEOUT_MS;
+		for(Connection c : connections)
+			if(c.rate != null && c.out == null && c.rate.getNextStart() > now)
+				timeout = Math.min(timeout, c.rate.getNextStart() - now);
+		return Math.max(1, timeout);
+	}
+
+	private void checkTimeouts() {
+		long now = System.currentTimeMillis();
+		if(now - last_check_ms < 1000)
+			return;
+		last_check_ms = now;
+
+		for(int i = connections.size()-1; i >= 0; i--) {
+			Connection c = connections.get(i);
+			if((c.request != null && now - c.created_ms > REQUEST_TIMEOUT_MS) ||
+					(c.out != null && now - c.last_progress_ms > client_timeout_ms)) {
+				timeouts.inc();
+				close(c);
+			}
+		}
+	}
+
+	private void close(Connection c) {
+		if(!connections.remove(c))
+			return;
+		if(c.stream != null) {
+			if(c.frame != null)
+				c.levels[c.level].release(c.frame);
+			c.frame = null;
+			c.levels[c.level].disconnect();
+			viewers.set(countViewers());
+		}
+		c.key.cancel();
+		try {
+			c.channel.close();
+		} catch (IOException e) { }
+	}
+
+	private int countViewers() {
+		int count = 0;
+		for(Connection c : connections)
+			if(c.stream != null)
+				count++;
+		return count;
+	}
+
+	private static int endOfHeader(ByteBuffer buffer) {
+		byte[] b = buffer.array();
+		for(int i = 3; i < buffer.position(); i++)
+			if(b[i] == '\n' && b[i-1] == '\r' && b[i-2] == '\n' && b[i-3] == '\r')
+				return i;
+		return -1;
+	}
+
+	/**
+	 * Subscribes to broadcasters not yet known, so published frames wake up the selector
+	 */
+	private void watch(MJPEGBroadcaster[] levels) {
+		for(MJPEGBroadcaster broadcaster : levels) {
+			if(watched.put(broadcaster, Boolean.TRUE) == null)
+				broadcaster.addListener(() -> selector.wakeup());
+		}
+	}
+
+	/**
+	 * @return Path and query of a GET request or null if the request is not supported
+	 */
+	private static String parseTarget(ByteBuffer buffer, int end) {
+		String request = new String(buffer.array(), 0, end, StandardCharsets.US_ASCII);
+		int eol = request.indexOf("\r\n");
+		String[] line = request.substring(0, eol).split(" ");
+		if(line.length != 3 || !line[0].equals("GET"))
+			return null;
+		return line[1];
+	}
+
+	/**
+	 * @return Value of the header field or null if not present
+	 */
+	private static String parseHeader(ByteBuffer buffer, int end, String name) {
+		String request = new String(buffer.array(), 0, end, StandardCharsets.US_ASCII);
+		for(String line : request.split("\r\n")) {
+			int colon = line.indexOf(':');
+			if(colon > 0 && line.substring(0, colon).trim().equalsIgnoreCase(name))
+				return line.substring(colon + 1).trim();
+		}
+		return null;
+	}
+
+	private static String status(String status) {
+		return "HTTP/1.1 "+status+"\r\nContent-Length: 0\r\nConnection: close\r\n\r\n";
+	}
+
+	private static void putDecimal(ByteBuffer buffer, int value) {
+		int div = 1;
+		while(value / div >= 10)
+			div *= 10;
+		for(; div > 0; div /= 10)
+			buffer.put((byte)('0' + (value / div) % 10));
+	}
+
+	private static class Stream {
+
+		final IHttpStream source;
+		final byte[]      prefix;
+
+		Stream(IHttpStream source) {
+			this.source = source;
+			this.prefix = (BOUNDARY+"\r\nContent-Type: "+source.getContentType()+"\r\nContent-Length: ")
+					.getBytes(StandardCharsets.US_ASCII);
+		}
+	}
+
+	private static class Connection {
+
+		final SocketChannel channel;
+		final long          created_ms = System.currentTimeMillis();
+		final ByteBuffer    header     = ByteBuffer.allocate(128);
+		final ByteBuffer[]  parts      = new ByteBuffer[3];
+
+		SelectionKey  key;
+		ByteBuffer    request = ByteBuffer.allocate(MAX_REQUEST);
+
+		// pending output; for streams part header, frame and trailer
+		ByteBuffer[]  out;
+		boolean       close_after_write;
+		long          last_progress_ms;
+
+		Stream        stream;
+		JpegFrame     frame;
+		long          seq;
+		long          start_ns;
+
+		MJPEGBroadcaster[] levels;
+		StreamRateControl  rate;
+		int                level;
+
+		Connection(SocketChannel channel) {
+			this.channel = channel;
+		}
+	}
+}
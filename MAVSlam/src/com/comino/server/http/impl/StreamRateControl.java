@@ -0,0 +1,159 @@
+/****************************************************************************
+ *
+ *   Copyright (c) 2017 Eike Mansfeld ecm@gmx.de. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ * 3. Neither the name of the copyright holder nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS
+ * OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED
+ * AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ ****************************************************************************/
+
+
+
+package com.comino.server.http.impl;
+
+/**
+ * Adapts stream level and frame interval of a single client to its link. Frames are
+ * written into a small socket send buffer, so the time until a frame is accepted by the
+ * socket follows the throughput of the link. The load is the write time relative to the
+ * frame interval; above 1 the client skips frames. If the load is high, the client first
+ * moves to a smaller level, then the frame interval is increased. If the load is low,
+ * the steps are reverted in reverse order. A restore followed by a degrade shortly after
+ * doubles the time until the next restore, so a link at the edge of a level is probed
+ * less and less often.
+ *
+ * @author Eike Mansfeld
+ */
+class StreamRateControl {
+
+	private static final float ALPHA           = 0.2f;
+	private static final float DEGRADE_LOAD    = 0.8f;
+	private static final float RESTORE_LOAD    = 0.25f;
+	private static final long  SETTLE_MS       = 1000;
+	private static final long  RESTORE_HOLD_MS = 2000;
+	private static final long  MAX_HOLD_MS     = 60000;
+
+	private final int  levels;
+	private final long min_interval_ms;
+	private final long max_interval_ms;
+
+	private int   level       = 0;
+	private long  interval_ms;
+	private float load        = 0;
+	private float throughput  = 0;
+
+	private long  last_start_ms    = 0;
+	private long  settle_until_ms  = 0;
+	private long  restore_after_ms = 0;
+	private long  restore_hold_ms  = RESTORE_HOLD_MS;
+	private long  last_restore_ms  = 0;
+
+	/**
+	 * @param levels Number of levels, level 0 has the highest quality
+	 * @param min_interval_ms Frame interval of the source
+	 * @param max_interval_ms Largest frame interval a client is degraded to
+	 */
+	StreamRateControl(int levels, long min_interval_ms, long max_interval_ms) {
+		this.levels          = levels;
+		this.min_interval_ms = min_interval_ms;
+		this.max_interval_ms = Math.max(min_interval_ms, max_interval_ms);
+		this.interval_ms     = min_interval_ms;
+	}
+
+	/**
+	 * Updates the measurement with a completely written frame
+	 *
+	 * @return -1 if the client was degraded, 1 if restored, otherwise 0
+	 */
+	int update(long start_ms, long write_ms, int bytes) {
+		last_start_ms = start_ms;
+
+		load = load * (1 - ALPHA) + ALPHA * (float)write_ms / interval_ms;
+		if(write_ms > 0)
+			throughput = throughput * (1 - ALPHA) + ALPHA * bytes * 1000f / write_ms;
+
+		// let the average follow the last change
+		if(start_ms < settle_until_ms)
+			return 0;
+
+		if(load > DEGRADE_LOAD && (level < levels - 1 || interval_ms < max_interval_ms)) {
+			if(level < levels - 1)
+				level++;
+			else
+				interval_ms = Math.min(interval_ms * 2, max_interval_ms);
+			if(start_ms - last_restore_ms < restore_hold_ms * 2)
+				restore_hold_ms = Math.min(restore_hold_ms * 2, MAX_HOLD_MS);
+			else
+				restore_hold_ms = RESTORE_HOLD_MS;
+			settle_until_ms  = start_ms + SETTLE_MS;
+			restore_after_ms = start_ms + restore_hold_ms;
+			return -1;
+		}
+
+		if(load < RESTORE_LOAD && start_ms >= restore_after_ms && (level > 0 || interval_ms > min_interval_ms)) {
+			if(interval_ms > min_interval_ms)
+				interval_ms = Math.max(interval_ms / 2, min_interval_ms);
+			else
+				level--;
+			last_restore_ms  = start_ms;
+			settle_until_ms  = start_ms + SETTLE_MS;
+			restore_after_ms = start_ms + restore_hold_ms;
+			return 1;
+		}
+		return 0;
+	}
+
+	/**
+	 * @return Earliest start of the next frame, tolerating a jitter of half a source interval
+	 */
+	long getNextStart() {
+		if(interval_ms <= min_interval_ms)
+			return 0;
+		return last_start_ms + interval_ms - min_interval_ms / 2;
+	}
+
+	int getLevel() {
+		return level;
+	}
+
+	long getInterval() {
+		return interval_ms;
+	}
+
+	/**
+	 * @return Write time relative to the frame interval (EWMA)
+	 */
+	float getLoad() {
+		return load;
+	}
+
+	/**
+	 * @return Bytes per second accepted by the socket while writing (EWMA)
+	 */
+	float getThroughput() {
+		return throughput;
+	}
+}
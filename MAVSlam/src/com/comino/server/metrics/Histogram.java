@@ -0,0 +1,99 @@
+/****************************************************************************
+ *
+ *   Copyright (c) 2017 Eike Mansfeld ecm@gmx.de. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ * 3. Neither the name of the copyright holder nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS
+ * OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED
+ * AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ ****************************************************************************/
+
+
+package com.comino.server.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.DoubleAdder;
+
+/**
+ * Histogram with fixed bucket bounds. Observations are lock-free and do not allocate.
+ *
+ * @author Eike Mansfeld
+ */
+public class Histogram implements Metric {
+
+	/** Default bounds for processing times in seconds */
+	public static final double[] TIME_BUCKETS = { 0.001, 0.002, 0.005, 0.01, 0.015, 0.02, 0.03, 0.05, 0.075, 0.1, 0.25, 0.5 };
+
+	private final String          name;
+	private final String          help;
+	private final String          labels;
+	private final double[]        bounds;
+	private final String[]        bucketLabels;
+
+	// per bucket counts, the last bucket counts values above all bounds
+	private final AtomicLongArray counts;
+	private final DoubleAdder     sum = new DoubleAdder();
+
+	Histogram(String name, String help, String labels, double[] bounds) {
+		this.name   = name;
+		this.help   = help;
+		this.labels = labels;
+		this.bounds = bounds.clone();
+		this.counts = new AtomicLongArray(bounds.length + 1);
+
+		this.bucketLabels = new String[bounds.length + 1];
+		for(int i = 0; i <= bounds.length; i++)
+			bucketLabels[i] = MetricsWriter.labels(labels,
+					MetricsWriter.label("le", MetricsWriter.format(i < bounds.length ? bounds[i] : Double.POSITIVE_INFINITY)));
+	}
+
+	public void observe(double value) {
+		int i = 0;
+		while(i < bounds.length && value > bounds[i])
+			i++;
+		counts.incrementAndGet(i);
+		sum.add(value);
+	}
+
+	/**
+	 * Observes a duration given in ns in seconds
+	 */
+	public void observeNanos(long ns) {
+		observe(ns / 1e9);
+	}
+
+	@Override
+	public void write(MetricsWriter out) {
+		out.header(name, "histogram", help);
+		long cumulative = 0;
+		for(int i = 0; i <= bounds.length; i++) {
+			cumulative += counts.get(i);
+			out.sample(name + "_bucket", bucketLabels[i], cumulative);
+		}
+		out.sample(name + "_sum", labels, sum.sum());
+		out.sample(name + "_count", labels, cumulative);
+	}
+}
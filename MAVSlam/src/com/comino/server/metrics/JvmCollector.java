@@ -0,0 +1,115 @@
+/****************************************************************************
+ *
+ *   Copyright (c) 2017 Eike Mansfeld ecm@gmx.de. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ * 3. Neither the name of the copyright holder nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS
+ * OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED
+ * AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ ****************************************************************************/
+
+
+package com.comino.server.metrics;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Collects GC, heap, allocation and thread metrics of the JVM when scraped. The
+ * allocated bytes are accumulated from the per thread deltas between two scrapes,
+ * so the total survives the exit of threads; only bytes allocated by a thread since
+ * the last scrape before it exited are not counted.
+ *
+ * @author Eike Mansfeld
+ */
+public class JvmCollector implements Metric {
+
+	private final List<GarbageCollectorMXBean> gcs     = ManagementFactory.getGarbageCollectorMXBeans();
+	private final MemoryMXBean                 memory  = ManagementFactory.getMemoryMXBean();
+	private final ThreadMXBean                 threads = ManagementFactory.getThreadMXBean();
+
+	// allocated bytes per thread id at the last scrape
+	private final Map<Long,Long> allocated = new HashMap<Long,Long>();
+	private long                 allocated_total = 0;
+
+	@Override
+	public synchronized void write(MetricsWriter out) {
+
+		out.header("jvm_gc_collection_seconds_total", "counter", "Time spent in garbage collection");
+		for(GarbageCollectorMXBean gc : gcs)
+			out.sample("jvm_gc_collection_seconds_total", MetricsWriter.label("gc", gc.getName()), gc.getCollectionTime() / 1000.0);
+
+		out.header("jvm_gc_collections_total", "counter", "Number of garbage collections");
+		for(GarbageCollectorMXBean gc : gcs)
+			out.sample("jvm_gc_collections_total", MetricsWriter.label("gc", gc.getName()), gc.getCollectionCount());
+
+		out.header("jvm_memory_heap_used_bytes", "gauge", "Used heap memory")
+		   .sample("jvm_memory_heap_used_bytes", null, memory.getHeapMemoryUsage().getUsed());
+		out.header("jvm_memory_heap_max_bytes", "gauge", "Maximum heap memory")
+		   .sample("jvm_memory_heap_max_bytes", null, memory.getHeapMemoryUsage().getMax());
+
+		out.header("jvm_threads", "gauge", "Number of live threads")
+		   .sample("jvm_threads", null, threads.getThreadCount());
+
+		if(threads instanceof com.sun.management.ThreadMXBean) {
+			com.sun.management.ThreadMXBean t = (com.sun.management.ThreadMXBean) threads;
+			if(t.isThreadAllocatedMemorySupported() && t.isThreadAllocatedMemoryEnabled()) {
+				out.header("jvm_allocated_bytes_total", "counter", "Bytes allocated")
+				   .sample("jvm_allocated_bytes_total", null, allocated(t));
+			}
+		}
+	}
+
+	private long allocated(com.sun.management.ThreadMXBean t) {
+		long[] ids   = t.getAllThreadIds();
+		long[] bytes = t.getThreadAllocatedBytes(ids);
+		int live = 0;
+		for(int i = 0; i < ids.length; i++) {
+			if(bytes[i] < 0)
+				continue;
+			live++;
+			Long last = allocated.put(ids[i], bytes[i]);
+			allocated_total += bytes[i] - (last != null ? last : 0);
+		}
+		// forget threads which exited; their bytes stay in the total
+		if(allocated.size() > live) {
+			Map<Long,Boolean> alive = new HashMap<Long,Boolean>(ids.length * 2);
+			for(int i = 0; i < ids.length; i++)
+				if(bytes[i] >= 0)
+					alive.put(ids[i], Boolean.TRUE);
+			for(Iterator<Long> i = allocated.keySet().iterator(); i.hasNext();)
+				if(!alive.containsKey(i.next()))
+					i.remove();
+		}
+		return allocated_total;
+	}
+}
@@ -0,0 +1,81 @@
+/****************************************************************************
+ *
+ *   Copyright (c) 2017 Eike Mansfeld ecm@gmx.de. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ * 3. Neither the name of the copyright holder nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS
+ * OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED
+ * AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ ****************************************************************************/
+
+
+package com.comino.server.metrics;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counter with one label whose values are not known in advance, e.g. reset reasons.
+ * The first increment of a label value allocates; later increments are lock-free.
+ *
+ * @author Eike Mansfeld
+ */
+public class LabeledCounter implements Metric {
+
+	private final String name;
+	private final String help;
+	private final String labels;
+	private final String label;
+
+	private final Map<String,LongAdder> values = new ConcurrentHashMap<String,LongAdder>();
+
+	LabeledCounter(String name, String help, String labels, String label) {
+		this.name   = name;
+		this.help   = help;
+		this.labels = labels;
+		this.label  = label;
+	}
+
+	public void inc(String value) {
+		LongAdder a = values.get(value);
+		if(a == null)
+			a = values.computeIfAbsent(value, v -> new LongAdder());
+		a.increment();
+	}
+
+	public long get(String value) {
+		LongAdder a = values.get(value);
+		return a == null ? 0 : a.sum();
+	}
+
+	@Override
+	public void write(MetricsWriter out) {
+		out.header(name, "counter", help);
+		for(Map.Entry<String,LongAdder> e : values.entrySet())
+			out.sample(name, MetricsWriter.labels(labels, MetricsWriter.label(label, e.getKey())), e.getValue().sum());
+	}
+}
@@ -0,0 +1,123 @@
+/****************************************************************************
+ *
+ *   Copyright (c) 2017 Eike Mansfeld ecm@gmx.de. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ * 3. Neither the name of the copyright holder nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS
+ * OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED
+ * AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ ****************************************************************************/
+
+
+package com.comino.server.metrics;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Registry of all metrics of the process. Metrics are created once, usually in constructors,
+ * and updated lock-free in the processing threads. Collectors are called when the metrics
+ * are scraped, so values already counted elsewhere do not need to be updated twice.
+ *
+ * Creating a metric with the name and labels of an existing one returns the existing metric.
+ *
+ * @author Eike Mansfeld
+ */
+public class MetricsRegistry {
+
+	private static MetricsRegistry instance = null;
+
+	// sorted by key, so that all samples of a metric name are written as one group
+	private final Map<String,Metric> metrics = new TreeMap<String,Metric>();
+
+	public static synchronized MetricsRegistry getInstance() {
+		if(instance == null)
+			instance = new MetricsRegistry();
+		return instance;
+	}
+
+	private MetricsRegistry() { }
+
+	public Counter counter(String name, String help) {
+		return counter(name, help, null);
+	}
+
+	public synchronized Counter counter(String name, String help, String labels) {
+		return (Counter) metrics.computeIfAbsent(key(name, labels), k -> new Counter(name, help, labels));
+	}
+
+	/**
+	 * @param label Name of the label whose values are set when incrementing
+	 */
+	public synchronized LabeledCounter counter(String name, String help, String labels, String label) {
+		return (LabeledCounter) metrics.computeIfAbsent(key(name, labels),
+				k -> new LabeledCounter(name, help, labels, label));
+	}
+
+	public Gauge gauge(String name, String help) {
+		return gauge(name, help, null);
+	}
+
+	public synchronized Gauge gauge(String name, String help, String labels) {
+		return (Gauge) metrics.computeIfAbsent(key(name, labels), k -> new Gauge(name, help, labels));
+	}
+
+	public Histogram histogram(String name, String help, String labels) {
+		return histogram(name, help, labels, Histogram.TIME_BUCKETS);
+	}
+
+	public synchronized Histogram histogram(String name, String help, String labels, double[] bounds) {
+		return (Histogram) metrics.computeIfAbsent(key(name, labels), k -> new Histogram(name, help, labels, bounds));
+	}
+
+	/**
+	 * Registers a collector writing its own samples, replacing a collector with the same name
+	 */
+	public synchronized void register(String name, Metric collector) {
+		metrics.put(key(name, null), collector);
+	}
+
+	/**
+	 * @return All metrics in the text exposition format
+	 */
+	public String scrape() {
+		List<Metric> list;
+		synchronized(this) {
+			list = new ArrayList<Metric>(metrics.values());
+		}
+		StringBuilder b = new StringBuilder(4096);
+		MetricsWriter out = new MetricsWriter(b);
+		for(Metric m : list)
+			m.write(out);
+		return b.toString();
+	}
+
+	private static String key(String name, String labels) {
+		return labels == null ? name + "{" : name + "{" + labels;
+	}
+}
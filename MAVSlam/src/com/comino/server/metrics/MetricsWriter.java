@@ -0,0 +1,114 @@
+/****************************************************************************
+ *
+ *   Copyright (c) 2017 Eike Mansfeld ecm@gmx.de. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ * 3. Neither the name of the copyright holder nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS
+ * OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED
+ * AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ ****************************************************************************/
+
+
+package com.comino.server.metrics;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Writes samples in the Prometheus text exposition format. HELP and TYPE lines are
+ * written once per metric name.
+ *
+ * @author Eike Mansfeld
+ */
+public class MetricsWriter {
+
+	private final StringBuilder out;
+	private final Set<String>   names = new HashSet<String>();
+
+	public MetricsWriter(StringBuilder out) {
+		this.out = out;
+	}
+
+	/**
+	 * @param type counter, gauge or histogram
+	 */
+	public MetricsWriter header(String name, String type, String help) {
+		if(names.add(name)) {
+			out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+			out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+		}
+		return this;
+	}
+
+	/**
+	 * @param labels Formatted labels without braces, e.g. <code>stage="odometry"</code>, or null
+	 */
+	public MetricsWriter sample(String name, String labels, double value) {
+		out.append(name);
+		if(labels != null && labels.length() > 0)
+			out.append('{').append(labels).append('}');
+		out.append(' ').append(format(value)).append('\n');
+		return this;
+	}
+
+	public MetricsWriter sample(String name, String labels, long value) {
+		out.append(name);
+		if(labels != null && labels.length() > 0)
+			out.append('{').append(labels).append('}');
+		out.append(' ').append(value).append('\n');
+		return this;
+	}
+
+	public static String format(double value) {
+		if(value == Double.POSITIVE_INFINITY)
+			return "+Inf";
+		if(value == Double.NEGATIVE_INFINITY)
+			return "-Inf";
+		return Double.toString(value);
+	}
+
+	/**
+	 * @return Label pair with the value escaped
+	 */
+	public static String label(String name, String value) {
+		return name + "=\"" + value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n") + "\"";
+	}
+
+	/**
+	 * Joins formatted label pairs; null or empty pairs are skipped
+	 */
+	public static String labels(String... pairs) {
+		StringBuilder b = new StringBuilder();
+		for(String p : pairs) {
+			if(p == null || p.length() == 0)
+				continue;
+			if(b.length() > 0)
+				b.append(',');
+			b.append(p);
+		}
+		return b.toString();
+	}
+}
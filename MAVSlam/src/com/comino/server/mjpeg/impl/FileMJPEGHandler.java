@@ -0,0 +1,283 @@
+/****************************************************************************
+ *
+ *   Copyright (c) 2017 Eike Mansfeld ecm@gmx.de. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ * 3. Neither the name of the copyright holder nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS
+ * OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED
+ * AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ ****************************************************************************/
+
+
+
+package com.comino.server.mjpeg.impl;
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import com.comino.main.MSPConfig;
+import com.comino.mav.control.IMAVMSPController;
+import com.comino.msp.model.DataModel;
+import com.comino.msp.model.segment.Status;
+import com.comino.realsense.boofcv.RealSenseInfo;
+import com.comino.server.metrics.Counter;
+import com.comino.server.metrics.MetricsRegistry;
+import com.comino.server.mjpeg.IMJPEGOverlayListener;
+import com.comino.server.mjpeg.IVisualStreamHandler;
+import com.comino.server.mjpeg.impl.MJPEGBroadcaster.JpegFrame;
+
+import boofcv.struct.image.GrayU8;
+import boofcv.struct.image.ImageBase;
+import boofcv.struct.image.Planar;
+
+/**
+ * Records the overlayed stream into MJPEG AVI files while the vehicle is armed. Frames
+ * are copied into a small pool of preallocated images; if the recorder thread falls
+ * behind, frames are dropped, so addToStream never blocks the camera thread. Conversion,
+ * overlays, encoding and file IO run on the recorder thread. A new file is started on
+ * each arming and whenever a file exceeds stream_record_max_mb, limited to 1000 MB by the
+ * AVI writer.
+ * <p>
+ * Files play at the nominal rate of stream_record_interval_ms. Each frame is placed by
+ * its capture time; intervals without a frame, e.g. after drops, repeat the previous
+ * frame, so playback runs in real time.
+ *
+ * @author Eike Mansfeld
+ */
+public class FileMJPEGHandler<T> implements IVisualStreamHandler<T> {
+
+	private static final int  QUEUE_SIZE = 4;
+	private static final long IDLE_MS    = 250;
+
+	private final List<IMJPEGOverlayListener> listeners = new ArrayList<IMJPEGOverlayListener>();
+
+	private final BlockingQueue<Slot> free   = new ArrayBlockingQueue<Slot>(QUEUE_SIZE);
+	private final BlockingQueue<Slot> filled = new ArrayBlockingQueue<Slot>(QUEUE_SIZE);
+
+	private final BufferedImage     image;
+	private final Graphics2D        ctx;
+	private final MJPEGEncoder      jpeg;
+	private final MJPEGImageConvert convert = new MJPEGImageConvert();
+	private final JpegFrame         frame   = new JpegFrame();
+
+	private final File   directory;
+	private final long   interval_ms;
+	private final long   max_bytes;
+
+	private volatile boolean recording = false;
+	private volatile boolean running   = true;
+	private volatile int     session   = 0;
+
+	private long           last_image_tms = 0;
+	private MJPEGAviWriter writer         = null;
+	private int            writer_session = 0;
+	private long           writer_start_us = 0;
+	private final Thread   recorder;
+
+	private final Counter recorded = MetricsRegistry.getInstance().counter("mjpeg_record_frames_total",
+			"Frames written to video files");
+	private final Counter dropped  = MetricsRegistry.getInstance().counter("mjpeg_record_dropped_total",
+			"Frames dropped as the recorder was busy");
+
+	/**
+	 * Reads stream_record_path, stream_record_interval_ms, stream_record_quality and
+	 * stream_record_max_mb. Recording follows the armed state of the vehicle.
+	 */
+	public FileMJPEGHandler(RealSenseInfo info, IMAVMSPController control, MSPConfig config) {
+		this.image = new BufferedImage(info.width, info.height, BufferedImage.TYPE_3BYTE_BGR);
+		this.ctx   = image.createGraphics();
+
+		this.directory   = new File(config.getProperty("stream_record_path", "video"));
+		this.interval_ms = Math.max(1, config.getIntProperty("stream_record_interval_ms", "100"));
+		this.max_bytes   = Math.min(config.getIntProperty("stream_record_max_mb", "256") * 1024L * 1024L, MJPEGAviWriter.MAX_SIZE);
+		this.jpeg        = new MJPEGEncoder(config.getFloatProperty("stream_record_quality", "0.6"), 1);
+
+		for(int i = 0; i < QUEUE_SIZE; i++)
+			free.add(new Slot());
+
+		System.out.println("[vis] Recording armed flights to "+directory.getAbsolutePath()+" every "+interval_ms+"ms");
+
+		control.getStatusManager().addListener(Status.MSP_ARMED, (o,n) -> {
+			if(n.isStatus(Status.MSP_ARMED))
+				start();
+			else
+				stop();
+		});
+
+		this.recorder = new Thread(() -> record(), "MJPEG-recorder");
+		this.recorder.setDaemon(true);
+		this.recorder.start();
+	}
+
+	/**
+	 * Starts recording into a new file
+	 */
+	public void start() {
+		session++;
+		recording = true;
+	}
+
+	/**
+	 * Stops recording; the file is closed once all queued frames are written
+	 */
+	public void stop() {
+		recording = false;
+	}
+
+	/**
+	 * Stops recording and waits until the current file is closed
+	 */
+	public void close() {
+		recording = false;
+		running   = false;
+		try {
+			recorder.join(2000);
+		} catch (InterruptedException e) { }
+	}
+
+	public boolean isRecording() {
+		return recording;
+	}
+
+	@Override
+	public void registerOverlayListener(IMJPEGOverlayListener listener) {
+		this.listeners.add(listener);
+	}
+
+	@Override
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	public void addToStream(T input, DataModel model, long tms_us) {
+
+		if(!recording || (System.currentTimeMillis()-last_image_tms) < interval_ms || !(input instanceof ImageBase))
+			return;
+
+		last_image_tms = System.currentTimeMillis();
+
+		Slot slot = free.poll();
+		if(slot == null) {
+			dropped.inc();
+			return;
+		}
+
+		ImageBase in = (ImageBase)input;
+		if(slot.image == null || slot.image.getClass() != in.getClass())
+			slot.image = in.createSameShape();
+		slot.image.setTo(in);
+		slot.tms_us = tms_us;
+		filled.add(slot);
+	}
+
+	@SuppressWarnings("unchecked")
+	private void record() {
+		while(running || !filled.isEmpty()) {
+			try {
+				Slot slot = filled.poll(IDLE_MS, TimeUnit.MILLISECONDS);
+				if(slot == null) {
+					if(!recording)
+						closeFile();
+					continue;
+				}
+
+				long tms_us = slot.tms_us;
+				try {
+					if(slot.image instanceof Planar)
+						convert.planarToBGR((Planar<GrayU8>)slot.image, 1, image);
+					else if(slot.image instanceof GrayU8)
+						convert.grayToBGR((GrayU8)slot.image, 1, image);
+				} finally {
+					free.add(slot);
+				}
+
+				for(IMJPEGOverlayListener listener : listeners)
+					listener.processOverlay(ctx);
+
+				jpeg.encode(image, frame);
+
+				if(writer != null && (writer.size() + frame.size() > max_bytes || writer_session != session))
+					closeFile();
+				if(writer == null) {
+					openFile();
+					writer_start_us = tms_us;
+				}
+
+				// place the frame at its time; a frame within the interval of the previous one is dropped
+				long n = Math.round((tms_us - writer_start_us) / (interval_ms * 1000.0));
+				if(n < writer.getFrames())
+					continue;
+				while(writer.getFrames() < n)
+					writer.skip();
+				writer.write(frame);
+				recorded.inc();
+
+			} catch(InterruptedException e) {
+				break;
+			} catch(IOException e) {
+				System.err.println("[vis] Recording failed: "+e.getMessage());
+				recording = false;
+				closeFile();
+			} catch(Exception e) { }
+		}
+		closeFile();
+	}
+
+	private void openFile() throws IOException {
+		if(!directory.exists() && !directory.mkdirs())
+			throw new IOException("Cannot create "+directory);
+		File file = new File(directory, "msp_"+new SimpleDateFormat("yyyyMMdd_HHmmss").format(new Date())+".avi");
+		for(int i = 1; file.exists(); i++)
+			file = new File(directory, "msp_"+new SimpleDateFormat("yyyyMMdd_HHmmss").format(new Date())+"_"+i+".avi");
+		writer = new MJPEGAviWriter(file, image.getWidth(), image.getHeight(), (int)(interval_ms * 1000));
+		writer_session = session;
+		System.out.println("[vis] Recording to "+file.getName());
+	}
+
+	private void closeFile() {
+		if(writer == null)
+			return;
+		try {
+			writer.close();
+			System.out.println("[vis] Recording closed: "+writer.getFrames()+" frames, "+(writer.size()/1024)+" kB");
+		} catch(IOException e) {
+			System.err.println("[vis] Recording not closed: "+e.getMessage());
+		}
+		writer = null;
+	}
+
+	private static class Slot {
+		@SuppressWarnings("rawtypes")
+		ImageBase image;
+		long      tms_us;
+	}
+}
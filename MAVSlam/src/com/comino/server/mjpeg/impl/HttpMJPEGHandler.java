@@ -32,89 +32,200 @@
  ****************************************************************************/
 
 
+
 package com.comino.server.mjpeg.impl;
 
 import java.awt.Graphics2D;
 import java.awt.image.BufferedImage;
-import java.io.BufferedOutputStream;
 import java.io.IOException;
-import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
 
 import javax.imageio.ImageIO;
 
+import com.comino.main.MSPConfig;
 import com.comino.msp.model.DataModel;
 import com.comino.realsense.boofcv.RealSenseInfo;
+import com.comino.server.http.IHttpCachedResource;
+import com.comino.server.http.IHttpStream;
+import com.comino.server.metrics.Counter;
+import com.comino.server.metrics.Histogram;
+import com.comino.server.metrics.MetricsRegistry;
+import com.comino.server.metrics.MetricsWriter;
 import com.comino.server.mjpeg.IMJPEGOverlayListener;
 import com.comino.server.mjpeg.IVisualStreamHandler;
-import com.sun.net.httpserver.HttpExchange;
-import com.sun.net.httpserver.HttpHandler;
+import com.comino.server.mjpeg.impl.MJPEGBroadcaster.JpegFrame;
 
-import boofcv.io.image.ConvertBufferedImage;
+import boofcv.struct.image.GrayU16;
 import boofcv.struct.image.GrayU8;
+import boofcv.struct.image.ImageBase;
 import boofcv.struct.image.Planar;
 
-public class HttpMJPEGHandler<T> implements HttpHandler, IVisualStreamHandler<T>  {
-
-	private static final int MAX_VIDEO_RATE_MS = 40;
+/**
+ * MJPEG stream handler. Frames are converted, overlayed and encoded once by a single
+ * encoder thread and published to a broadcaster; the HTTP server only writes the latest
+ * encoded frame to its clients, so the CPU load does not depend on the number of clients.
+ * <p>
+ * Input images are copied into one of three slots used as triple buffer: the capture
+ * thread fills its own slot and exchanges it with the latest one, the encoder exchanges
+ * its slot with the latest one and parks while no newer frame is published. Neither
+ * thread blocks, and a frame is never modified while it is encoded. addToStream must
+ * be called by a single thread.
+ * <p>
+ * Clients select a variant by the query, e.g. <code>/mjpeg?mode=gray&amp;scale=2</code>.
+ * The mode is color or gray, the scale an integer downsample factor of 1, 2 or 4. Each
+ * variant is converted with a box downsample directly from the input image and is
+ * provided in levels of decreasing quality and scale. Variants and levels are only
+ * encoded while clients are on them. No frames are encoded without clients.
+ * <p>
+ * Depth images (GrayU16) are colorized by a lookup table for the range given by
+ * stream_depth_min and stream_depth_max in raw depth units.
+ * <p>
+ * A snapshot of the default variant can be served from a cache, see {@link #createSnapshot}.
+ */
+public class HttpMJPEGHandler<T> implements IVisualStreamHandler<T>, IHttpStream  {
+
+	public static final int  MAX_VIDEO_RATE_MS = 40;
+
+	private static final int MAX_FACTOR = 4;
 
 	private List<IMJPEGOverlayListener> listeners = null;
-	private BufferedImage image = null;
 	private DataModel model = null;
-	private Graphics2D ctx;
 
-	private T input_image;
+	// triple buffer: slot of the capture thread, latest published slot, slot of the encoder
+	private Slot                        back   = new Slot();
+	private final AtomicReference<Slot> latest = new AtomicReference<Slot>(new Slot());
+	private final AtomicLong            published = new AtomicLong();
+	private long                        produced  = 0;
 
 	private long last_image_tms = 0;
 
-	public HttpMJPEGHandler(RealSenseInfo info, DataModel model) {
-		this.model = model;
-		this.listeners = new ArrayList<IMJPEGOverlayListener>();
-		this.image = new BufferedImage(info.width, info.height, BufferedImage.TYPE_3BYTE_BGR);
-		this.ctx = image.createGraphics();
+	private final List<Variant> variants = new CopyOnWriteArrayList<Variant>();
+	private final int           width;
+	private final int           height;
+	private final float         quality;
+	private final float         scale;
+	private final float         min_quality;
+	private final float         min_scale;
+	private final int           depth_min;
+	private final int           depth_max;
+	private final long          snapshot_max_age_ms;
+	private final String        name;
+	private final Thread        encoder;
 
-		ImageIO.setUseCache(false);
+	private MJPEGDepthColorMap  colormap = null;
 
-	}
+	private volatile MJPEGSnapshot snapshot = null;
+	private long                   seq      = 0;
 
-	@Override @SuppressWarnings("unchecked")
-	public void handle(HttpExchange he) throws IOException {
+	private final Histogram encodeTime;
+	private final Counter   frames;
 
-		he.getResponseHeaders().add("content-type","multipart/x-mixed-replace; boundary=--BoundaryString");
-		he.sendResponseHeaders(200, 0);
-		OutputStream os = new BufferedOutputStream(he.getResponseBody());
-		while(true) {
-			os.write(("--BoundaryString\r\nContent-type:image/jpeg content-length:1\r\n\r\n").getBytes());
+	public HttpMJPEGHandler(RealSenseInfo info, DataModel model) {
+		this(info, model, null);
+	}
 
-			try {
+	public HttpMJPEGHandler(RealSenseInfo info, DataModel model, MSPConfig config) {
+		this(info, model, config, "rgb");
+	}
 
-				synchronized(this) {
+	/**
+	 * @param config Provides stream_quality, stream_scale and the lower bounds of the levels
+	 *        stream_min_quality and stream_min_scale, stream_snapshot_max_age_ms or null
+	 *        for defaults
+	 * @param name Name of the stream used in logs and metrics
+	 */
+	public HttpMJPEGHandler(RealSenseInfo info, DataModel model, MSPConfig config, String name) {
+		this.model = model;
+		this.name  = name;
+		this.listeners = new ArrayList<IMJPEGOverlayListener>();
+		this.width  = info.width;
+		this.height = info.height;
 
-					if(input_image==null)
-						wait();
-				}
+		ImageIO.setUseCache(false);
 
-				if(input_image instanceof Planar) {
-					ConvertBufferedImage.convertTo_U8((Planar<GrayU8>)input_image, image, true);
-				}
-				else if(input_image instanceof GrayU8)
-					ConvertBufferedImage.convertTo((GrayU8)input_image, image, true);
+		this.quality     = config != null ? config.getFloatProperty("stream_quality", "0.7") : 0.7f;
+		this.scale       = config != null ? config.getFloatProperty("stream_scale", "1.0") : 1.0f;
+		this.min_quality = config != null ? config.getFloatProperty("stream_min_quality", "0.4") : 0.4f;
+		this.min_scale   = config != null ? config.getFloatProperty("stream_min_scale", "0.5") : 0.5f;
+		this.depth_min   = config != null ? config.getIntProperty("stream_depth_min", "200") : 200;
+		this.depth_max   = config != null ? config.getIntProperty("stream_depth_max", "5000") : 5000;
+		this.snapshot_max_age_ms = config != null ? config.getIntProperty("stream_snapshot_max_age_ms", "1000") : 1000;
+
+		String labels = MetricsWriter.label("stream", name);
+		this.encodeTime = MetricsRegistry.getInstance().histogram("mjpeg_encode_seconds",
+				"Time to convert, overlay and encode a frame", labels);
+		this.frames     = MetricsRegistry.getInstance().counter("mjpeg_frames_total",
+				"Frames encoded for MJPEG clients", labels);
+
+		getLevels(null);
+
+		this.encoder = new Thread(() -> encode(), "MJPEG-encoder-"+name);
+		this.encoder.setDaemon(true);
+		this.encoder.start();
+	}
 
-				if(listeners.size()>0) {
-					for(IMJPEGOverlayListener listener : listeners)
-						listener.processOverlay(ctx);
+	/**
+	 * Returns the levels of the variant selected by mode and scale of the query, creating
+	 * the variant on first use
+	 */
+	@Override
+	public MJPEGBroadcaster[] getLevels(String query) {
+		boolean gray = false; int factor = 1;
+		if(query != null) {
+			for(String param : query.split("&")) {
+				String[] kv = param.split("=", 2);
+				if(kv.length != 2)
+					return null;
+				if(kv[0].equals("mode")) {
+					if(!kv[1].equals("gray") && !kv[1].equals("color"))
+						return null;
+					gray = kv[1].equals("gray");
+				} else if(kv[0].equals("scale")) {
+					try {
+						factor = Integer.parseInt(kv[1]);
+					} catch(NumberFormatException e) {
+						return null;
+					}
+					if(factor < 1 || factor > MAX_FACTOR || (factor & (factor - 1)) != 0)
+						return null;
 				}
+			}
+		}
 
-				ImageIO.write(image, "jpg", os );
-				os.write("\r\n\r\n".getBytes());
-
+		synchronized(variants) {
+			for(Variant v : variants)
+				if(v.gray == gray && v.factor == factor)
+					return v.levels;
+			Variant v = new Variant(gray, factor);
+			variants.add(v);
+			return v.levels;
+		}
+	}
 
+	/**
+	 * Creates a still image of the default variant with overlays, refreshed at most once
+	 * per stream_snapshot_max_age_ms and only while it is polled
+	 *
+	 * @param format ImageIO format name; jpeg reuses the frames encoded for stream clients
+	 */
+	public IHttpCachedResource createSnapshot(String format) {
+		snapshot = new MJPEGSnapshot(format, snapshot_max_age_ms);
+		return snapshot;
+	}
 
-				input_image = null;
+	@Override
+	public String getContentType() {
+		return "image/jpeg";
+	}
 
-			} catch (Exception e) { }
-		}
+	@Override
+	public long getMinInterval() {
+		return MAX_VIDEO_RATE_MS;
 	}
 
 	@Override
@@ -123,17 +234,194 @@ public class HttpMJPEGHandler<T> implements HttpHandler, IVisualStreamHandler<T>
 	}
 
 	@Override
+	@SuppressWarnings({ "unchecked", "rawtypes" })
 	public  void addToStream(T input, DataModel model, long tms_us) {
 
-		if((System.currentTimeMillis()-last_image_tms)<MAX_VIDEO_RATE_MS)
+		MJPEGSnapshot s = snapshot;
+		if(s != null)
+			s.frame();
+
+		if((!hasClients() && !isSnapshotRequested()) || (System.currentTimeMillis()-last_image_tms)<MAX_VIDEO_RATE_MS
+				|| !(input instanceof ImageBase))
 			return;
 
 		last_image_tms = System.currentTimeMillis();
 
-		synchronized(this) {
-			input_image = input;
-			notify();
+		ImageBase in = (ImageBase)input;
+		if(back.image == null || back.image.getClass() != in.getClass())
+			back.image = in.createSameShape();
+		back.image.setTo(in);
+		back.tms_us = tms_us;
+		back.seq    = ++produced;
+
+		// the slot returned is either stale or the one the encoder released
+		back = latest.getAndSet(back);
+		published.set(produced);
+		LockSupport.unpark(encoder);
+	}
+
+	private boolean hasClients() {
+		for(Variant v : variants)
+			if(v.hasClients())
+				return true;
+		return false;
+	}
+
+	private boolean isSnapshotRequested() {
+		MJPEGSnapshot s = snapshot;
+		return s != null && s.isRequested();
+	}
+
+	@SuppressWarnings("unchecked")
+	private void encode() {
+		Slot front = new Slot();
+		long last  = 0;
+		while(true) {
+			try {
+				while(published.get() == last) {
+					LockSupport.park(this);
+					if(Thread.interrupted())
+						return;
+				}
+
+				front = latest.getAndSet(front);
+				if(front.seq <= last)
+					continue;
+				last = front.seq;
+
+				T input = (T)front.image; long tms_us = front.tms_us;
+
+				long tms_ns = System.nanoTime();
+
+				seq++;
+
+				// the default variant is the first one
+				MJPEGSnapshot s = isSnapshotRequested() ? snapshot : null;
+				for(Variant v : variants) {
+					MJPEGSnapshot vs = v == variants.get(0) ? s : null;
+					if(v.hasClients() || vs != null)
+						v.encode(input, tms_us, vs);
+				}
+
+				encodeTime.observeNanos(System.nanoTime() - tms_ns);
+				frames.inc();
+
+			} catch (Exception e) { }
+		}
+	}
+
+	/**
+	 * Copy of an input image, owned by either the capture thread, the encoder or neither
+	 */
+	private static class Slot {
+		@SuppressWarnings("rawtypes")
+		ImageBase image;
+		long      tms_us;
+		long      seq;
+	}
+
+	/**
+	 * Stream variant with its own image and levels
+	 */
+	private class Variant {
+
+		final boolean            gray;
+		final int                factor;
+		final BufferedImage      image;
+		final Graphics2D         ctx;
+		final MJPEGEncoder[]     jpeg;
+		final MJPEGBroadcaster[] levels;
+		final MJPEGImageConvert  convert = new MJPEGImageConvert();
+
+		Variant(boolean gray, int factor) {
+			this.gray   = gray;
+			this.factor = factor;
+			this.image  = new BufferedImage(width / factor, height / factor,
+					gray ? BufferedImage.TYPE_BYTE_GRAY : BufferedImage.TYPE_3BYTE_BGR);
+			this.ctx    = image.createGraphics();
+			// overlays draw in coordinates of the input image
+			this.ctx.scale(1.0 / factor, 1.0 / factor);
+
+			// levels: full, lower quality, lower quality and scale
+			List<MJPEGEncoder> l = new ArrayList<MJPEGEncoder>();
+			l.add(new MJPEGEncoder(quality, scale));
+			if(min_quality < quality)
+				l.add(new MJPEGEncoder(min_quality, scale));
+			if(min_scale < scale)
+				l.add(new MJPEGEncoder(Math.min(quality, min_quality), min_scale));
+
+			this.jpeg   = l.toArray(new MJPEGEncoder[l.size()]);
+			this.levels = new MJPEGBroadcaster[jpeg.length];
+			for(int i = 0; i < jpeg.length; i++)
+				levels[i] = new MJPEGBroadcaster();
+
+			System.out.println("[vis] MJPEG stream "+name+" "+(gray ? "gray" : "color")+" "+image.getWidth()+"x"+image.getHeight()+
+					" with "+jpeg.length+" levels (quality "+quality+" to "+jpeg[jpeg.length-1].getQuality()+")");
 		}
 
+		boolean hasClients() {
+			for(MJPEGBroadcaster level : levels)
+				if(level.getClients() > 0)
+					return true;
+			return false;
+		}
+
+		/**
+		 * @param snapshot Snapshot to refresh with this frame or null
+		 */
+		@SuppressWarnings("unchecked")
+		void encode(T input, long tms_us, MJPEGSnapshot snapshot) {
+
+			if(input instanceof Planar) {
+				if(gray)
+					convert.planarToGray((Planar<GrayU8>)input, factor, image);
+				else
+					convert.planarToBGR((Planar<GrayU8>)input, factor, image);
+			}
+			else if(input instanceof GrayU8) {
+				if(gray)
+					convert.grayToGray((GrayU8)input, factor, image);
+				else
+					convert.grayToBGR((GrayU8)input, factor, image);
+			}
+			else if(input instanceof GrayU16) {
+				if(colormap == null)
+					colormap = new MJPEGDepthColorMap(depth_min, depth_max);
+				if(gray)
+					convert.depthToGray((GrayU16)input, factor, colormap.getGray(), image);
+				else
+					convert.depthToBGR((GrayU16)input, factor, colormap.getColor(), image);
+			}
+
+			if(listeners.size()>0) {
+				for(IMJPEGOverlayListener listener : listeners)
+					listener.processOverlay(ctx);
+			}
+
+			for(int i = 0; i < jpeg.length; i++) {
+				boolean shot = i == 0 && snapshot != null && snapshot.isJpeg();
+				if(levels[i].getClients() == 0 && !shot)
+					continue;
+				JpegFrame frame = levels[i].obtain();
+				try {
+					jpeg[i].encode(image, frame);
+				} catch(IOException e) {
+					levels[i].discard(frame);
+					continue;
+				}
+				if(shot)
+					snapshot.update(frame.getData(), frame.size(), seq);
+				if(levels[i].getClients() > 0)
+					levels[i].publish(frame, tms_us);
+				else
+					levels[i].discard(frame);
+			}
+
+			if(snapshot != null && !snapshot.isJpeg()) {
+				try {
+					snapshot.encode(image, seq);
+				} catch(IOException e) { }
+			}
+		}
 	}
 }
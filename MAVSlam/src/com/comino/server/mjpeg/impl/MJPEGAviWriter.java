@@ -0,0 +1,243 @@
+/****************************************************************************
+ *
+ *   Copyright (c) 2017 Eike Mansfeld ecm@gmx.de. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ * 3. Neither the name of the copyright holder nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS
+ * OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED
+ * AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ ****************************************************************************/
+
+
+
+package com.comino.server.mjpeg.impl;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+import com.comino.server.mjpeg.impl.MJPEGBroadcaster.JpegFrame;
+
+/**
+ * Writes JPEG frames into an AVI (RIFF) container with a single MJPG video stream. The
+ * header is written with placeholders, frames are appended as '00dc' chunks and the
+ * index and the frame counts are written on close. Files must stay below 1 GB, so the
+ * frame data is limited to {@link #MAX_SIZE}.
+ * <p>
+ * Frames are played at a fixed rate. Frames missing at their time, e.g. dropped by the
+ * recorder, are written as empty chunks by {@link #skip()}, so players repeat the
+ * previous frame and the timing of the recording is kept.
+ *
+ * @author Eike Mansfeld
+ */
+public class MJPEGAviWriter implements Closeable {
+
+	// fixed header layout
+	private static final int POS_RIFF_SIZE    = 4;
+	private static final int POS_TOTAL_FRAMES = 48;
+	private static final int POS_LENGTH       = 140;
+	private static final int POS_MOVI_SIZE    = 216;
+	private static final int POS_MOVI         = 220;
+	private static final int HEADER_SIZE      = 224;
+
+	/**
+	 * Maximum size of the frame data; the index written on close must still fit below 1 GB
+	 */
+	public static final long MAX_SIZE         = 1000L * 1024L * 1024L;
+
+	private static final int AVIF_HASINDEX    = 0x10;
+	private static final int AVIIF_KEYFRAME   = 0x10;
+
+	private final FileChannel channel;
+	private final ByteBuffer  chunk = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+	private final byte[]      pad   = new byte[1];
+
+	private long  position = HEADER_SIZE;
+	private int   frames   = 0;
+	private int[] index    = new int[2048];
+
+	/**
+	 * @param frame_us Duration of a frame in microseconds
+	 */
+	public MJPEGAviWriter(File file, int width, int height, int frame_us) throws IOException {
+		frame_us = Math.max(1, frame_us);
+
+		this.channel = new FileOutputStream(file).getChannel();
+
+		ByteBuffer h = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+		fourcc(h, "RIFF"); h.putInt(0); fourcc(h, "AVI ");
+		fourcc(h, "LIST"); h.putInt(192); fourcc(h, "hdrl");
+
+		fourcc(h, "avih"); h.putInt(56);
+		h.putInt(frame_us);						// microseconds per frame
+		h.putInt(0);							// max bytes per second
+		h.putInt(0);							// padding granularity
+		h.putInt(AVIF_HASINDEX);
+		h.putInt(0);							// total frames
+		h.putInt(0);							// initial frames
+		h.putInt(1);							// streams
+		h.putInt(0);							// suggested buffer size
+		h.putInt(width);
+		h.putInt(height);
+		h.putInt(0); h.putInt(0); h.putInt(0); h.putInt(0);
+
+		fourcc(h, "LIST"); h.putInt(116); fourcc(h, "strl");
+
+		fourcc(h, "strh"); h.putInt(56);
+		fourcc(h, "vids"); fourcc(h, "MJPG");
+		h.putInt(0);							// flags
+		h.putShort((short)0); h.putShort((short)0);
+		h.putInt(0);							// initial frames
+		h.putInt(frame_us);						// scale
+		h.putInt(1000000);						// rate, frames per second is rate / scale
+		h.putInt(0);							// start
+		h.putInt(0);							// length
+		h.putInt(0);							// suggested buffer size
+		h.putInt(-1);							// quality
+		h.putInt(0);							// sample size
+		h.putShort((short)0); h.putShort((short)0); h.putShort((short)width); h.putShort((short)height);
+
+		fourcc(h, "strf"); h.putInt(40);
+		h.putInt(40);
+		h.putInt(width);
+		h.putInt(height);
+		h.putShort((short)1);					// planes
+		h.putShort((short)24);					// bit count
+		fourcc(h, "MJPG");
+		h.putInt(width * height * 3);
+		h.putInt(0); h.putInt(0); h.putInt(0); h.putInt(0);
+
+		fourcc(h, "LIST"); h.putInt(0); fourcc(h, "movi");
+
+		h.flip();
+		write(h, 0);
+	}
+
+	/**
+	 * Appends an encoded frame
+	 */
+	public void write(JpegFrame frame) throws IOException {
+		int size = frame.size();
+
+		if(frames * 2 + 2 > index.length)
+			index = Arrays.copyOf(index, index.length * 2);
+		index[frames * 2]     = (int)(position - POS_MOVI);
+		index[frames * 2 + 1] = size;
+
+		chunk.clear();
+		fourcc(chunk, "00dc"); chunk.putInt(size);
+		chunk.flip();
+		write(chunk, position);
+		write(ByteBuffer.wrap(frame.getData(), 0, size), position + 8);
+		position += 8 + size;
+
+		// chunks are word aligned
+		if((size & 1) != 0)
+			write(ByteBuffer.wrap(pad), position++);
+
+		frames++;
+	}
+
+	/**
+	 * Appends an empty frame, which is shown as repetition of the previous frame
+	 */
+	public void skip() throws IOException {
+		if(frames * 2 + 2 > index.length)
+			index = Arrays.copyOf(index, index.length * 2);
+		index[frames * 2]     = (int)(position - POS_MOVI);
+		index[frames * 2 + 1] = 0;
+
+		chunk.clear();
+		fourcc(chunk, "00dc"); chunk.putInt(0);
+		chunk.flip();
+		write(chunk, position);
+		position += 8;
+
+		frames++;
+	}
+
+	/**
+	 * @return Size of the file in bytes without the index
+	 */
+	public long size() {
+		return position;
+	}
+
+	public int getFrames() {
+		return frames;
+	}
+
+	/**
+	 * Writes index and frame counts and closes the file
+	 */
+	@Override
+	public void close() throws IOException {
+		try {
+			long movi = position - POS_MOVI;
+
+			ByteBuffer idx = ByteBuffer.allocate(8 + frames * 16).order(ByteOrder.LITTLE_ENDIAN);
+			fourcc(idx, "idx1"); idx.putInt(frames * 16);
+			for(int i = 0; i < frames; i++) {
+				fourcc(idx, "00dc");
+				idx.putInt(index[i * 2 + 1] > 0 ? AVIIF_KEYFRAME : 0);
+				idx.putInt(index[i * 2]);
+				idx.putInt(index[i * 2 + 1]);
+			}
+			idx.flip();
+			write(idx, position);
+			long end = position + idx.limit();
+
+			putInt(POS_RIFF_SIZE, (int)(end - 8));
+			putInt(POS_TOTAL_FRAMES, frames);
+			putInt(POS_LENGTH, frames);
+			putInt(POS_MOVI_SIZE, (int)movi);
+		} finally {
+			channel.close();
+		}
+	}
+
+	private void putInt(long pos, int value) throws IOException {
+		chunk.clear();
+		chunk.putInt(value);
+		chunk.flip();
+		write(chunk, pos);
+	}
+
+	private void write(ByteBuffer buffer, long pos) throws IOException {
+		while(buffer.hasRemaining())
+			pos += channel.write(buffer, pos);
+	}
+
+	private static void fourcc(ByteBuffer buffer, String code) {
+		for(int i = 0; i < 4; i++)
+			buffer.put((byte)code.charAt(i));
+	}
+}
@@ -0,0 +1,202 @@
+/****************************************************************************
+ *
+ *   Copyright (c) 2017 Eike Mansfeld ecm@gmx.de. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ * 3. Neither the name of the copyright holder nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS
+ * OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED
+ * AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ ****************************************************************************/
+
+
+package com.comino.server.mjpeg.impl;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Hands encoded JPEG frames from one encoder to any number of clients. Each frame is
+ * encoded once into a pooled buffer and tagged with a sequence number. Clients take the
+ * latest frame when they are ready to send, so slow clients skip frames instead of
+ * queuing them. Listeners are notified on each published frame. A frame buffer returns
+ * to the pool when it is replaced as latest frame and no client is writing it anymore.
+ *
+ * @author Eike Mansfeld
+ */
+public class MJPEGBroadcaster {
+
+	private final Deque<JpegFrame> pool = new ArrayDeque<JpegFrame>();
+	private final List<Runnable>   listeners = new CopyOnWriteArrayList<Runnable>();
+	private final AtomicInteger    clients   = new AtomicInteger();
+
+	private JpegFrame latest = null;
+	private long      seq    = 0;
+	private int       allocated = 0;
+
+	/**
+	 * @return Buffer for the next frame to encode, owned by the encoder until published
+	 */
+	public synchronized JpegFrame obtain() {
+		JpegFrame f = pool.poll();
+		if(f == null) {
+			f = new JpegFrame();
+			allocated++;
+		}
+		f.reset();
+		return f;
+	}
+
+	/**
+	 * Publishes an encoded frame as latest frame and notifies all listeners
+	 */
+	public void publish(JpegFrame frame, long tms_us) {
+		synchronized(this) {
+			frame.seq    = ++seq;
+			frame.tms_us = tms_us;
+			frame.refs   = 1;
+			JpegFrame old = latest;
+			latest = frame;
+			if(old != null)
+				release(old);
+		}
+		for(Runnable listener : listeners)
+			listener.run();
+	}
+
+	/**
+	 * Returns the latest frame if newer than the given sequence number without waiting.
+	 * The frame must be released by the client after writing.
+	 *
+	 * @param after Sequence number of the last frame the client has sent
+	 * @return Latest frame or null if no newer frame is available
+	 */
+	public synchronized JpegFrame latest(long after) {
+		if(latest == null || latest.seq <= after)
+			return null;
+		latest.refs++;
+		return latest;
+	}
+
+	/**
+	 * Adds a listener called on the encoder thread after each published frame
+	 */
+	public void addListener(Runnable listener) {
+		listeners.add(listener);
+	}
+
+	public void connect() {
+		clients.incrementAndGet();
+	}
+
+	public void disconnect() {
+		clients.decrementAndGet();
+	}
+
+	/**
+	 * @return Number of connected clients
+	 */
+	public int getClients() {
+		return clients.get();
+	}
+
+	/**
+	 * Returns a buffer obtained but not published to the pool
+	 */
+	public synchronized void discard(JpegFrame frame) {
+		pool.push(frame);
+	}
+
+	public synchronized void release(JpegFrame frame) {
+		if(--frame.refs == 0)
+			pool.push(frame);
+	}
+
+	/**
+	 * @return Sequence number of the latest frame
+	 */
+	public synchronized long getSequence() {
+		return seq;
+	}
+
+	/**
+	 * @return Number of frame buffers allocated
+	 */
+	public synchronized int getAllocated() {
+		return allocated;
+	}
+
+	/**
+	 * Encoded frame in a growable buffer
+	 */
+	public static class JpegFrame {
+
+		private byte[] data = new byte[32768];
+		private int    size;
+
+		private long seq;
+		private long tms_us;
+		private int  refs;
+
+		/**
+		 * @return Internal buffer holding size() valid bytes
+		 */
+		public byte[] getData() {
+			return data;
+		}
+
+		public int size() {
+			return size;
+		}
+
+		public void setSize(int size) {
+			this.size = size;
+		}
+
+		public void reset() {
+			size = 0;
+		}
+
+		/**
+		 * Grows the buffer keeping its content
+		 */
+		public void ensureCapacity(int capacity) {
+			if(capacity > data.length)
+				data = Arrays.copyOf(data, Math.max(capacity, data.length * 2));
+		}
+
+		public long getSequence() {
+			return seq;
+		}
+
+		public long getTimestamp() {
+			return tms_us;
+		}
+	}
+}
@@ -0,0 +1,88 @@
+/****************************************************************************
+ *
+ *   Copyright (c) 2017 Eike Mansfeld ecm@gmx.de. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ * 3. Neither the name of the copyright holder nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS
+ * OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED
+ * AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ ****************************************************************************/
+
+
+
+package com.comino.server.mjpeg.impl;
+
+/**
+ * Lookup tables mapping raw 16 bit depth values to colors and gray values. Depths within
+ * the range are mapped from red (near) to blue (far); values outside the range and
+ * missing depth (0) are black.
+ *
+ * @author Eike Mansfeld
+ */
+public class MJPEGDepthColorMap {
+
+	private final int[]  bgr  = new int[65536];
+	private final byte[] gray = new byte[65536];
+
+	/**
+	 * @param min Nearest raw depth value shown
+	 * @param max Farthest raw depth value shown
+	 */
+	public MJPEGDepthColorMap(int min, int max) {
+		min = Math.max(1, Math.min(min, 65534));
+		max = Math.max(min + 1, Math.min(max, 65535));
+		for(int d = min; d <= max; d++) {
+			float t = (float)(d - min) / (max - min);
+			bgr[d]  = jet(1 - t);
+			gray[d] = (byte)(255 - (int)(t * 223));
+		}
+	}
+
+	/**
+	 * @return Colors as 0x00BBGGRR indexed by raw depth
+	 */
+	public int[] getColor() {
+		return bgr;
+	}
+
+	/**
+	 * @return Gray values indexed by raw depth, brighter is nearer
+	 */
+	public byte[] getGray() {
+		return gray;
+	}
+
+	private static int jet(float v) {
+		int r = clamp(1.5f - Math.abs(4 * v - 3));
+		int g = clamp(1.5f - Math.abs(4 * v - 2));
+		int b = clamp(1.5f - Math.abs(4 * v - 1));
+		return b << 16 | g << 8 | r;
+	}
+
+	private static int clamp(float v) {
+		return (int)(Math.max(0, Math.min(1, v)) * 255);
+	}
+}
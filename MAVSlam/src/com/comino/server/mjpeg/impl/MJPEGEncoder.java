@@ -0,0 +1,184 @@
+/****************************************************************************
+ *
+ *   Copyright (c) 2017 Eike Mansfeld ecm@gmx.de. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ * 3. Neither the name of the copyright holder nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS
+ * OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED
+ * AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ ****************************************************************************/
+
+
+package com.comino.server.mjpeg.impl;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.Iterator;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStreamImpl;
+
+import com.comino.server.mjpeg.impl.MJPEGBroadcaster.JpegFrame;
+
+/**
+ * JPEG encoder keeping one configured ImageWriter. Frames are optionally scaled and
+ * written directly into the buffer of a {@link JpegFrame}, so encoding does not look up
+ * writers or allocate output streams per frame.
+ *
+ * Not thread safe; used by the encoder thread only.
+ *
+ * @author Eike Mansfeld
+ */
+public class MJPEGEncoder {
+
+	private final ImageWriter       writer;
+	private final ImageWriteParam   param;
+	private final FrameOutputStream out   = new FrameOutputStream();
+	private IIOImage                iio   = null;
+
+	private final float             scale;
+
+	private BufferedImage           scaled = null;
+	private Graphics2D              sctx   = null;
+
+	/**
+	 * @param quality JPEG quality between 0 and 1
+	 * @param scale   Scale of the encoded image relative to the input image
+	 */
+	public MJPEGEncoder(float quality, float scale) {
+		Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName("jpeg");
+		if(!writers.hasNext())
+			throw new IllegalStateException("No JPEG writer available");
+
+		this.writer = writers.next();
+		this.param  = writer.getDefaultWriteParam();
+		this.param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+		this.param.setCompressionQuality(Math.max(0f, Math.min(1f, quality)));
+		this.scale  = scale > 0 && scale < 1 ? scale : 1;
+	}
+
+	/**
+	 * Encodes the image into the frame replacing its content
+	 */
+	public void encode(BufferedImage image, JpegFrame frame) throws IOException {
+
+		BufferedImage src = image;
+		if(scale < 1) {
+			int w = Math.max(1, (int)(image.getWidth() * scale));
+			int h = Math.max(1, (int)(image.getHeight() * scale));
+			if(scaled == null || scaled.getWidth() != w || scaled.getHeight() != h || scaled.getType() != image.getType()) {
+				scaled = new BufferedImage(w, h, image.getType());
+				sctx   = scaled.createGraphics();
+				sctx.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+			}
+			sctx.drawImage(image, 0, 0, w, h, null);
+			src = scaled;
+		}
+
+		out.setTarget(frame);
+		writer.setOutput(out);
+		if(iio == null)
+			iio = new IIOImage(src, null, null);
+		else
+			iio.setRenderedImage(src);
+		writer.write(null, iio, param);
+		out.flush();
+	}
+
+	public float getQuality() {
+		return param.getCompressionQuality();
+	}
+
+	public float getScale() {
+		return scale;
+	}
+
+	/**
+	 * Image output stream writing into the buffer of a frame
+	 */
+	private static class FrameOutputStream extends ImageOutputStreamImpl {
+
+		private JpegFrame frame;
+
+		void setTarget(JpegFrame frame) {
+			this.frame = frame;
+			frame.reset();
+			streamPos  = 0;
+			flushedPos = 0;
+			bitOffset  = 0;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			flushBits();
+			frame.ensureCapacity((int)streamPos + 1);
+			frame.getData()[(int)streamPos++] = (byte)b;
+			if(streamPos > frame.size())
+				frame.setSize((int)streamPos);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			flushBits();
+			frame.ensureCapacity((int)streamPos + len);
+			System.arraycopy(b, off, frame.getData(), (int)streamPos, len);
+			streamPos += len;
+			if(streamPos > frame.size())
+				frame.setSize((int)streamPos);
+		}
+
+		@Override
+		public int read() throws IOException {
+			checkClosed();
+			bitOffset = 0;
+			if(streamPos >= frame.size())
+				return -1;
+			return frame.getData()[(int)streamPos++] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			checkClosed();
+			bitOffset = 0;
+			int n = Math.min(len, frame.size() - (int)streamPos);
+			if(n <= 0)
+				return -1;
+			System.arraycopy(frame.getData(), (int)streamPos, b, off, n);
+			streamPos += n;
+			return n;
+		}
+
+		@Override
+		public long length() {
+			return frame.size();
+		}
+	}
+}
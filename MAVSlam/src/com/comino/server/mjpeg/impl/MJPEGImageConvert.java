@@ -0,0 +1,248 @@
+/****************************************************************************
+ *
+ *   Copyright (c) 2017 Eike Mansfeld ecm@gmx.de. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ * 3. Neither the name of the copyright holder nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS
+ * OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED
+ * AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ ****************************************************************************/
+
+
+
+package com.comino.server.mjpeg.impl;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+
+import boofcv.io.image.ConvertBufferedImage;
+import boofcv.struct.image.GrayU16;
+import boofcv.struct.image.GrayU8;
+import boofcv.struct.image.Planar;
+
+/**
+ * Converts stream input images into the raster of a BufferedImage with a box downsample
+ * by a power of two. Each output pixel is the mean of a factor x factor block, for gray
+ * output additionally of all bands. Depth images are mapped by a lookup table and
+ * sampled once per block instead, as the mean would mix in missing depth. Rows of a
+ * block are accumulated sequentially and the mean is taken by a fixed point
+ * multiplication. Writing the raster directly avoids the full resolution intermediate
+ * image and the scaling by Java2D.
+ *
+ * Not thread safe; used by the encoder thread only.
+ *
+ * @author Eike Mansfeld
+ */
+final class MJPEGImageConvert {
+
+	private int[] acc_r = new int[0];
+	private int[] acc_g = new int[0];
+	private int[] acc_b = new int[0];
+
+	/**
+	 * @param out Image of type TYPE_3BYTE_BGR and size of the input divided by factor
+	 */
+	void planarToBGR(Planar<GrayU8> in, int factor, BufferedImage out) {
+		if(factor == 1) {
+			ConvertBufferedImage.convertTo_U8(in, out, true);
+			return;
+		}
+
+		byte[] data = data(out);
+		byte[] r = in.getBand(0).data, g = in.getBand(1).data, b = in.getBand(2).data;
+		int w = out.getWidth(), h = out.getHeight(), shift = shift(factor);
+		int inv = reciprocal(factor * factor);
+		ensureCapacity(w);
+
+		int o = 0;
+		for(int y = 0; y < h; y++) {
+			clear(w);
+			for(int dy = 0; dy < factor; dy++) {
+				int i = in.startIndex + (y * factor + dy) * in.stride;
+				for(int x = 0; x < w << shift; x++, i++) {
+					acc_r[x >> shift] += r[i] & 0xFF;
+					acc_g[x >> shift] += g[i] & 0xFF;
+					acc_b[x >> shift] += b[i] & 0xFF;
+				}
+			}
+			for(int x = 0; x < w; x++) {
+				data[o++] = (byte)((acc_b[x] * inv) >> 16);
+				data[o++] = (byte)((acc_g[x] * inv) >> 16);
+				data[o++] = (byte)((acc_r[x] * inv) >> 16);
+			}
+		}
+	}
+
+	/**
+	 * @param out Image of type TYPE_BYTE_GRAY and size of the input divided by factor
+	 */
+	void planarToGray(Planar<GrayU8> in, int factor, BufferedImage out) {
+		byte[] data = data(out);
+		byte[] r = in.getBand(0).data, g = in.getBand(1).data, b = in.getBand(2).data;
+		int w = out.getWidth(), h = out.getHeight(), shift = shift(factor);
+		int inv = reciprocal(factor * factor * 3);
+		ensureCapacity(w);
+
+		int o = 0;
+		for(int y = 0; y < h; y++) {
+			if(factor == 1) {
+				int i = in.startIndex + y * in.stride;
+				for(int x = 0; x < w; x++, i++)
+					data[o++] = (byte)((((r[i] & 0xFF) + (g[i] & 0xFF) + (b[i] & 0xFF)) * inv) >> 16);
+				continue;
+			}
+			clear(w);
+			for(int dy = 0; dy < factor; dy++) {
+				int i = in.startIndex + (y * factor + dy) * in.stride;
+				for(int x = 0; x < w << shift; x++, i++)
+					acc_r[x >> shift] += (r[i] & 0xFF) + (g[i] & 0xFF) + (b[i] & 0xFF);
+			}
+			for(int x = 0; x < w; x++)
+				data[o++] = (byte)((acc_r[x] * inv) >> 16);
+		}
+	}
+
+	/**
+	 * @param out Image of type TYPE_BYTE_GRAY and size of the input divided by factor
+	 */
+	void grayToGray(GrayU8 in, int factor, BufferedImage out) {
+		byte[] data = data(out);
+		int w = out.getWidth(), h = out.getHeight(), shift = shift(factor);
+		int inv = reciprocal(factor * factor);
+		ensureCapacity(w);
+
+		int o = 0;
+		for(int y = 0; y < h; y++) {
+			if(factor == 1) {
+				System.arraycopy(in.data, in.startIndex + y * in.stride, data, o, w);
+				o += w;
+				continue;
+			}
+			clear(w);
+			for(int dy = 0; dy < factor; dy++) {
+				int i = in.startIndex + (y * factor + dy) * in.stride;
+				for(int x = 0; x < w << shift; x++, i++)
+					acc_r[x >> shift] += in.data[i] & 0xFF;
+			}
+			for(int x = 0; x < w; x++)
+				data[o++] = (byte)((acc_r[x] * inv) >> 16);
+		}
+	}
+
+	/**
+	 * @param out Image of type TYPE_3BYTE_BGR and size of the input divided by factor
+	 */
+	void grayToBGR(GrayU8 in, int factor, BufferedImage out) {
+		if(factor == 1) {
+			ConvertBufferedImage.convertTo(in, out, true);
+			return;
+		}
+
+		byte[] data = data(out);
+		int w = out.getWidth(), h = out.getHeight(), shift = shift(factor);
+		int inv = reciprocal(factor * factor);
+		ensureCapacity(w);
+
+		int o = 0;
+		for(int y = 0; y < h; y++) {
+			clear(w);
+			for(int dy = 0; dy < factor; dy++) {
+				int i = in.startIndex + (y * factor + dy) * in.stride;
+				for(int x = 0; x < w << shift; x++, i++)
+					acc_r[x >> shift] += in.data[i] & 0xFF;
+			}
+			for(int x = 0; x < w; x++) {
+				byte v = (byte)((acc_r[x] * inv) >> 16);
+				data[o++] = v; data[o++] = v; data[o++] = v;
+			}
+		}
+	}
+
+	/**
+	 * @param lut Colors as 0x00BBGGRR indexed by raw depth
+	 * @param out Image of type TYPE_3BYTE_BGR and size of the input divided by factor
+	 */
+	void depthToBGR(GrayU16 in, int factor, int[] lut, BufferedImage out) {
+		byte[] data = data(out);
+		int w = out.getWidth(), h = out.getHeight();
+
+		int o = 0;
+		for(int y = 0; y < h; y++) {
+			int i = in.startIndex + y * factor * in.stride;
+			for(int x = 0; x < w; x++, i += factor) {
+				int c = lut[in.data[i] & 0xFFFF];
+				data[o++] = (byte)(c >> 16);
+				data[o++] = (byte)(c >> 8);
+				data[o++] = (byte)c;
+			}
+		}
+	}
+
+	/**
+	 * @param lut Gray values indexed by raw depth
+	 * @param out Image of type TYPE_BYTE_GRAY and size of the input divided by factor
+	 */
+	void depthToGray(GrayU16 in, int factor, byte[] lut, BufferedImage out) {
+		byte[] data = data(out);
+		int w = out.getWidth(), h = out.getHeight();
+
+		int o = 0;
+		for(int y = 0; y < h; y++) {
+			int i = in.startIndex + y * factor * in.stride;
+			for(int x = 0; x < w; x++, i += factor)
+				data[o++] = lut[in.data[i] & 0xFFFF];
+		}
+	}
+
+	private void ensureCapacity(int w) {
+		if(acc_r.length < w) {
+			acc_r = new int[w];
+			acc_g = new int[w];
+			acc_b = new int[w];
+		}
+	}
+
+	private void clear(int w) {
+		for(int x = 0; x < w; x++) {
+			acc_r[x] = 0; acc_g[x] = 0; acc_b[x] = 0;
+		}
+	}
+
+	private static byte[] data(BufferedImage image) {
+		return ((DataBufferByte)image.getRaster().getDataBuffer()).getData();
+	}
+
+	private static int shift(int factor) {
+		return Integer.numberOfTrailingZeros(factor);
+	}
+
+	/**
+	 * @return 1/n in 16.16 fixed point, rounded, so that 255 * n * result >> 16 stays below 256
+	 */
+	private static int reciprocal(int n) {
+		return (65536 + n / 2) / n;
+	}
+}
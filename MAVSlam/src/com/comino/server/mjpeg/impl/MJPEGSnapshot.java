@@ -0,0 +1,165 @@
+/****************************************************************************
+ *
+ *   Copyright (c) 2017 Eike Mansfeld ecm@gmx.de. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ * 3. Neither the name of the copyright holder nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS
+ * OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED
+ * AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ ****************************************************************************/
+
+
+
+package com.comino.server.mjpeg.impl;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import javax.imageio.ImageIO;
+
+import com.comino.server.http.IHttpCachedResource;
+
+/**
+ * Still image of a stream, served from a cache. Requests never encode: while the
+ * snapshot is polled, the encoder thread refreshes it whenever it is older than the
+ * maximum age, reusing the JPEG encoded for stream clients if there are any. Polling
+ * is assumed to continue for twice the observed poll interval, at least STALL_FACTOR
+ * times and at most MAX_POLL_WINDOW_MS. After a longer pause the cached image is
+ * served with its age and the snapshot is refreshed for the following polls.
+ *
+ * Requests are answered with 503 if no frame arrived yet or the stream stalled,
+ * i.e. no frame arrived for STALL_FACTOR times the maximum age.
+ *
+ * @author Eike Mansfeld
+ */
+class MJPEGSnapshot implements IHttpCachedResource {
+
+	private static final int  STALL_FACTOR       = 5;
+	private static final long MAX_POLL_WINDOW_MS = 60000;
+
+	private final String format;
+	private final long   max_age_ms;
+	private final String prefix = Long.toHexString(System.currentTimeMillis());
+
+	private final ByteArrayOutputStream out = new ByteArrayOutputStream(65536);
+
+	private volatile long poll_ms   = 0;
+	private volatile long poll_window_ms;
+	private volatile long update_ms = 0;
+	private volatile long frame_ms  = 0;
+
+	private byte[] data = null;
+	private long   seq;
+	private long   age_ms;
+
+	private String etag = null;
+
+	/**
+	 * @param format ImageIO format name; jpeg uses the frames of the stream encoder
+	 */
+	MJPEGSnapshot(String format, long max_age_ms) {
+		this.format     = format;
+		this.max_age_ms = max_age_ms;
+		this.poll_window_ms = STALL_FACTOR * max_age_ms;
+	}
+
+	@Override
+	public synchronized byte[] get() {
+		long now = System.currentTimeMillis();
+		if(poll_ms > 0)
+			poll_window_ms = Math.min(MAX_POLL_WINDOW_MS, Math.max(STALL_FACTOR * max_age_ms, 2 * (now - poll_ms)));
+		poll_ms  = now;
+		age_ms   = now - update_ms;
+		if(data == null || now - frame_ms > STALL_FACTOR * max_age_ms) {
+			etag = null;
+			return null;
+		}
+		etag = "\""+prefix+"-"+seq+"\"";
+		return data;
+	}
+
+	@Override
+	public synchronized String getETag() {
+		return etag;
+	}
+
+	@Override
+	public synchronized long getAge() {
+		return age_ms;
+	}
+
+	@Override
+	public String getContentType() {
+		return "image/"+format;
+	}
+
+	/**
+	 * @return True if the snapshot is polled and the next frame should refresh it
+	 */
+	boolean isRequested() {
+		long now = System.currentTimeMillis();
+		return now - poll_ms <= poll_window_ms && now - update_ms > max_age_ms;
+	}
+
+	/**
+	 * Notifies the snapshot that the stream received a frame
+	 */
+	void frame() {
+		frame_ms = System.currentTimeMillis();
+	}
+
+	/**
+	 * @return True if the snapshot is taken from the encoded JPEG frames
+	 */
+	boolean isJpeg() {
+		return format.equals("jpeg");
+	}
+
+	/**
+	 * Takes a copy of an encoded frame. Each update uses a new array, as the server may
+	 * still be writing the previous one.
+	 */
+	void update(byte[] buffer, int size, long seq) {
+		set(Arrays.copyOf(buffer, size), seq);
+	}
+
+	/**
+	 * Encodes the image in the format of the snapshot. Called by the encoder thread only.
+	 */
+	void encode(BufferedImage image, long seq) throws IOException {
+		out.reset();
+		ImageIO.write(image, format, out);
+		set(out.toByteArray(), seq);
+	}
+
+	private synchronized void set(byte[] data, long seq) {
+		this.data      = data;
+		this.seq       = seq;
+		this.update_ms = System.currentTimeMillis();
+	}
+}
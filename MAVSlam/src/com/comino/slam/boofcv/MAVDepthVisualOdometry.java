@@ -13,6 +13,11 @@ public interface MAVDepthVisualOdometry<Vis extends ImageBase, Depth extends Ima
 
 	public Point3D_F64 getTrackLocation(int index);
 
+	/**
+	 * @return Depth of the track in the current camera frame or NaN if unknown
+	 */
+	public double getTrackDepth(int index);
+
 	public double getQuality();
 
 	public void reset(Se3_F64 initialState);
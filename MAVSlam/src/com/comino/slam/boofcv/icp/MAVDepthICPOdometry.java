@@ -0,0 +1,537 @@
+/****************************************************************************
+ *
+ *   Copyright (c) 2017 Eike Mansfeld ecm@gmx.de. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ * 3. Neither the name of the copyright holder nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS
+ * OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED
+ * AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ ****************************************************************************/
+
+
+package com.comino.slam.boofcv.icp;
+
+import org.ejml.data.DenseMatrix64F;
+import org.ejml.factory.LinearSolverFactory;
+import org.ejml.interfaces.linsol.LinearSolver;
+import org.ejml.ops.CommonOps;
+
+import com.comino.msp.utils.parallel.Parallel;
+import com.comino.slam.boofcv.MAVDepthVisualOdometry;
+
+import boofcv.struct.calib.IntrinsicParameters;
+import boofcv.struct.distort.PixelTransform_F32;
+import boofcv.struct.image.GrayU16;
+import boofcv.struct.image.GrayU8;
+import boofcv.struct.image.ImageType;
+import georegression.geometry.ConvertRotation3D_F64;
+import georegression.geometry.GeometryMath_F64;
+import georegression.struct.point.Point3D_F64;
+import georegression.struct.se.Se3_F64;
+import georegression.struct.so.Rodrigues_F64;
+
+/**
+ * Dense frame-to-frame odometry using point-to-plane ICP directly on the depth image.
+ * The depth image is decimated into a 3 level pyramid; vertices and normals are
+ * computed once per frame and level. Correspondences are found by projective data
+ * association; the correspondence search and the accumulation of the normal
+ * equations are split by rows over the global executor pool.
+ *
+ * Used as fallback if the feature based odometry fails in textureless scenes.
+ *
+ * @author Eike Mansfeld
+ */
+public class MAVDepthICPOdometry implements MAVDepthVisualOdometry<GrayU8,GrayU16> {
+
+	private static final int    LEVELS            = 3;
+	private static final int[]  ITERATIONS        = { 2, 3, 4 };   // fine to coarse
+	private static final float  MAX_DEPTH         = 4.0f;
+	private static final float  MAX_DISTANCE      = 0.10f;
+	private static final float  MIN_NORMAL_COS    = 0.8f;
+	private static final int    MIN_POINTS        = 100;
+
+	// upper triangle of H (21), g (6), number of correspondences, sum of squared residuals
+	private static final int    ACC_SIZE          = 29;
+
+	private final int   decimation;
+	private final float depthScale;
+	private final long  maxTime_ms;
+
+	private Frame       current = null;
+	private Frame       reference = null;
+
+	private IntrinsicParameters intrinsics = null;
+
+	// transform from current frame to reference frame
+	private Se3_F64 currToRef   = new Se3_F64();
+	private Se3_F64 refToWorld  = new Se3_F64();
+	private Se3_F64 currToWorld = new Se3_F64();
+	private Se3_F64 tmp         = new Se3_F64();
+
+	private GrayU16 depth       = null;
+
+	private boolean first       = true;
+	private boolean fault       = false;
+	private int     inliers     = 0;
+	private double  quality     = 0;
+	private long    time_ms     = 0;
+
+	private final double[] acc = new double[ACC_SIZE];
+	private final ThreadLocal<double[]> local = new ThreadLocal<double[]>() {
+		@Override protected double[] initialValue() { return new double[ACC_SIZE]; }
+	};
+
+	private DenseMatrix64F H     = new DenseMatrix64F(6,6);
+	private DenseMatrix64F g     = new DenseMatrix64F(6,1);
+	private DenseMatrix64F delta = new DenseMatrix64F(6,1);
+	private DenseMatrix64F dR    = new DenseMatrix64F(3,3);
+	private DenseMatrix64F R     = new DenseMatrix64F(3,3);
+	private LinearSolver<DenseMatrix64F> solver = LinearSolverFactory.symmPosDef(6);
+	private Rodrigues_F64  rod   = new Rodrigues_F64();
+
+	private Point3D_F64 point   = new Point3D_F64();
+
+	/**
+	 * @param decimation Decimation of the finest pyramid level relative to the depth image
+	 * @param depthScale Scale of depth values to meters
+	 * @param maxTime_ms Time budget for ICP iterations; remaining iterations are skipped if exceeded
+	 */
+	public MAVDepthICPOdometry(int decimation, float depthScale, long maxTime_ms) {
+		this.decimation = decimation;
+		this.depthScale = depthScale;
+		this.maxTime_ms = maxTime_ms;
+	}
+
+	@Override
+	public void setCalibration(IntrinsicParameters paramVisual, PixelTransform_F32 visToDepth) {
+		this.intrinsics = paramVisual;
+		this.current    = new Frame(paramVisual);
+		this.reference  = new Frame(paramVisual);
+	}
+
+	@Override
+	public boolean process(GrayU8 visual, GrayU16 depth) {
+		return process(visual, depth, null);
+	}
+
+	@Override
+	public boolean process(GrayU8 visual, GrayU16 depth, Se3_F64 state) {
+
+		long tms = System.currentTimeMillis();
+
+		this.depth = depth;
+		current.setDepth(depth);
+
+		if(first) {
+			swap();
+			first = false;
+			fault = false;
+			return true;
+		}
+
+		currToRef.reset();
+		if(state != null) {
+			// use rotation of the autopilot as initial guess
+			CommonOps.multTransA(refToWorld.R, state.R, currToRef.R);
+		}
+
+		fault = !align(tms);
+
+		if(!fault) {
+			currToRef.concat(refToWorld, currToWorld);
+			refToWorld.set(currToWorld);
+		}
+
+		swap();
+		time_ms = System.currentTimeMillis() - tms;
+		return !fault;
+	}
+
+	/**
+	 * Coarse to fine point-to-plane ICP of the current frame against the reference frame
+	 */
+	private boolean align(long tms) {
+
+		// time budget ends the refinement on the current level and skips the finer levels
+		levels:
+		for(int l = LEVELS-1; l >= 0; l--) {
+			for(int i = 0; i < ITERATIONS[l]; i++) {
+
+				accumulate(current.level[l], reference.level[l]);
+
+				if(acc[27] < MIN_POINTS)
+					return false;
+
+				if(!solve())
+					return false;
+
+				if((System.currentTimeMillis() - tms) > maxTime_ms)
+					break levels;
+			}
+		}
+
+		// final statistics at the finest level
+		accumulate(current.level[0], reference.level[0]);
+		inliers = (int)acc[27];
+		quality = current.level[0].valid > 0 ? acc[27] / current.level[0].valid : 0;
+
+		return inliers >= MIN_POINTS;
+	}
+
+	private void accumulate(final Level cur, final Level ref) {
+
+		for(int i = 0; i < ACC_SIZE; i++)
+			acc[i] = 0;
+
+		final DenseMatrix64F r = currToRef.R;
+		final double tx = currToRef.T.x, ty = currToRef.T.y, tz = currToRef.T.z;
+
+		Parallel.forRange(0, cur.height, 1, range -> {
+
+			double[] a = local.get();
+			for(int i = 0; i < ACC_SIZE; i++)
+				a[i] = 0;
+
+			for(int y = range.start; y < range.stop; y += range.incr) {
+				for(int x = 0, idx = y * cur.width; x < cur.width; x++, idx++) {
+
+					if(Float.isNaN(cur.nx[idx]))
+						continue;
+
+					// transform vertex into reference frame
+					double vx = cur.vx[idx], vy = cur.vy[idx], vz = cur.vz[idx];
+					double px = r.data[0]*vx + r.data[1]*vy + r.data[2]*vz + tx;
+					double py = r.data[3]*vx + r.data[4]*vy + r.data[5]*vz + ty;
+					double pz = r.data[6]*vx + r.data[7]*vy + r.data[8]*vz + tz;
+					if(pz <= 0)
+						continue;
+
+					// projective data association
+					int u = (int)(ref.fx * px / pz + ref.cx + 0.5);
+					int v = (int)(ref.fy * py / pz + ref.cy + 0.5);
+					if(u < 0 || v < 0 || u >= ref.width || v >= ref.height)
+						continue;
+
+					int ridx = v * ref.width + u;
+					double nx = ref.nx[ridx];
+					if(Float.isNaN((float)nx))
+						continue;
+					double ny = ref.ny[ridx], nz = ref.nz[ridx];
+
+					double dx = px - ref.vx[ridx], dy = py - ref.vy[ridx], dz = pz - ref.vz[ridx];
+					if(dx*dx + dy*dy + dz*dz > MAX_DISTANCE * MAX_DISTANCE)
+						continue;
+
+					// compare normals
+					double cnx = cur.nx[idx], cny = cur.ny[idx], cnz = cur.nz[idx];
+					double rnx = r.data[0]*cnx + r.data[1]*cny + r.data[2]*cnz;
+					double rny = r.data[3]*cnx + r.data[4]*cny + r.data[5]*cnz;
+					double rnz = r.data[6]*cnx + r.data[7]*cny + r.data[8]*cnz;
+					if(rnx*nx + rny*ny + rnz*nz < MIN_NORMAL_COS)
+						continue;
+
+					double res = nx*dx + ny*dy + nz*dz;
+
+					// J = [ p x n , n ]
+					double j0 = py*nz - pz*ny;
+					double j1 = pz*nx - px*nz;
+					double j2 = px*ny - py*nx;
+
+					addJacobian(a, j0, j1, j2, nx, ny, nz, res);
+				}
+			}
+
+			synchronized(acc) {
+				for(int i = 0; i < ACC_SIZE; i++)
+					acc[i] += a[i];
+			}
+		});
+	}
+
+	private static void addJacobian(double[] a, double j0, double j1, double j2,
+			double j3, double j4, double j5, double res) {
+		a[0]  += j0*j0; a[1]  += j0*j1; a[2]  += j0*j2; a[3]  += j0*j3; a[4]  += j0*j4; a[5]  += j0*j5;
+		a[6]  += j1*j1; a[7]  += j1*j2; a[8]  += j1*j3; a[9]  += j1*j4; a[10] += j1*j5;
+		a[11] += j2*j2; a[12] += j2*j3; a[13] += j2*j4; a[14] += j2*j5;
+		a[15] += j3*j3; a[16] += j3*j4; a[17] += j3*j5;
+		a[18] += j4*j4; a[19] += j4*j5;
+		a[20] += j5*j5;
+		a[21] += j0*res; a[22] += j1*res; a[23] += j2*res;
+		a[24] += j3*res; a[25] += j4*res; a[26] += j5*res;
+		a[27] += 1;
+		a[28] += res*res;
+	}
+
+	/**
+	 * Solves the normal equations and updates the current estimate
+	 */
+	private boolean solve() {
+		int k = 0;
+		for(int r = 0; r < 6; r++) {
+			for(int c = r; c < 6; c++) {
+				H.data[r*6+c] = acc[k];
+				H.data[c*6+r] = acc[k++];
+			}
+			g.data[r] = -acc[21+r];
+		}
+
+		if(!solver.setA(H))
+			return false;
+		solver.solve(g, delta);
+
+		double wx = delta.data[0], wy = delta.data[1], wz = delta.data[2];
+		double theta = Math.sqrt(wx*wx + wy*wy + wz*wz);
+		if(Double.isNaN(theta))
+			return false;
+
+		if(theta > 0) {
+			rod.setTheta(theta);
+			rod.unitAxisRotation.set(wx/theta, wy/theta, wz/theta);
+			ConvertRotation3D_F64.rodriguesToMatrix(rod, dR);
+		} else
+			CommonOps.setIdentity(dR);
+
+		CommonOps.mult(dR, currToRef.R, R);
+		currToRef.R.set(R);
+		GeometryMath_F64.mult(dR, currToRef.T, currToRef.T);
+		currToRef.T.x += delta.data[3];
+		currToRef.T.y += delta.data[4];
+		currToRef.T.z += delta.data[5];
+		return true;
+	}
+
+	private void swap() {
+		Frame f = reference;
+		reference = current;
+		current = f;
+	}
+
+	@Override
+	public Point3D_F64 getPoint3DFromPixel(int pixelx, int pixely) {
+		if(depth == null || !depth.isInBounds(pixelx, pixely))
+			return null;
+		int d = depth.get(pixelx, pixely);
+		if(d == 0)
+			return null;
+		point.z = d * depthScale;
+		point.x = (pixelx - intrinsics.cx) / intrinsics.fx * point.z;
+		point.y = (pixely - intrinsics.cy) / intrinsics.fy * point.z;
+		return point;
+	}
+
+	@Override
+	public int getInlierCount() {
+		return inliers;
+	}
+
+	/**
+	 * ICP does not track features
+	 */
+	@Override
+	public Point3D_F64 getTrackLocation(int index) {
+		return null;
+	}
+
+	/**
+	 * ICP does not track features
+	 */
+	@Override
+	public double getTrackDepth(int index) {
+		return Double.NaN;
+	}
+
+	/**
+	 * @return Ratio of valid pixels with correspondences at the finest level
+	 */
+	@Override
+	public double getQuality() {
+		return quality;
+	}
+
+	/**
+	 * @return Processing time of the last frame in ms
+	 */
+	public long getProcessingTime() {
+		return time_ms;
+	}
+
+	@Override
+	public void reset() {
+		reset(new Se3_F64());
+	}
+
+	@Override
+	public void reset(Se3_F64 initialState) {
+		refToWorld.set(initialState);
+		currToWorld.set(initialState);
+		currToRef.reset();
+		first   = true;
+		fault   = false;
+		quality = 0;
+		inliers = 0;
+	}
+
+	@Override
+	public boolean isFault() {
+		return fault;
+	}
+
+	@Override
+	public Se3_F64 getCameraToWorld() {
+		return currToWorld;
+	}
+
+	@Override
+	public ImageType<GrayU8> getVisualType() {
+		return ImageType.single(GrayU8.class);
+	}
+
+	@Override
+	public Class<GrayU16> getDepthType() {
+		return GrayU16.class;
+	}
+
+	/**
+	 * Depth pyramid of one frame with precomputed vertices and normals
+	 */
+	private class Frame {
+
+		Level[] level = new Level[LEVELS];
+
+		Frame(IntrinsicParameters p) {
+			int s = decimation;
+			for(int l = 0; l < LEVELS; l++) {
+				level[l] = new Level(p.width / s, p.height / s, p.fx / s, p.fy / s, p.cx / s, p.cy / s);
+				s *= 2;
+			}
+		}
+
+		void setDepth(GrayU16 depth) {
+			level[0].decimate(depth, decimation);
+			for(int l = 1; l < LEVELS; l++)
+				level[l].decimate(level[l-1]);
+			for(int l = 0; l < LEVELS; l++)
+				level[l].computeVerticesAndNormals();
+		}
+	}
+
+	private class Level {
+
+		final int width, height;
+		final double fx, fy, cx, cy;
+
+		final float[] depth;
+		final float[] vx, vy, vz;
+		final float[] nx, ny, nz;
+
+		int valid;
+
+		Level(int width, int height, double fx, double fy, double cx, double cy) {
+			this.width = width; this.height = height;
+			this.fx = fx; this.fy = fy; this.cx = cx; this.cy = cy;
+			int n = width * height;
+			depth = new float[n];
+			vx = new float[n]; vy = new float[n]; vz = new float[n];
+			nx = new float[n]; ny = new float[n]; nz = new float[n];
+		}
+
+		/**
+		 * Averages valid depth values of s x s blocks of the depth image
+		 */
+		void decimate(GrayU16 in, int s) {
+			for(int y = 0; y < height; y++) {
+				for(int x = 0; x < width; x++) {
+					int sum = 0, count = 0;
+					for(int dy = 0; dy < s; dy++) {
+						int idx = in.startIndex + (y*s+dy) * in.stride + x*s;
+						for(int dx = 0; dx < s; dx++) {
+							int d = in.data[idx+dx] & 0xFFFF;
+							if(d > 0) { sum += d; count++; }
+						}
+					}
+					float z = count > 0 ? sum * depthScale / count : 0;
+					depth[y*width+x] = z > MAX_DEPTH ? 0 : z;
+				}
+			}
+		}
+
+		/**
+		 * Averages valid depth values of 2 x 2 blocks of the finer level
+		 */
+		void decimate(Level in) {
+			for(int y = 0; y < height; y++) {
+				for(int x = 0; x < width; x++) {
+					float sum = 0; int count = 0;
+					for(int dy = 0; dy < 2; dy++) {
+						int idx = (y*2+dy) * in.width + x*2;
+						for(int dx = 0; dx < 2; dx++) {
+							float d = in.depth[idx+dx];
+							if(d > 0) { sum += d; count++; }
+						}
+					}
+					depth[y*width+x] = count > 0 ? sum / count : 0;
+				}
+			}
+		}
+
+		void computeVerticesAndNormals() {
+			valid = 0;
+			for(int y = 0, idx = 0; y < height; y++) {
+				for(int x = 0; x < width; x++, idx++) {
+					float z = depth[idx];
+					vz[idx] = z;
+					vx[idx] = (float)((x - cx) / fx * z);
+					vy[idx] = (float)((y - cy) / fy * z);
+				}
+			}
+
+			for(int y = 0, idx = 0; y < height; y++) {
+				for(int x = 0; x < width; x++, idx++) {
+					nx[idx] = Float.NaN;
+					if(x == width-1 || y == height-1 || depth[idx] == 0 || depth[idx+1] == 0 || depth[idx+width] == 0)
+						continue;
+
+					float ax = vx[idx+1] - vx[idx], ay = vy[idx+1] - vy[idx], az = vz[idx+1] - vz[idx];
+					float bx = vx[idx+width] - vx[idx], by = vy[idx+width] - vy[idx], bz = vz[idx+width] - vz[idx];
+
+					float cx = ay*bz - az*by;
+					float cy = az*bx - ax*bz;
+					float cz = ax*by - ay*bx;
+					float n  = (float)Math.sqrt(cx*cx + cy*cy + cz*cz);
+					if(n == 0)
+						continue;
+
+					// orient normal towards the camera
+					if(cx*vx[idx] + cy*vy[idx] + cz*vz[idx] > 0)
+						n = -n;
+
+					nx[idx] = cx / n; ny[idx] = cy / n; nz[idx] = cz / n;
+					valid++;
+				}
+			}
+		}
+	}
+}
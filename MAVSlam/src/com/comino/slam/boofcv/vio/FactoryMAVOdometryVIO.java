@@ -23,11 +23,11 @@ import org.ddogleg.fitting.modelset.ransac.Ransac;
 
 import com.comino.slam.boofcv.vio.odometry.MAVOdomPixelDepthPnPVIO;
 import com.comino.slam.boofcv.vio.odometry.MAVOdomPixelDepthPnP_to_DepthVisualOdometryVIO;
+import com.comino.slam.boofcv.vio.odometry.MAVRefinePnPWeighted;
 import com.comino.slam.boofcv.vo.odometry.MAVOdomPixelDepthPnP;
 
 import boofcv.abst.feature.tracker.PointTrackerTwoPass;
 import boofcv.abst.geo.Estimate1ofPnP;
-import boofcv.abst.geo.RefinePnP;
 import boofcv.abst.sfm.DepthSparse3D_to_PixelTo3D;
 import boofcv.abst.sfm.ImagePixelTo3D;
 import boofcv.alg.geo.DistanceModelMonoPixels;
@@ -94,10 +94,10 @@ public class FactoryMAVOdometryVIO {
 		ModelMatcher<Se3_F64, Point2D3D> motion =
 				new Ransac<Se3_F64, Point2D3D>(2323, manager, generator, distance, ransacIterations, ransacTOL);
 
-		RefinePnP refine = null;
+		MAVRefinePnPWeighted refine = null;
 
 		if( refineIterations > 0 ) {
-			refine = FactoryMultiView.refinePnP(1e-12,refineIterations);
+			refine = new MAVRefinePnPWeighted(1e-12,refineIterations);
 		}
 
 		MAVOdomPixelDepthPnPVIO<Vis> alg = new MAVOdomPixelDepthPnPVIO<Vis>
@@ -19,21 +19,24 @@
 package com.comino.slam.boofcv.vio.odometry;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 import org.ddogleg.fitting.modelset.ModelMatcher;
+import org.ddogleg.fitting.modelset.ransac.Ransac;
 
 import boofcv.abst.feature.tracker.PointTrack;
 import boofcv.abst.feature.tracker.PointTracker;
 import boofcv.abst.feature.tracker.PointTrackerTwoPass;
-import boofcv.abst.geo.RefinePnP;
 import boofcv.abst.sfm.ImagePixelTo3D;
 import boofcv.struct.distort.PointTransform_F64;
 import boofcv.struct.geo.Point2D3D;
 import boofcv.struct.image.ImageBase;
 import boofcv.struct.sfm.Point2D3DTrack;
+import georegression.geometry.GeometryMath_F64;
 import georegression.struct.point.Point2D_F64;
 import georegression.struct.point.Point3D_F64;
+import georegression.struct.point.Vector3D_F64;
 import georegression.struct.se.Se3_F64;
 import georegression.transform.se.SePointOps_F64;
 
@@ -57,10 +60,47 @@ import georegression.transform.se.SePointOps_F64;
  * used to estimate 3D feature locations. For example if a stereo camera is used
  * then 3-view geometry can't be used to improve performance.
  *
+ * Tracks without valid or with far depth are not dropped but kept as inverse
+ * depth landmarks anchored in the view they were spawned. Their depth is
+ * triangulated from the estimated motion in subsequent frames and they are
+ * used for motion estimation once the depth has converged.
+ *
+ * The depth of landmarks is re-sampled in every frame where the track pixel has
+ * a valid depth and fused into a running estimate with variance. The variance
+ * weights the landmarks in the non-linear refinement of the pose.
+ *
  * @author Peter Abeles, modified by Eike Mansfeld
  */
 public class MAVOdomPixelDepthPnPVIO<T extends ImageBase>  {
 
+	// depth measurements beyond this distance are handled as inverse depth landmarks
+	private static final double MAX_DEPTH              = 4.0;
+	// relative standard deviation of far depth measurements used as prior
+	private static final double FAR_DEPTH_REL_STD      = 0.3;
+	// inverse depth prior (1/m) and its standard deviation without depth measurement
+	private static final double INIT_INV_DEPTH         = 1.0 / MAX_DEPTH;
+	private static final double INIT_INV_DEPTH_STD     = 1.0;
+	// lower bound of the inverse depth, the landmark is at infinity below
+	private static final double MIN_INV_DEPTH          = 1e-3;
+	// Gauss-Newton iterations of an inverse depth update
+	private static final int    INV_DEPTH_ITERATIONS   = 3;
+	// relative standard deviation of the inverse depth for a converged landmark
+	private static final double CONVERGED_REL_STD      = 0.1;
+	// reprojection errors are checked once the relative standard deviation is below
+	private static final double CHECKED_REL_STD        = 0.5;
+	// triangulated landmarks farther away are not used for motion estimation
+	private static final double MAX_TRIANGULATED_DEPTH = 15.0;
+	// drop inverse depth landmarks if their reprojection error exceeds this (pixels)
+	private static final double MAX_TRIANGULATION_ERR  = 3.0;
+	// drop inverse depth landmarks which did not converge within this number of frames
+	private static final int    MAX_PENDING_TICKS      = 60;
+	// depth noise model of the sensor: sigma = DEPTH_NOISE * z^2
+	private static final double DEPTH_NOISE            = 0.01;
+	// gate for fused depth measurements in standard deviations
+	private static final double DEPTH_FUSION_GATE      = 3.0;
+	// limits the variance reduction as depth errors are correlated between frames
+	private static final int    DEPTH_FUSION_MAX       = 10;
+
 	// when the inlier set is less than this number new features are detected
 	private int thresholdAdd;
 
@@ -81,7 +121,7 @@ public class MAVOdomPixelDepthPnPVIO<T extends ImageBase>  {
 	private PointTransform_F64 normToPixel;
 
 	// non-linear refinement of pose estimate
-	private RefinePnP refine;
+	private MAVRefinePnPWeighted refine;
 
 	// estimate the camera motion up to a scale factor from two sets of point
 	// correspondences
@@ -90,6 +130,9 @@ public class MAVOdomPixelDepthPnPVIO<T extends ImageBase>  {
 	// location of tracks in the image that are included in the inlier set
 	private List<Point2D3DTrack> inlierTracks = new ArrayList<Point2D3DTrack>();
 
+	// tracks with valid depth used for motion estimation
+	private List<Point2D3D> depthTracks = new ArrayList<Point2D3D>();
+
 	// transform from key frame to world frame
 	private Se3_F64 keyToWorld = new Se3_F64();
 	// transform from the current camera view to the key frame
@@ -106,8 +149,29 @@ public class MAVOdomPixelDepthPnPVIO<T extends ImageBase>  {
 	private Se3_F64 temp = new Se3_F64();
 
 	private Point3D_F64 lastTrackAdded = new Point3D_F64();
+	// mounting offset of the depth sensor; locations are stored in the depth sensor frame
+	// and shifted into the camera frame (location + offset) for motion estimation only
 	private Point3D_F64 offset = null;
 
+	// used for triangulation of inverse depth landmarks
+	private Se3_F64 anchorToCurr = new Se3_F64();
+	private Point3D_F64 ray = new Point3D_F64();
+	private Point3D_F64 dir = new Point3D_F64();
+
+	// size of one pixel in normalized image coordinates
+	private double pixelNorm = 1e-3;
+
+	// depth variance and number of fused depth measurements per landmark
+	private double[] landmarkVar   = new double[256];
+	private int[]    landmarkCount = new int[256];
+	private int      landmarks     = 0;
+
+	// weights of the inlier set for the refinement
+	private double[] refineWeights = new double[256];
+
+	private Point3D_F64 measured  = new Point3D_F64();
+	private Point3D_F64 predicted = new Point3D_F64();
+
 	private double quality = 0;
 
 
@@ -129,8 +193,8 @@ public class MAVOdomPixelDepthPnPVIO<T extends ImageBase>  {
 	 * @param pixelTo3D
 	 *            Computes the 3D location of pixels.
 	 * @param refine
-	 *            Optional algorithm for refining the pose estimate. Can be
-	 *            null.
+	 *            Optional weighted algorithm for refining the pose estimate.
+	 *            Can be null.
 	 * @param tracker
 	 *            Point feature tracker.
 	 * @param pixelToNorm
@@ -140,7 +204,7 @@ public class MAVOdomPixelDepthPnPVIO<T extends ImageBase>  {
 	 *            Converts from normalized image coordinates into raw pixels
 	 */
 	public MAVOdomPixelDepthPnPVIO(int thresholdAdd, int thresholdRetire, boolean doublePass, Point3D_F64 offset,
-			ModelMatcher<Se3_F64, Point2D3D> motionEstimator, ImagePixelTo3D pixelTo3D, RefinePnP refine,
+			ModelMatcher<Se3_F64, Point2D3D> motionEstimator, ImagePixelTo3D pixelTo3D, MAVRefinePnPWeighted refine,
 			PointTrackerTwoPass<T> tracker, PointTransform_F64 pixelToNorm, PointTransform_F64 normToPixel) {
 		this.thresholdAdd = thresholdAdd;
 		this.thresholdRetire = thresholdRetire;
@@ -208,8 +272,13 @@ public class MAVOdomPixelDepthPnPVIO<T extends ImageBase>  {
 		List<PointTrack> all = tracker.getAllTracks(null);
 
 		for (PointTrack t : all) {
-			Point2D3DTrack p = t.getCookie();
-			SePointOps_F64.transform(keyToCurr, p.location, p.location);
+			Point2D3DTrackVIO p = t.getCookie();
+			if(p.hasDepth)
+				SePointOps_F64.transform(keyToCurr, p.location, p.location);
+			else {
+				p.anchorToKey.concat(keyToCurr, temp);
+				p.anchorToKey.set(temp);
+			}
 		}
 
 		concatMotion();
@@ -226,10 +295,17 @@ public class MAVOdomPixelDepthPnPVIO<T extends ImageBase>  {
 		int num = 0;
 
 		for (PointTrack t : all) {
-			Point2D3DTrack p = t.getCookie();
-			if (tick - p.lastInlier > thresholdRetire) {
-				tracker.dropTrack(t);
-				num++;
+			Point2D3DTrackVIO p = t.getCookie();
+			if (p.hasDepth) {
+				if (tick - p.lastInlier > thresholdRetire) {
+					tracker.dropTrack(t);
+					num++;
+				}
+			} else {
+				if (tick - p.lastUpdate > thresholdRetire || tick - p.spawnTick > MAX_PENDING_TICKS) {
+					tracker.dropTrack(t);
+					num++;
+				}
 			}
 		}
 
@@ -241,7 +317,7 @@ public class MAVOdomPixelDepthPnPVIO<T extends ImageBase>  {
 	 */
 	private void addNewTracks() {
 		// System.out.println("----------- Adding new tracks ---------------");
-		Point2D3DTrack p;
+		Point2D3DTrackVIO p;
 
 		tracker.spawnTracks();
 		try {
@@ -251,13 +327,21 @@ public class MAVOdomPixelDepthPnPVIO<T extends ImageBase>  {
 			for (PointTrack t : spawned) {
 				p = t.getCookie();
 				if (p == null) {
-					t.cookie = p = new Point2D3DTrack();
+					t.cookie = p = new Point2D3DTrackVIO();
+					p.index = addLandmark();
 				}
+				landmarkCount[p.index] = 0;
 
-				// discard point if it can't localized
-				if (!pixelTo3D.process(t.x, t.y) || pixelTo3D.getW() == 0) {
+				pixelToNorm.compute(t.x, t.y, p.observation);
 
-					tracker.dropTrack(t);
+				// keep point as inverse depth landmark if it can't be localized
+				if (!pixelTo3D.process(t.x, t.y) || pixelTo3D.getW() == 0) {
+					p.initInverseDepth(currToKey, p.observation, INIT_INV_DEPTH, INIT_INV_DEPTH_STD, tick);
+				} else if (pixelTo3D.getZ() > MAX_DEPTH) {
+					// depth along the anchor ray is measured in the camera frame;
+					// sigma_rho = sigma_z / z^2
+					double z = pixelTo3D.getZ() + offset.z;
+					p.initInverseDepth(currToKey, p.observation, 1.0 / z, FAR_DEPTH_REL_STD / z, tick);
 				} else {
 					Point3D_F64 X = p.getLocation();
 
@@ -270,8 +354,10 @@ public class MAVOdomPixelDepthPnPVIO<T extends ImageBase>  {
 					// not needed since the current frame was just set to be the key
 					// frame
 
-					p.lastInlier = tick;
-					pixelToNorm.compute(t.x, t.y, p.observation);
+					landmarkVar[p.index] = depthVariance(pixelTo3D.getZ());
+					landmarkCount[p.index] = 1;
+
+					p.initDepth(tick);
 				}
 			}
 		} catch(Exception e) {
@@ -286,47 +372,52 @@ public class MAVOdomPixelDepthPnPVIO<T extends ImageBase>  {
 	 * @return true if successful.
 	 */
 	private boolean estimateMotion() {
-		Point2D3D p = null;
-		List<PointTrack> active = tracker.getActiveTracks(null);
+		Point2D3DTrackVIO p = null;
+		List<PointTrack> all = tracker.getActiveTracks(null);
+		List<PointTrack> active = new ArrayList<PointTrack>();
 		List<Point2D3D> obs = new ArrayList<Point2D3D>();
 
+		depthTracks.clear();
 
-		for (PointTrack t : active) {
+		for (PointTrack t : all) {
 			p = t.getCookie();
 			pixelToNorm.compute(t.x, t.y, p.observation);
 
+			// inverse depth landmarks are not used until converged
+			if (!p.hasDepth)
+				continue;
+
 			// Add offset TODO: do this in modelMatcher
 			p.location.z += offset.z;
 			p.location.y += offset.y;
 			p.location.x += offset.x;
 
+			depthTracks.add(p);
+			active.add(t);
 			obs.add(p);
 		}
 
 		// estimate the motion up to a scale factor in translation
-		if (!motionEstimator.process(obs))
+		if (!motionEstimator.process(obs)) {
+			removeOffset();
 			return false;
+		}
 
 		if (doublePass) {
-			if (!performSecondPass(active, obs))
+			if (!performSecondPass(active, obs)) {
+				removeOffset();
 				return false;
+			}
 		}
 		tracker.finishTracking();
 
-
-        // undo offset; this is obsolete if in ModelMatcher
-		for (PointTrack t : active) {
-			p = t.getCookie();
-			p.location.z -= offset.z;
-			p.location.y -= offset.y;
-			p.location.x -= offset.x;
-		}
-
+		removeOffset();
 
 		Se3_F64 keyToCurr;
 
 		if (refine != null) {
 			keyToCurr = new Se3_F64();
+			refine.setWeights(computeRefineWeights());
 			refine.fitModel(motionEstimator.getMatchSet(), motionEstimator.getModelParameters(), keyToCurr);
 		} else {
 			keyToCurr = motionEstimator.getModelParameters();
@@ -348,9 +439,107 @@ public class MAVOdomPixelDepthPnPVIO<T extends ImageBase>  {
 		else
 			this.quality = 0;
 
+		triangulateInverseDepthTracks(keyToCurr);
+		fuseLandmarkDepth(keyToCurr);
+
 		return true;
 	}
 
+	/**
+	 * Computes the weights of the inlier set for the refinement. The depth uncertainty
+	 * of a landmark is propagated into the image by the estimated translation.
+	 */
+	private double[] computeRefineWeights() {
+		List<Point2D3D> matches = motionEstimator.getMatchSet();
+		double translation = motionEstimator.getModelParameters().T.norm();
+		double obsVar = pixelNorm * pixelNorm;
+
+		if (refineWeights.length < matches.size())
+			refineWeights = new double[matches.size() * 2];
+
+		for (int i = 0; i < matches.size(); i++) {
+			Point2D3DTrackVIO p = (Point2D3DTrackVIO) matches.get(i);
+			double z = p.location.z;
+			if (z <= 0) {
+				refineWeights[i] = 1;
+				continue;
+			}
+			double sigma = Math.sqrt(landmarkVar[p.index]) * translation / (z * z);
+			refineWeights[i] = obsVar / (obsVar + sigma * sigma);
+		}
+		return refineWeights;
+	}
+
+	/**
+	 * Re-samples the depth of all inlier landmarks and fuses valid measurements into
+	 * the landmark location. Measurements inconsistent with the current estimate are
+	 * ignored.
+	 *
+	 * @param keyToCurr Estimated transform from the key frame to the current view
+	 */
+	private void fuseLandmarkDepth(Se3_F64 keyToCurr) {
+
+		List<PointTrack> all = tracker.getActiveTracks(null);
+
+		for (PointTrack t : all) {
+			Point2D3DTrackVIO p = t.getCookie();
+			if (!p.hasDepth || p.lastInlier != tick)
+				continue;
+
+			if (!pixelTo3D.process(t.x, t.y) || pixelTo3D.getW() == 0 || pixelTo3D.getZ() > MAX_DEPTH)
+				continue;
+
+			// landmark in the current camera frame
+			measured.set(p.location.x + offset.x, p.location.y + offset.y, p.location.z + offset.z);
+			SePointOps_F64.transform(keyToCurr, measured, predicted);
+
+			double var  = landmarkVar[p.index];
+			double varM = depthVariance(pixelTo3D.getZ());
+			double dz   = pixelTo3D.getZ() + offset.z - predicted.z;
+
+			if (dz * dz > DEPTH_FUSION_GATE * DEPTH_FUSION_GATE * (var + varM))
+				continue;
+
+			// measurement in key frame coordinates without the mounting offset like the location
+			measured.set(pixelTo3D.getX() + offset.x, pixelTo3D.getY() + offset.y, pixelTo3D.getZ() + offset.z);
+			SePointOps_F64.transform(currToKey, measured, measured);
+			measured.x -= offset.x; measured.y -= offset.y; measured.z -= offset.z;
+
+			double gain = var / (var + varM);
+			p.location.x += gain * (measured.x - p.location.x);
+			p.location.y += gain * (measured.y - p.location.y);
+			p.location.z += gain * (measured.z - p.location.z);
+
+			landmarkVar[p.index] = Math.max((1 - gain) * var, varM / DEPTH_FUSION_MAX);
+			landmarkCount[p.index]++;
+		}
+	}
+
+	private double depthVariance(double z) {
+		double sigma = DEPTH_NOISE * z * z;
+		return sigma * sigma;
+	}
+
+	private int addLandmark() {
+		if (landmarks == landmarkVar.length) {
+			landmarkVar   = Arrays.copyOf(landmarkVar, landmarks * 2);
+			landmarkCount = Arrays.copyOf(landmarkCount, landmarks * 2);
+		}
+		return landmarks++;
+	}
+
+	/**
+	 * Undo offset; this is obsolete if in ModelMatcher
+	 */
+	private void removeOffset() {
+		for (Point2D3D p : depthTracks) {
+			p.location.z -= offset.z;
+			p.location.y -= offset.y;
+			p.location.x -= offset.x;
+		}
+		depthTracks.clear();
+	}
+
 	private boolean performSecondPass(List<PointTrack> active, List<Point2D3D> obs) {
 		Se3_F64 keyToCurr = motionEstimator.getModelParameters();
 
@@ -360,7 +549,9 @@ public class MAVOdomPixelDepthPnPVIO<T extends ImageBase>  {
 		// predict where each track should be given the just estimated motion
 		List<PointTrack> all = tracker.getAllTracks(null);
 		for (PointTrack t : all) {
-			Point2D3D p = t.getCookie();
+			Point2D3DTrackVIO p = t.getCookie();
+			if (!p.hasDepth)
+				continue;
 
 			SePointOps_F64.transform(keyToCurr, p.location, cameraPt);
 			normToPixel.compute(cameraPt.x / cameraPt.z, cameraPt.y / cameraPt.z, predicted);
@@ -372,17 +563,107 @@ public class MAVOdomPixelDepthPnPVIO<T extends ImageBase>  {
 
 		active.clear();
 		obs.clear();
-		tracker.getActiveTracks(active);
+		all.clear();
+		tracker.getActiveTracks(all);
 
-		for (PointTrack t : active) {
-			Point2D3D p = t.getCookie();
+		for (PointTrack t : all) {
+			Point2D3DTrackVIO p = t.getCookie();
 			pixelToNorm.compute(t.x, t.y, p.observation);
+			if (!p.hasDepth)
+				continue;
+			active.add(t);
 			obs.add(p);
 		}
 
 		return motionEstimator.process(obs);
 	}
 
+	/**
+	 * Updates the inverse depth of landmarks along their anchor ray using the
+	 * current observation and the estimated motion. The previous estimate acts as
+	 * prior and the inverse depth minimizing prior and reprojection error of the
+	 * observation is found by Gauss-Newton iterations, as a point on the anchor
+	 * ray projects linearly in the inverse depth up to the perspective division.
+	 * Landmarks whose inverse depth has converged are moved into the key frame and
+	 * used for motion estimation in the next frame.
+	 *
+	 * @param keyToCurr Estimated transform from the key frame to the current view
+	 */
+	private void triangulateInverseDepthTracks(Se3_F64 keyToCurr) {
+
+		List<PointTrack> all = tracker.getActiveTracks(null);
+
+		double info = 1.0 / (pixelNorm * pixelNorm);
+
+		for (PointTrack t : all) {
+			Point2D3DTrackVIO p = t.getCookie();
+			if (p.hasDepth)
+				continue;
+
+			p.anchorToKey.concat(keyToCurr, anchorToCurr);
+
+			// direction of the anchor ray in the current view; the landmark is at
+			// (dir + rho * T) / rho in the current view
+			ray.set(p.anchorObs.x, p.anchorObs.y, 1);
+			GeometryMath_F64.mult(anchorToCurr.R, ray, dir);
+			Vector3D_F64 at = anchorToCurr.T;
+
+			double u = p.observation.x;
+			double v = p.observation.y;
+
+			// reject landmarks which are not consistent with the current estimate
+			if (p.getInverseDepthSigma() < CHECKED_REL_STD * p.rho) {
+				double w = dir.z + p.rho * at.z;
+				if (w <= 0) {
+					tracker.dropTrack(t);
+					continue;
+				}
+				double eu = (dir.x + p.rho * at.x) / w - u;
+				double ev = (dir.y + p.rho * at.y) / w - v;
+				if (Math.sqrt(eu * eu + ev * ev) > MAX_TRIANGULATION_ERR * pixelNorm) {
+					tracker.dropTrack(t);
+					continue;
+				}
+			}
+
+			double rho = p.rho; double H = p.rhoInfo;
+			for (int k = 0; k < INV_DEPTH_ITERATIONS; k++) {
+				double w = dir.z + rho * at.z;
+				if (w <= 0)
+					break;
+				double pu = (dir.x + rho * at.x) / w;
+				double pv = (dir.y + rho * at.y) / w;
+				// derivatives of the projection by the inverse depth
+				double ju = (at.x - pu * at.z) / w;
+				double jv = (at.y - pv * at.z) / w;
+				H = p.rhoInfo + info * (ju * ju + jv * jv);
+				double g = p.rhoInfo * (rho - p.rho) + info * (ju * (pu - u) + jv * (pv - v));
+				rho = Math.max(MIN_INV_DEPTH, rho - g / H);
+			}
+			p.rho     = rho;
+			p.rhoInfo = H;
+			p.lastUpdate = tick;
+
+			double sigma = p.getInverseDepthSigma();
+			if (p.rho < 1.0 / MAX_TRIANGULATED_DEPTH || sigma > CONVERGED_REL_STD * p.rho)
+				continue;
+
+			// converged: move the landmark into the key frame, stored like depth measurements
+			// without the mounting offset
+			double d = p.getDepth();
+			ray.scale(d);
+			SePointOps_F64.transform(p.anchorToKey, ray, p.location);
+			p.location.x -= offset.x;
+			p.location.y -= offset.y;
+			p.location.z -= offset.z;
+			p.hasDepth = true;
+			p.lastInlier = tick;
+
+			// sigma_z = sigma_rho / rho^2
+			landmarkVar[p.index] = (sigma * d * d) * (sigma * d * d);
+		}
+	}
+
 	//MSP
 
 	public Point2D3D getObservation(int index) {
@@ -429,6 +710,44 @@ public class MAVOdomPixelDepthPnPVIO<T extends ImageBase>  {
 		keyToWorld.set(initialState);
 	}
 
+	/**
+	 * Re-anchors the current view to the given pose without resetting the tracker. Depth
+	 * tracks which were inliers of the last estimate are kept, all other tracks are dropped.
+	 * The current view becomes the key frame, so the next frame is tracked against the
+	 * surviving tracks without re-detection.
+	 *
+	 * @param initialState Pose of the current view
+	 * @param minTracks Minimum number of surviving tracks
+	 * @return false if too few tracks would survive; the tracker is unchanged and a full
+	 *         reset is required then
+	 */
+	public boolean softReset(Se3_F64 initialState, int minTracks) {
+		if (first)
+			return false;
+
+		// count first, the tracker is left untouched if the re-anchor fails
+		int kept = 0;
+		List<PointTrack> all = tracker.getAllTracks(null);
+		for (PointTrack t : all) {
+			Point2D3DTrackVIO p = t.getCookie();
+			if (p.hasDepth && p.lastInlier == tick)
+				kept++;
+		}
+
+		if (kept < minTracks)
+			return false;
+
+		for (PointTrack t : all) {
+			Point2D3DTrackVIO p = t.getCookie();
+			if (!p.hasDepth || p.lastInlier != tick)
+				tracker.dropTrack(t);
+		}
+
+		changePoseToReference();
+		keyToWorld.set(initialState);
+		return true;
+	}
+
 
 	public PointTracker<T> getTracker() {
 		return tracker;
@@ -439,6 +758,35 @@ public class MAVOdomPixelDepthPnPVIO<T extends ImageBase>  {
 		return motionEstimator;
 	}
 
+	/**
+	 * Sets the number of RANSAC iterations if the motion estimator is RANSAC based
+	 */
+	public void setRansacIterations(int iterations) {
+		if(motionEstimator instanceof Ransac)
+			((Ransac<?,?>)motionEstimator).setMaxIterations(iterations);
+	}
+
+	public int getRansacIterations() {
+		if(motionEstimator instanceof Ransac)
+			return ((Ransac<?,?>)motionEstimator).getMaxIterations();
+		return 0;
+	}
+
+	/**
+	 * Sets the number of iterations of the non-linear refinement if enabled
+	 */
+	public void setRefineIterations(int iterations) {
+		if(refine != null)
+			refine.setMaxIterations(iterations);
+	}
+
+	/**
+	 * Enables the second tracking pass using the predicted motion
+	 */
+	public void setDoublePass(boolean doublePass) {
+		this.doublePass = doublePass;
+	}
+
 
 	public List<Point2D3DTrack> getInlierTracks() {
 		return inlierTracks;
@@ -447,6 +795,13 @@ public class MAVOdomPixelDepthPnPVIO<T extends ImageBase>  {
 
 	public void setPixelToNorm(PointTransform_F64 pixelToNorm) {
 		this.pixelToNorm = pixelToNorm;
+
+		// estimate size of one pixel in normalized coordinates
+		Point2D_F64 n0 = new Point2D_F64();
+		Point2D_F64 n1 = new Point2D_F64();
+		pixelToNorm.compute(0, 0, n0);
+		pixelToNorm.compute(1, 0, n1);
+		this.pixelNorm = Math.abs(n1.x - n0.x);
 	}
 
 
@@ -458,4 +813,36 @@ public class MAVOdomPixelDepthPnPVIO<T extends ImageBase>  {
 	public long getTick() {
 		return tick;
 	}
+
+	/**
+	 * @return Depth of the track's landmark in the current camera frame or NaN if not
+	 *         triangulated yet
+	 */
+	public double getCameraDepth(Point2D3DTrack t) {
+		Point2D3DTrackVIO p = (Point2D3DTrackVIO) t;
+		if (!p.hasDepth)
+			return Double.NaN;
+		// z of currToKey^-1 * (location + offset)
+		double dx = p.location.x + offset.x - currToKey.T.x;
+		double dy = p.location.y + offset.y - currToKey.T.y;
+		double dz = p.location.z + offset.z - currToKey.T.z;
+		return currToKey.R.get(0,2) * dx + currToKey.R.get(1,2) * dy + currToKey.R.get(2,2) * dz;
+	}
+
+	/**
+	 * @return Standard deviation of the fused depth of the track's landmark
+	 */
+	public double getDepthSigma(Point2D3DTrack t) {
+		Point2D3DTrackVIO p = (Point2D3DTrackVIO) t;
+		if (!p.hasDepth)
+			return Double.NaN;
+		return Math.sqrt(landmarkVar[p.index]);
+	}
+
+	/**
+	 * @return Number of depth measurements fused into the track's landmark
+	 */
+	public int getDepthCount(Point2D3DTrack t) {
+		return landmarkCount[((Point2D3DTrackVIO) t).index];
+	}
 }
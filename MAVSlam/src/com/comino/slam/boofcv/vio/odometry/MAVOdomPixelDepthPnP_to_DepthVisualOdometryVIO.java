@@ -76,9 +76,26 @@ public class MAVOdomPixelDepthPnP_to_DepthVisualOdometryVIO<Vis extends ImageBas
 		this.depthType = depthType;
 	}
 
+	/**
+	 * @return Low level algorithm
+	 */
+	public MAVOdomPixelDepthPnPVIO<Vis> getAlgorithm() {
+		return alg;
+	}
+
+	/**
+	 * @return Location of the track in key frame coordinates, taken from the active
+	 *         tracks of the last processed frame
+	 */
 	@Override
 	public Point3D_F64 getTrackLocation(int index) {
-		return alg.getObservation(index).location;
+		Point2D3D p = active.get(index).getCookie();
+		return p.location;
+	}
+
+	@Override
+	public double getTrackDepth(int index) {
+		return alg.getCameraDepth(active.get(index).getCookie());
 	}
 
 	@Override
@@ -104,8 +121,8 @@ public class MAVOdomPixelDepthPnP_to_DepthVisualOdometryVIO<Vis extends ImageBas
 
 	@Override
 	public boolean isNew(int index) {
-		PointTrack t = alg.getTracker().getActiveTracks(null).get(index);
-		return alg.getTracker().getNewTracks(null).contains(t);
+		Point2D3DTrackVIO p = active.get(index).getCookie();
+		return p.spawnTick == alg.getTick();
 	}
 
 	@Override
@@ -156,6 +173,7 @@ public class MAVOdomPixelDepthPnP_to_DepthVisualOdometryVIO<Vis extends ImageBas
 	@Override
 	public void reset() {
 		alg.reset();
+		active.clear();
 	}
 
 	@Override
@@ -186,6 +204,19 @@ public class MAVOdomPixelDepthPnP_to_DepthVisualOdometryVIO<Vis extends ImageBas
 	@Override
 	public void reset(Se3_F64 initialState) {
 		alg.reset(initialState);
+		active.clear();
+	}
+
+	/**
+	 * Re-anchors the odometry to the given pose keeping the surviving tracks
+	 *
+	 * @return false if a full reset is required
+	 */
+	public boolean softReset(Se3_F64 initialState, int minTracks) {
+		boolean ok = alg.softReset(initialState, minTracks);
+		active.clear();
+		alg.getTracker().getActiveTracks(active);
+		return ok;
 	}
 
 }
@@ -0,0 +1,207 @@
+/*
+ * Copyright (c) 2011-2015, Peter Abeles, Eike Mansfeld. All Rights Reserved.
+ *
+ * This file is part of BoofCV (http://boofcv.org).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.comino.slam.boofcv.vio.odometry;
+
+import java.util.List;
+
+import org.ejml.data.DenseMatrix64F;
+import org.ejml.factory.LinearSolverFactory;
+import org.ejml.interfaces.linsol.LinearSolver;
+import org.ejml.ops.CommonOps;
+
+import boofcv.abst.geo.RefinePnP;
+import boofcv.struct.geo.Point2D3D;
+import georegression.geometry.ConvertRotation3D_F64;
+import georegression.geometry.GeometryMath_F64;
+import georegression.struct.point.Point3D_F64;
+import georegression.struct.se.Se3_F64;
+import georegression.struct.so.Rodrigues_F64;
+import georegression.transform.se.SePointOps_F64;
+
+/**
+ * Non-linear refinement of a PnP pose by minimizing the weighted reprojection
+ * error in normalized image coordinates. Uses Levenberg-Marquardt with a local
+ * rotation parameterization. Weights are optional and are provided in the order
+ * of the observations passed to {@link #fitModel}.
+ *
+ * @author Eike Mansfeld
+ */
+public class MAVRefinePnPWeighted implements RefinePnP {
+
+	private double convergenceTol;
+	private int    maxIterations;
+
+	private double[] weights = null;
+
+	private DenseMatrix64F H     = new DenseMatrix64F(6,6);
+	private DenseMatrix64F A     = new DenseMatrix64F(6,6);
+	private DenseMatrix64F g     = new DenseMatrix64F(6,1);
+	private DenseMatrix64F delta = new DenseMatrix64F(6,1);
+	private DenseMatrix64F dR    = new DenseMatrix64F(3,3);
+	private DenseMatrix64F R     = new DenseMatrix64F(3,3);
+
+	private LinearSolver<DenseMatrix64F> solver = LinearSolverFactory.symmPosDef(6);
+
+	private Se3_F64 current   = new Se3_F64();
+	private Se3_F64 candidate = new Se3_F64();
+
+	private Rodrigues_F64 rod = new Rodrigues_F64();
+	private Point3D_F64   X   = new Point3D_F64();
+
+	private double[] Ju = new double[6];
+	private double[] Jv = new double[6];
+
+	/**
+	 * @param convergenceTol Stop if the change in cost is less than this value
+	 * @param maxIterations Maximum number of iterations
+	 */
+	public MAVRefinePnPWeighted(double convergenceTol, int maxIterations) {
+		this.convergenceTol = convergenceTol;
+		this.maxIterations  = maxIterations;
+	}
+
+	public void setMaxIterations(int maxIterations) {
+		this.maxIterations = maxIterations;
+	}
+
+	public int getMaxIterations() {
+		return maxIterations;
+	}
+
+	/**
+	 * Sets the weights for the next call of fitModel. If null, all observations
+	 * are weighted equally.
+	 */
+	public void setWeights(double[] weights) {
+		this.weights = weights;
+	}
+
+	@Override
+	public boolean fitModel(List<Point2D3D> obs, Se3_F64 worldToCamera, Se3_F64 refined) {
+
+		current.set(worldToCamera);
+
+		double lambda = 1e-3;
+		double cost = computeCost(obs, current);
+
+		for(int iter = 0; iter < maxIterations && cost > 0; iter++) {
+
+			computeNormalEquations(obs, current);
+
+			A.set(H);
+			for(int i = 0; i < 6; i++)
+				A.data[i*7] += lambda * H.data[i*7];
+
+			if(!solver.setA(A))
+				break;
+			solver.solve(g, delta);
+			CommonOps.scale(-1, delta);
+
+			applyDelta(current, delta, candidate);
+			double candidateCost = computeCost(obs, candidate);
+
+			if(candidateCost < cost) {
+				current.set(candidate);
+				lambda /= 10;
+				boolean converged = cost - candidateCost < convergenceTol;
+				cost = candidateCost;
+				if(converged)
+					break;
+			} else {
+				lambda *= 10;
+			}
+		}
+
+		refined.set(current);
+		return true;
+	}
+
+	private void computeNormalEquations(List<Point2D3D> obs, Se3_F64 worldToCamera) {
+		H.zero(); g.zero();
+
+		for(int i = 0; i < obs.size(); i++) {
+			Point2D3D p = obs.get(i);
+			SePointOps_F64.transform(worldToCamera, p.location, X);
+			if(X.z <= 0)
+				continue;
+
+			double iz = 1.0 / X.z;
+			double x  = X.x * iz;
+			double y  = X.y * iz;
+			double ru = x - p.observation.x;
+			double rv = y - p.observation.y;
+			double w  = weight(i);
+
+			// derivatives of the projection w.r.t. a rotation and translation of the camera point
+			Ju[0] = -x*y;      Ju[1] = 1 + x*x;  Ju[2] = -y;
+			Ju[3] = iz;        Ju[4] = 0;        Ju[5] = -x*iz;
+			Jv[0] = -1 - y*y;  Jv[1] = x*y;      Jv[2] = x;
+			Jv[3] = 0;         Jv[4] = iz;       Jv[5] = -y*iz;
+
+			for(int r = 0; r < 6; r++) {
+				g.data[r] += w * (Ju[r]*ru + Jv[r]*rv);
+				for(int c = r; c < 6; c++)
+					H.data[r*6+c] += w * (Ju[r]*Ju[c] + Jv[r]*Jv[c]);
+			}
+		}
+
+		for(int r = 1; r < 6; r++)
+			for(int c = 0; c < r; c++)
+				H.data[r*6+c] = H.data[c*6+r];
+	}
+
+	private double computeCost(List<Point2D3D> obs, Se3_F64 worldToCamera) {
+		double cost = 0;
+		for(int i = 0; i < obs.size(); i++) {
+			Point2D3D p = obs.get(i);
+			SePointOps_F64.transform(worldToCamera, p.location, X);
+			if(X.z <= 0)
+				continue;
+			double ru = X.x / X.z - p.observation.x;
+			double rv = X.y / X.z - p.observation.y;
+			cost += weight(i) * (ru*ru + rv*rv);
+		}
+		return cost;
+	}
+
+	private void applyDelta(Se3_F64 in, DenseMatrix64F d, Se3_F64 out) {
+		double wx = d.data[0], wy = d.data[1], wz = d.data[2];
+		double theta = Math.sqrt(wx*wx + wy*wy + wz*wz);
+
+		if(theta > 0) {
+			rod.setTheta(theta);
+			rod.unitAxisRotation.set(wx/theta, wy/theta, wz/theta);
+			ConvertRotation3D_F64.rodriguesToMatrix(rod, dR);
+		} else
+			CommonOps.setIdentity(dR);
+
+		CommonOps.mult(dR, in.R, R);
+		out.R.set(R);
+		GeometryMath_F64.mult(dR, in.T, out.T);
+		out.T.x += d.data[3];
+		out.T.y += d.data[4];
+		out.T.z += d.data[5];
+	}
+
+	private double weight(int index) {
+		if(weights == null || index >= weights.length)
+			return 1;
+		return weights[index];
+	}
+}
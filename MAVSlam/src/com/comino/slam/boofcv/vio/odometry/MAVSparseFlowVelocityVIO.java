@@ -0,0 +1,201 @@
+/****************************************************************************
+ *
+ *   Copyright (c) 2017 Eike Mansfeld ecm@gmx.de. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ * 3. Neither the name of the copyright holder nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS
+ * OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED
+ * AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ ****************************************************************************/
+
+
+package com.comino.slam.boofcv.vio.odometry;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.ejml.data.DenseMatrix64F;
+import org.ejml.ops.CommonOps;
+
+import boofcv.abst.feature.tracker.PointTrack;
+import boofcv.abst.feature.tracker.PointTracker;
+import boofcv.struct.calib.IntrinsicParameters;
+import boofcv.struct.image.GrayU16;
+import georegression.geometry.GeometryMath_F64;
+import georegression.struct.point.Point3D_F64;
+import georegression.struct.point.Vector3D_F64;
+
+/**
+ * Lightweight velocity estimate from the sparse optical flow of a subset of the
+ * KLT tracks and the depth image. The rotation between two frames is removed
+ * using the attitude, so the remaining 3D displacement of the tracked points
+ * is caused by translation only. The velocity is the median of the displacements
+ * of all used tracks. Runs at camera rate, while full PnP may run at a lower rate.
+ *
+ * @author Eike Mansfeld
+ */
+public class MAVSparseFlowVelocityVIO {
+
+	private static final int    MAX_FLOW_TRACKS  = 40;
+	private static final int    MIN_FLOW_TRACKS  = 8;
+	private static final double MAX_DEPTH        = 4.0;
+
+	private final PointTracker<?> tracker;
+	private final double depthScale;
+
+	private IntrinsicParameters intrinsics;
+
+	private List<PointTrack> active = new ArrayList<PointTrack>();
+
+	private DenseMatrix64F R_prev  = new DenseMatrix64F(3,3);
+	private DenseMatrix64F R_delta = new DenseMatrix64F(3,3);
+
+	private Point3D_F64  p     = new Point3D_F64();
+	private Point3D_F64  q     = new Point3D_F64();
+	private Vector3D_F64 d     = new Vector3D_F64();
+
+	private double[] vx = new double[MAX_FLOW_TRACKS];
+	private double[] vy = new double[MAX_FLOW_TRACKS];
+	private double[] vz = new double[MAX_FLOW_TRACKS];
+
+	private Vector3D_F64 velocity  = new Vector3D_F64();
+
+	private long    frame       = 0;
+	private int     count       = 0;
+	private boolean valid       = false;
+
+	/**
+	 * @param tracker Tracker shared with the PnP odometry; tracks must carry a {@link Point2D3DTrackVIO} cookie
+	 * @param depthScale Scale of depth values to meters
+	 */
+	public MAVSparseFlowVelocityVIO(PointTracker<?> tracker, double depthScale) {
+		this.tracker    = tracker;
+		this.depthScale = depthScale;
+	}
+
+	public void setCalibration(IntrinsicParameters intrinsics) {
+		this.intrinsics = intrinsics;
+	}
+
+	/**
+	 * Estimates the velocity from the tracks of the current frame. The tracker must have
+	 * processed the current image before.
+	 *
+	 * @param depth Depth image of the current frame
+	 * @param camToWorld Rotation of the camera to the world frame, e.g. from the attitude
+	 * @param dt Time since the last call in seconds
+	 * @return true if a valid velocity was estimated
+	 */
+	public boolean process(GrayU16 depth, DenseMatrix64F camToWorld, double dt) {
+
+		active.clear();
+		tracker.getActiveTracks(active);
+
+		// rotation from the previous to the current camera frame
+		CommonOps.multTransA(camToWorld, R_prev, R_delta);
+
+		count = 0; frame++;
+
+		for(int i = 0; i < active.size(); i++) {
+			PointTrack t = active.get(i);
+			Object cookie = t.getCookie();
+			if(!(cookie instanceof Point2D3DTrackVIO))
+				continue;
+
+			Point2D3DTrackVIO track = (Point2D3DTrackVIO)cookie;
+
+			if(!getPoint(depth, (int)(t.x+0.5), (int)(t.y+0.5), q)) {
+				track.flowFrame = -1;
+				continue;
+			}
+
+			if(count < MAX_FLOW_TRACKS && track.flowFrame == frame - 1 && dt > 0) {
+				// displacement of the camera in world frame: -R_cw * (q - R_delta * p)
+				GeometryMath_F64.mult(R_delta, track.flowLocation, p);
+				d.set(p.x - q.x, p.y - q.y, p.z - q.z);
+				GeometryMath_F64.mult(camToWorld, d, d);
+				vx[count] = d.x / dt; vy[count] = d.y / dt; vz[count] = d.z / dt;
+				count++;
+			}
+
+			track.flowLocation.set(q);
+			track.flowFrame = frame;
+		}
+
+		R_prev.set(camToWorld);
+
+		valid = count >= MIN_FLOW_TRACKS;
+		if(valid)
+			velocity.set(median(vx, count), median(vy, count), median(vz, count));
+
+		return valid;
+	}
+
+	/**
+	 * @return Velocity of the camera in the world frame in m/s
+	 */
+	public Vector3D_F64 getVelocity() {
+		return velocity;
+	}
+
+	/**
+	 * @return Number of tracks used for the last estimate
+	 */
+	public int getTrackCount() {
+		return count;
+	}
+
+	public boolean isValid() {
+		return valid;
+	}
+
+	public void reset() {
+		frame  += 2;
+		valid   = false;
+		count   = 0;
+		velocity.set(0,0,0);
+	}
+
+	private boolean getPoint(GrayU16 depth, int x, int y, Point3D_F64 out) {
+		if(!depth.isInBounds(x, y))
+			return false;
+		double z = depth.get(x, y) * depthScale;
+		if(z <= 0 || z > MAX_DEPTH)
+			return false;
+		out.z = z;
+		out.x = (x - intrinsics.cx) / intrinsics.fx * z;
+		out.y = (y - intrinsics.cy) / intrinsics.fy * z;
+		return true;
+	}
+
+	private static double median(double[] values, int count) {
+		Arrays.sort(values, 0, count);
+		if((count & 1) == 1)
+			return values[count/2];
+		return (values[count/2-1] + values[count/2]) / 2;
+	}
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright (c) 2011-2015, Peter Abeles, Eike Mansfeld. All Rights Reserved.
+ *
+ * This file is part of BoofCV (http://boofcv.org).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.comino.slam.boofcv.vio.odometry;
+
+import boofcv.struct.sfm.Point2D3DTrack;
+import georegression.struct.point.Point2D_F64;
+import georegression.struct.point.Point3D_F64;
+import georegression.struct.se.Se3_F64;
+
+/**
+ * Track cookie which additionally holds an inverse depth landmark for tracks
+ * without a valid depth measurement. The landmark is parameterized by the
+ * anchor view, the normalized observation in the anchor view and the inverse
+ * depth rho along the anchor ray with its information (1/sigma_rho^2).
+ *
+ * @author Eike Mansfeld
+ */
+public class Point2D3DTrackVIO extends Point2D3DTrack {
+
+	// index of the landmark in the depth fusion arrays
+	public int index = -1;
+
+	// true if location is valid and the track can be used for PnP
+	public boolean hasDepth;
+
+	// transform from the anchor view to the current key frame
+	public Se3_F64 anchorToKey = new Se3_F64();
+	// normalized image coordinates in the anchor view
+	public Point2D_F64 anchorObs = new Point2D_F64();
+
+	// inverse depth along the anchor ray and its information 1/sigma^2
+	public double rho;
+	public double rhoInfo;
+
+	// tick when the track was spawned and the last triangulation update
+	public long spawnTick;
+	public long lastUpdate;
+
+	// location in the camera frame at the last velocity update
+	public Point3D_F64 flowLocation = new Point3D_F64();
+	public long flowFrame = -1;
+
+	/**
+	 * Initializes the track with a known location
+	 */
+	public void initDepth(long tick) {
+		hasDepth   = true;
+		lastInlier = tick;
+		spawnTick  = tick;
+		lastUpdate = tick;
+		flowFrame  = -1;
+	}
+
+	/**
+	 * Initializes the track as inverse depth landmark anchored in the given view. Until
+	 * triangulated, the location is unknown (NaN) and the track is never an inlier.
+	 *
+	 * @param rho Prior of the inverse depth
+	 * @param sigma Standard deviation of the prior
+	 */
+	public void initInverseDepth(Se3_F64 anchor, Point2D_F64 obs, double rho, double sigma, long tick) {
+		hasDepth   = false;
+		anchorToKey.set(anchor);
+		anchorObs.set(obs);
+		location.set(Double.NaN, Double.NaN, Double.NaN);
+		this.rho     = rho;
+		this.rhoInfo = 1.0 / (sigma * sigma);
+		lastInlier = -1;
+		spawnTick  = tick;
+		lastUpdate = tick;
+		flowFrame  = -1;
+	}
+
+	/**
+	 * @return Standard deviation of the inverse depth
+	 */
+	public double getInverseDepthSigma() {
+		return 1.0 / Math.sqrt(rhoInfo);
+	}
+
+	/**
+	 * @return Depth along the anchor ray
+	 */
+	public double getDepth() {
+		return 1.0 / rho;
+	}
+}
@@ -70,6 +70,33 @@ public class FactoryMAVPointTrackerTwoPassVIO {
 				gradient, interpInput, interpDeriv);
 	}
 
+	/**
+	 * Pyramid KLT feature tracker with motion adaptive number of pyramid layers.
+	 *
+	 * @param config Config for the tracker. The pyramid scaling defines the maximum pyramid.
+	 * @param configExtract Configuration for extracting features
+	 * @param minLayers Minimum number of layers used for tracking
+	 * @param maxLayers Maximum number of layers used for tracking
+	 * @return KLT based tracker.
+	 */
+	public static <I extends ImageGray<I>, D extends ImageGray<D>>
+	MAVPointTrackerTwoPassKltPyramidVIO<I,D> klt(PkltConfig config, ConfigGeneralDetector configExtract,
+							   int minLayers, int maxLayers,
+							   Class<I> imageType, Class<D> derivType) {
+
+		GeneralFeatureDetector<I, D> detector = createShiTomasi(configExtract, derivType);
+
+		InterpolateRectangle<I> interpInput = FactoryInterpolation.<I>bilinearRectangle(imageType);
+		InterpolateRectangle<D> interpDeriv = FactoryInterpolation.<D>bilinearRectangle(derivType);
+
+		ImageGradient<I,D> gradient = FactoryDerivative.sobel(imageType, derivType);
+
+		PyramidDiscrete<I> pyramid = FactoryPyramid.discreteGaussian(config.pyramidScaling,-1,2,true,imageType);
+
+		return new MAVPointTrackerTwoPassKltPyramidVIO<>(config.config, config.templateRadius, pyramid, detector,
+				gradient, interpInput, interpDeriv, minLayers, maxLayers);
+	}
+
 	public static <I extends ImageGray, D extends ImageGray, Desc extends TupleDesc>
 	PointTrackerTwoPass<I> dda(GeneralFeatureDetector<I, D> detector,
 							   DescribeRegionPoint<I, Desc> describe,
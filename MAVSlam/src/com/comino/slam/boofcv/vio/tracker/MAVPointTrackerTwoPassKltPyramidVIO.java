@@ -0,0 +1,130 @@
+/*
+ * Copyright (c) 2011-2016, Peter Abeles, Eike Mansfeld. All Rights Reserved.
+ *
+ * This file is part of BoofCV (http://boofcv.org).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.comino.slam.boofcv.vio.tracker;
+
+import boofcv.abst.feature.tracker.PointTrackerTwoPassKltPyramid;
+import boofcv.abst.filter.derivative.ImageGradient;
+import boofcv.alg.feature.detect.interest.GeneralFeatureDetector;
+import boofcv.alg.interpolate.InterpolateRectangle;
+import boofcv.alg.tracker.klt.KltConfig;
+import boofcv.alg.tracker.klt.KltTracker;
+import boofcv.struct.image.ImageGray;
+import boofcv.struct.pyramid.PyramidDiscrete;
+
+/**
+ * Two pass KLT tracker with a motion adaptive pyramid depth. The pyramid is built
+ * with all layers, but tracking uses only as many layers as required for the
+ * predicted pixel motion of the next frame. The number of layers is limited by
+ * minLayers and maxLayers; the latter caps the worst case tracking time.
+ *
+ * @author Eike Mansfeld
+ */
+public class MAVPointTrackerTwoPassKltPyramidVIO<I extends ImageGray<I>, D extends ImageGray<D>>
+	extends PointTrackerTwoPassKltPyramid<I,D> {
+
+	// safety factor applied to the predicted motion
+	private static final float MOTION_MARGIN = 1.5f;
+
+	private MAVPyramidKltTrackerVIO<I,D> adaptiveTracker;
+	private GeneralFeatureDetector<I,D>  featureDetector;
+
+	private int minLayers;
+	private int maxLayers;
+
+	// number of frames tracked with a given number of layers
+	private long[] layerCount;
+	private long   frameCount;
+
+	public MAVPointTrackerTwoPassKltPyramidVIO(KltConfig config, int templateRadius,
+			PyramidDiscrete<I> pyramid, GeneralFeatureDetector<I, D> detector,
+			ImageGradient<I, D> gradient, InterpolateRectangle<I> interpInput,
+			InterpolateRectangle<D> interpDeriv, int minLayers, int maxLayers) {
+
+		super(config, templateRadius, pyramid, detector, gradient, interpInput, interpDeriv);
+
+		this.featureDetector = detector;
+		this.adaptiveTracker = new MAVPyramidKltTrackerVIO<I,D>(new KltTracker<I,D>(interpInput, interpDeriv, config));
+		this.tracker = adaptiveTracker;
+
+		this.maxLayers  = Math.max(1,Math.min(maxLayers, pyramid.getNumLayers()));
+		this.minLayers  = Math.max(1,Math.min(minLayers, this.maxLayers));
+		this.layerCount = new long[pyramid.getNumLayers()+1];
+
+		adaptiveTracker.setActiveLayers(this.maxLayers);
+	}
+
+	/**
+	 * Selects the number of pyramid layers used for the next frame.
+	 *
+	 * @param pixels Predicted motion of features between two frames in pixels.
+	 * @return Number of layers used for tracking
+	 */
+	public int setPredictedMotion(double pixels) {
+		int layers = minLayers;
+		while(layers < maxLayers && basePyramid.getScale(layers-1) * templateRadius < pixels * MOTION_MARGIN)
+			layers++;
+		adaptiveTracker.setActiveLayers(layers);
+		return layers;
+	}
+
+	public void setActiveLayers(int layers) {
+		adaptiveTracker.setActiveLayers(Math.max(minLayers, Math.min(layers, maxLayers)));
+	}
+
+	public void setMaxLayers(int maxLayers) {
+		this.maxLayers = Math.max(minLayers,Math.min(maxLayers, basePyramid.getNumLayers()));
+	}
+
+	public int getMaxLayers() {
+		return maxLayers;
+	}
+
+	/**
+	 * Sets the maximum number of features detected when spawning new tracks
+	 */
+	public void setMaxFeatures(int maxFeatures) {
+		featureDetector.setMaxFeatures(maxFeatures);
+	}
+
+	@Override
+	public void process(I image) {
+		super.process(image);
+		layerCount[adaptiveTracker.getActiveLayers()]++;
+		frameCount++;
+	}
+
+	/**
+	 * @return Number of frames tracked with the number of layers given by the index.
+	 */
+	public long[] getLayerCount() {
+		return layerCount;
+	}
+
+	/**
+	 * @return Average number of layers used per frame.
+	 */
+	public float getAverageLayers() {
+		if(frameCount == 0)
+			return 0;
+		long sum = 0;
+		for(int i=1; i < layerCount.length; i++)
+			sum += i * layerCount[i];
+		return (float)sum / frameCount;
+	}
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright (c) 2011-2016, Peter Abeles, Eike Mansfeld. All Rights Reserved.
+ *
+ * This file is part of BoofCV (http://boofcv.org).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.comino.slam.boofcv.vio.tracker;
+
+import boofcv.alg.tracker.klt.KltFeature;
+import boofcv.alg.tracker.klt.KltTrackFault;
+import boofcv.alg.tracker.klt.KltTracker;
+import boofcv.alg.tracker.klt.PyramidKltFeature;
+import boofcv.alg.tracker.klt.PyramidKltTracker;
+import boofcv.struct.image.ImageGray;
+
+/**
+ * Pyramid KLT tracker which tracks only through the lowest <code>activeLayers</code>
+ * layers of the image pyramid. Descriptions are still updated for all layers, so the
+ * number of active layers can be changed from frame to frame without invalidating
+ * the templates of the coarse layers.
+ *
+ * @author Peter Abeles, modified by Eike Mansfeld
+ */
+public class MAVPyramidKltTrackerVIO<InputImage extends ImageGray<InputImage>, DerivativeImage extends ImageGray<DerivativeImage>>
+	extends PyramidKltTracker<InputImage, DerivativeImage> {
+
+	// number of layers used for tracking, counted from the finest layer
+	private int activeLayers = Integer.MAX_VALUE;
+
+	public MAVPyramidKltTrackerVIO(KltTracker<InputImage, DerivativeImage> tracker) {
+		super(tracker);
+	}
+
+	public void setActiveLayers(int activeLayers) {
+		this.activeLayers = activeLayers;
+	}
+
+	public int getActiveLayers() {
+		return Math.min(activeLayers, image.getNumLayers());
+	}
+
+	/**
+	 * Updates the feature's location inside the image. Same as the BoofCV implementation,
+	 * but tracking starts at the top most active layer instead of the top of the pyramid.
+	 *
+	 * @param feature Feature being tracked.
+	 * @return If the tracking was successful or not.
+	 */
+	@Override
+	public KltTrackFault track(PyramidKltFeature feature) {
+
+		float x = feature.x;
+		float y = feature.y;
+
+		for (int layer = getActiveLayers() - 1; layer >= 0; layer--) {
+			float scale = (float) image.getScale(layer);
+			x /= scale;
+			y /= scale;
+
+			tracker.unsafe_setImage(image.getLayer(layer), null, null);
+			KltFeature f = feature.desc[layer];
+			f.setPosition(x, y);
+			KltTrackFault ret = tracker.track(f);
+
+			if (ret != KltTrackFault.SUCCESS)
+				return ret;
+
+			x = f.x * scale;
+			y = f.y * scale;
+		}
+
+		feature.setPosition(x, y);
+		return KltTrackFault.SUCCESS;
+	}
+}
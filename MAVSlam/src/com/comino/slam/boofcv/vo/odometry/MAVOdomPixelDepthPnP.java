@@ -446,4 +446,15 @@ public class MAVOdomPixelDepthPnP<T extends ImageBase>  {
 	public long getTick() {
 		return tick;
 	}
+
+	/**
+	 * @return Depth of the landmark in the current camera frame
+	 */
+	public double getCameraDepth(Point2D3D p) {
+		// z of currToKey^-1 * location
+		double dx = p.location.x - currToKey.T.x;
+		double dy = p.location.y - currToKey.T.y;
+		double dz = p.location.z - currToKey.T.z;
+		return currToKey.R.get(0,2) * dx + currToKey.R.get(1,2) * dy + currToKey.R.get(2,2) * dz;
+	}
 }
@@ -21,7 +21,10 @@ package com.comino.slam.boofcv.vo.odometry;
 import static boofcv.alg.distort.LensDistortionOps.transformPoint;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Set;
 
 import com.comino.slam.boofcv.MAVDepthVisualOdometry;
 
@@ -65,6 +68,9 @@ public class MAVOdomPixelDepthPnP_to_DepthVisualOdometry<Vis extends ImageBase,
 	PointTransform_F64 leftNormToPixel = null;
 
 	List<PointTrack> active = new ArrayList<PointTrack>();
+	List<PointTrack> spawnedList = new ArrayList<PointTrack>();
+	// tracks spawned in the last frame, identity based so isNew() is O(1)
+	Set<PointTrack>  spawned     = Collections.newSetFromMap(new IdentityHashMap<PointTrack,Boolean>());
 
 	public MAVOdomPixelDepthPnP_to_DepthVisualOdometry(DepthSparse3D<Depth> sparse3D, MAVOdomPixelDepthPnP<Vis> alg,
 													   DistanceModelMonoPixels<Se3_F64, Point2D3D> distance,
@@ -76,9 +82,19 @@ public class MAVOdomPixelDepthPnP_to_DepthVisualOdometry<Vis extends ImageBase,
 		this.depthType = depthType;
 	}
 
+	/**
+	 * @return Location of the track in key frame coordinates, taken from the active
+	 *         tracks of the last processed frame
+	 */
 	@Override
 	public Point3D_F64 getTrackLocation(int index) {
-		return alg.getObservation(index).location;
+		Point2D3D p = active.get(index).getCookie();
+		return p.location;
+	}
+
+	@Override
+	public double getTrackDepth(int index) {
+		return alg.getCameraDepth(active.get(index).getCookie());
 	}
 
 	@Override
@@ -104,8 +120,7 @@ public class MAVOdomPixelDepthPnP_to_DepthVisualOdometry<Vis extends ImageBase,
 
 	@Override
 	public boolean isNew(int index) {
-		PointTrack t = alg.getTracker().getActiveTracks(null).get(index);
-		return alg.getTracker().getNewTracks(null).contains(t);
+		return spawned.contains(active.get(index));
 	}
 
 	@Override
@@ -131,6 +146,10 @@ public class MAVOdomPixelDepthPnP_to_DepthVisualOdometry<Vis extends ImageBase,
 
 		active.clear();
 		alg.getTracker().getActiveTracks(active);
+		spawnedList.clear();
+		alg.getTracker().getNewTracks(spawnedList);
+		spawned.clear();
+		spawned.addAll(spawnedList);
 
 		return success;
 	}
@@ -142,6 +161,10 @@ public class MAVOdomPixelDepthPnP_to_DepthVisualOdometry<Vis extends ImageBase,
 
 		active.clear();
 		alg.getTracker().getActiveTracks(active);
+		spawnedList.clear();
+		alg.getTracker().getNewTracks(spawnedList);
+		spawned.clear();
+		spawned.addAll(spawnedList);
 
 		return success;
 	}
@@ -156,11 +179,15 @@ public class MAVOdomPixelDepthPnP_to_DepthVisualOdometry<Vis extends ImageBase,
 	@Override
 	public void reset() {
 		alg.reset();
+		active.clear();
+		spawned.clear();
 	}
 
 	@Override
 	public void reset(Se3_F64 initialState) {
 		alg.reset(initialState);
+		active.clear();
+		spawned.clear();
 	}
 
 	@Override
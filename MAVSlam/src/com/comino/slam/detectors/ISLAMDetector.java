@@ -33,14 +33,12 @@
 
 package com.comino.slam.detectors;
 
-import com.comino.slam.boofcv.MAVDepthVisualOdometry;
-
-import boofcv.struct.image.GrayU16;
-import boofcv.struct.image.GrayU8;
-
 public interface ISLAMDetector {
 
-	public void process(MAVDepthVisualOdometry<GrayU8,GrayU16> odometry, GrayU16 depth, GrayU8 gray);
+	/**
+	 * @param frame Snapshot of the frame; valid until the method returns
+	 */
+	public void process(MAVDetectorFrame frame);
 	public void reset(float x,float y, float z);
 
 }
@@ -0,0 +1,217 @@
+/****************************************************************************
+ *
+ *   Copyright (c) 2017 Eike Mansfeld ecm@gmx.de. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ * 3. Neither the name of the copyright holder nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS
+ * OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED
+ * AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ ****************************************************************************/
+
+
+package com.comino.slam.detectors;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.comino.slam.boofcv.MAVDepthVisualOdometry;
+
+import boofcv.abst.sfm.AccessPointTracks3D;
+import boofcv.alg.distort.DoNothingPixelTransform_F32;
+import boofcv.alg.sfm.DepthSparse3D;
+import boofcv.struct.calib.IntrinsicParameters;
+import boofcv.struct.image.GrayU16;
+import boofcv.struct.image.GrayU8;
+import georegression.struct.point.Point2D_F64;
+import georegression.struct.point.Point3D_F64;
+import georegression.struct.se.Se3_F64;
+
+/**
+ * Snapshot of a frame handed to the detectors: copies of the depth and gray image,
+ * the vehicle and vision pose at capture time and the tracks of the odometry.
+ * A frame is filled by the vision thread, is read-only afterwards and is returned
+ * to its pool when all detectors released it.
+ *
+ * @author Eike Mansfeld
+ */
+public class MAVDetectorFrame {
+
+	private final MAVDetectorFramePool pool;
+
+	private final GrayU16 depth;
+	private final GrayU8  gray;
+	private final IntrinsicParameters intrinsics;
+
+	private final DepthSparse3D<GrayU16> sparse3D;
+
+	// vehicle pose and vision pose at capture time
+	private final Se3_F64 state = new Se3_F64();
+	private final Se3_F64 pose  = new Se3_F64();
+
+	private final Point2D_F64[] tracks;
+	private final Point3D_F64[] locations;
+	private final boolean[]     inlier;
+	private int trackCount = 0;
+
+	private long tms_us = 0;
+
+	private final AtomicInteger refs = new AtomicInteger();
+
+	MAVDetectorFrame(MAVDetectorFramePool pool, IntrinsicParameters intrinsics, double depthScale, int maxTracks) {
+		this.pool       = pool;
+		this.intrinsics = intrinsics;
+		this.depth      = new GrayU16(intrinsics.width, intrinsics.height);
+		this.gray       = new GrayU8(intrinsics.width, intrinsics.height);
+
+		this.sparse3D   = new DepthSparse3D.I<GrayU16>(depthScale);
+		this.sparse3D.configure(intrinsics, new DoNothingPixelTransform_F32());
+		this.sparse3D.setDepthImage(depth);
+
+		this.tracks    = new Point2D_F64[maxTracks];
+		this.locations = new Point3D_F64[maxTracks];
+		this.inlier    = new boolean[maxTracks];
+		for(int i = 0; i < maxTracks; i++) {
+			tracks[i]    = new Point2D_F64();
+			locations[i] = new Point3D_F64();
+		}
+	}
+
+	/**
+	 * Fills the snapshot; called by the vision thread before handing it to the detectors.
+	 *
+	 * @param tms_us Capture time of the frame
+	 * @param state Pose of the vehicle at capture time
+	 * @param pose Vision pose at capture time
+	 */
+	public void set(long tms_us, GrayU16 depth, GrayU8 gray, Se3_F64 state, Se3_F64 pose) {
+		this.tms_us = tms_us;
+		this.depth.setTo(depth);
+		this.gray.setTo(gray);
+		this.state.set(state);
+		this.pose.set(pose);
+		this.trackCount = 0;
+	}
+
+	/**
+	 * Copies the tracks of the odometry. Must be called in the thread running the odometry.
+	 * Tracks and locations are indexed in the active list of the last processed frame, so
+	 * copying does not allocate.
+	 */
+	@SuppressWarnings("rawtypes")
+	public void setTracks(AccessPointTracks3D points, MAVDepthVisualOdometry odometry) {
+		List<Point2D_F64> all = points.getAllTracks();
+		trackCount = Math.min(all.size(), tracks.length);
+		for(int i = 0; i < trackCount; i++) {
+			tracks[i].set(all.get(i));
+			inlier[i] = points.isInlier(i);
+			Point3D_F64 p = odometry.getTrackLocation(i);
+			if(p != null)
+				locations[i].set(p);
+			else
+				locations[i].set(Double.NaN, Double.NaN, Double.NaN);
+		}
+	}
+
+	/**
+	 * Computes the 3D point in camera frame from the depth at the given pixel.
+	 *
+	 * @return false if no depth is available
+	 */
+	public boolean getPoint3DFromPixel(int x, int y, Point3D_F64 point) {
+		synchronized(sparse3D) {
+			if(!sparse3D.process(x, y))
+				return false;
+			point.set(sparse3D.getWorldPt());
+		}
+		return true;
+	}
+
+	public GrayU16 getDepth() {
+		return depth;
+	}
+
+	public GrayU8 getGray() {
+		return gray;
+	}
+
+	public IntrinsicParameters getIntrinsics() {
+		return intrinsics;
+	}
+
+	/**
+	 * @return Pose of the vehicle at capture time
+	 */
+	public Se3_F64 getState() {
+		return state;
+	}
+
+	/**
+	 * @return Vision pose at capture time
+	 */
+	public Se3_F64 getPose() {
+		return pose;
+	}
+
+	public int getTrackCount() {
+		return trackCount;
+	}
+
+	public Point2D_F64 getTrack(int index) {
+		return tracks[index];
+	}
+
+	public Point3D_F64 getTrackLocation(int index) {
+		return locations[index];
+	}
+
+	public boolean isInlier(int index) {
+		return inlier[index];
+	}
+
+	/**
+	 * @return Capture time of the frame in us
+	 */
+	public long getTime() {
+		return tms_us;
+	}
+
+	/**
+	 * Adds a user of the frame; the frame is recycled when all users released it.
+	 * The frame is acquired from the pool with one user.
+	 */
+	public void retain() {
+		refs.incrementAndGet();
+	}
+
+	public void release() {
+		if(refs.decrementAndGet() == 0)
+			pool.recycle(this);
+	}
+
+	void acquired() {
+		refs.set(1);
+	}
+}
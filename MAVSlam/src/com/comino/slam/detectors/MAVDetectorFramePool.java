@@ -0,0 +1,100 @@
+/****************************************************************************
+ *
+ *   Copyright (c) 2017 Eike Mansfeld ecm@gmx.de. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ * 3. Neither the name of the copyright holder nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS
+ * OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED
+ * AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ ****************************************************************************/
+
+
+package com.comino.slam.detectors;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import boofcv.struct.calib.IntrinsicParameters;
+
+/**
+ * Pool of detector frames. If all frames are in use by detectors, acquire
+ * returns null and the vision thread skips the detectors for this frame instead
+ * of waiting. The pool grows with the number of detectors, see {@link #ensureSize}.
+ *
+ * @author Eike Mansfeld
+ */
+public class MAVDetectorFramePool {
+
+	private final ConcurrentLinkedQueue<MAVDetectorFrame> free = new ConcurrentLinkedQueue<MAVDetectorFrame>();
+
+	private final IntrinsicParameters intrinsics;
+	private final double              depthScale;
+	private final int                 maxTracks;
+
+	private int           size    = 0;
+	private volatile long skipped = 0;
+
+	public MAVDetectorFramePool(int size, IntrinsicParameters intrinsics, double depthScale, int maxTracks) {
+		this.intrinsics = intrinsics;
+		this.depthScale = depthScale;
+		this.maxTracks  = maxTracks;
+		ensureSize(size);
+	}
+
+	/**
+	 * Adds frames until the pool holds at least the given number of frames
+	 */
+	public synchronized void ensureSize(int size) {
+		for(; this.size < size; this.size++)
+			free.offer(new MAVDetectorFrame(this, intrinsics, depthScale, maxTracks));
+	}
+
+	public synchronized int getSize() {
+		return size;
+	}
+
+	/**
+	 * @return Free frame or null if all frames are in use
+	 */
+	public MAVDetectorFrame acquire() {
+		MAVDetectorFrame frame = free.poll();
+		if(frame == null)
+			skipped++;
+		else
+			frame.acquired();
+		return frame;
+	}
+
+	void recycle(MAVDetectorFrame frame) {
+		free.offer(frame);
+	}
+
+	/**
+	 * @return Number of frames not handed to detectors because the pool was empty
+	 */
+	public long getSkipped() {
+		return skipped;
+	}
+}
@@ -0,0 +1,314 @@
+/****************************************************************************
+ *
+ *   Copyright (c) 2017 Eike Mansfeld ecm@gmx.de. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ * 3. Neither the name of the copyright holder nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS
+ * OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED
+ * AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ ****************************************************************************/
+
+
+package com.comino.slam.detectors;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.comino.msp.utils.ExecutorService;
+import com.comino.server.metrics.Metric;
+import com.comino.server.metrics.MetricsWriter;
+
+/**
+ * Runs detectors on frame snapshots. Each detector has its own period and CPU budget
+ * and at most one job in flight. If a new frame arrives while the job of a detector is
+ * still running, the frame is kept as pending and replaces any older pending frame
+ * (latest frame wins). A detector exceeding its budget is run less frequently until it
+ * is back in budget.
+ *
+ * Detectors run either serially in one dedicated thread or in parallel in the low
+ * priority executor pool.
+ *
+ * @author Eike Mansfeld
+ */
+public class MAVDetectorScheduler implements Metric {
+
+	private static final int MAX_BACKOFF = 8;
+
+	private final List<Job> jobs = new ArrayList<Job>();
+	private final Executor  executor;
+
+	private final ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+
+	private volatile Runnable failureListener = null;
+	private volatile int      periodScale     = 1;
+
+	/**
+	 * @param parallel if true, detectors run in parallel in the executor pool
+	 */
+	public MAVDetectorScheduler(boolean parallel) {
+		if(parallel)
+			this.executor = r -> ExecutorService.submit(r, ExecutorService.LOW);
+		else
+			this.executor = Executors.newSingleThreadExecutor(r -> {
+				Thread t = new Thread(r, "VIO-detectors");
+				t.setDaemon(true);
+				return t;
+			});
+		if(bean.isCurrentThreadCpuTimeSupported() && !bean.isThreadCpuTimeEnabled())
+			bean.setThreadCpuTimeEnabled(true);
+	}
+
+	/**
+	 * @param period_ms Minimum time between two runs of the detector
+	 * @param budget_ms CPU time the detector may use per run
+	 */
+	public void register(ISLAMDetector detector, long period_ms, long budget_ms) {
+		jobs.add(new Job(detector, period_ms, budget_ms));
+	}
+
+	/**
+	 * @return true if at least one detector should get the next frame
+	 */
+	public boolean isDue() {
+		long now = System.currentTimeMillis();
+		for(int i = 0; i < jobs.size(); i++)
+			if(jobs.get(i).isDue(now))
+				return true;
+		return false;
+	}
+
+	/**
+	 * Hands the frame to all detectors due. The scheduler retains the frame as long as it is used.
+	 */
+	public void submit(MAVDetectorFrame frame) {
+		long now = System.currentTimeMillis();
+		for(int i = 0; i < jobs.size(); i++) {
+			Job job = jobs.get(i);
+			if(job.isDue(now))
+				job.offer(frame, now);
+		}
+	}
+
+	/**
+	 * Sets a listener called by the detector thread when a detector throws an exception
+	 */
+	public void setFailureListener(Runnable listener) {
+		this.failureListener = listener;
+	}
+
+	/**
+	 * Scales the period of all detectors, e.g. to reduce the load of the system
+	 */
+	public void setPeriodScale(int scale) {
+		this.periodScale = Math.max(1, scale);
+	}
+
+	public int getPeriodScale() {
+		return periodScale;
+	}
+
+	public List<Job> getJobs() {
+		return jobs;
+	}
+
+	@Override
+	public void write(MetricsWriter out) {
+		out.header("vision_detector_runs_total", "counter", "Detector runs");
+		for(Job j : jobs)
+			out.sample("vision_detector_runs_total", j.label, j.runs);
+		out.header("vision_detector_skipped_total", "counter", "Frames replaced before the detector ran");
+		for(Job j : jobs)
+			out.sample("vision_detector_skipped_total", j.label, j.skipped);
+		out.header("vision_detector_failures_total", "counter", "Detector exceptions");
+		for(Job j : jobs)
+			out.sample("vision_detector_failures_total", j.label, j.failures);
+		out.header("vision_detector_over_budget_total", "counter", "Detector runs exceeding the CPU budget");
+		for(Job j : jobs)
+			out.sample("vision_detector_over_budget_total", j.label, j.overBudget);
+		out.header("vision_detector_seconds_total", "counter", "Total detector runtime");
+		for(Job j : jobs)
+			out.sample("vision_detector_seconds_total", j.label, j.total_ns / 1e9);
+		out.header("vision_detector_max_seconds", "gauge", "Maximum detector runtime");
+		for(Job j : jobs)
+			out.sample("vision_detector_max_seconds", j.label, j.max_ns / 1e9);
+		out.header("vision_detector_period_seconds", "gauge", "Effective detector period");
+		for(Job j : jobs)
+			out.sample("vision_detector_period_seconds", j.label, j.getEffectivePeriod() / 1e3);
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder b = new StringBuilder();
+		for(Job j : jobs)
+			b.append(j.toString()).append('\n');
+		return b.toString();
+	}
+
+	public class Job implements Runnable {
+
+		private final ISLAMDetector detector;
+		private final String        name;
+		private final String        label;
+		private final long          period_ms;
+		private final long          budget_ns;
+
+		private final AtomicBoolean busy = new AtomicBoolean();
+		private final AtomicReference<MAVDetectorFrame> pending = new AtomicReference<MAVDetectorFrame>();
+
+		private volatile long last_ms  = 0;
+		private volatile int  backoff  = 1;
+
+		private volatile long runs       = 0;
+		private volatile long skipped    = 0;
+		private volatile long failures   = 0;
+		private volatile long overBudget = 0;
+		private volatile long last_ns    = 0;
+		private volatile long max_ns     = 0;
+		private volatile long total_ns   = 0;
+
+		Job(ISLAMDetector detector, long period_ms, long budget_ms) {
+			this.detector  = detector;
+			this.name      = detector.getClass().getSimpleName();
+			this.label     = MetricsWriter.label("detector", name);
+			this.period_ms = period_ms;
+			this.budget_ns = budget_ms * 1000000L;
+		}
+
+		boolean isDue(long now) {
+			return now - last_ms >= period_ms * backoff * periodScale;
+		}
+
+		void offer(MAVDetectorFrame frame, long now) {
+			last_ms = now;
+			frame.retain();
+			MAVDetectorFrame old = pending.getAndSet(frame);
+			if(old != null) {
+				// replaced by a newer frame before the detector picked it up
+				skipped++;
+				old.release();
+			}
+			if(busy.compareAndSet(false, true))
+				executor.execute(this);
+		}
+
+		@Override
+		public void run() {
+			MAVDetectorFrame frame;
+			while((frame = pending.getAndSet(null)) != null) {
+				long cpu  = cpuTime();
+				long tms  = System.nanoTime();
+				try {
+					detector.process(frame);
+				} catch(Exception e) {
+					failures++;
+					if(failureListener != null)
+						failureListener.run();
+				} finally {
+					frame.release();
+				}
+				update(System.nanoTime() - tms, cpuTime() - cpu);
+			}
+			busy.set(false);
+			// frame offered after the last check but before busy was cleared
+			if(pending.get() != null && busy.compareAndSet(false, true))
+				executor.execute(this);
+		}
+
+		private void update(long elapsed_ns, long cpu_ns) {
+			runs++;
+			last_ns   = elapsed_ns;
+			total_ns += elapsed_ns;
+			if(elapsed_ns > max_ns)
+				max_ns = elapsed_ns;
+
+			if(budget_ns > 0 && cpu_ns > budget_ns) {
+				overBudget++;
+				if(backoff < MAX_BACKOFF)
+					backoff *= 2;
+			} else if(backoff > 1)
+				backoff /= 2;
+		}
+
+		private long cpuTime() {
+			return bean.isCurrentThreadCpuTimeSupported() ? bean.getCurrentThreadCpuTime() : System.nanoTime();
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public long getRuns() {
+			return runs;
+		}
+
+		/**
+		 * @return Number of frames replaced by a newer frame before the detector ran
+		 */
+		public long getSkipped() {
+			return skipped;
+		}
+
+		public long getFailures() {
+			return failures;
+		}
+
+		public long getOverBudget() {
+			return overBudget;
+		}
+
+		public long getLastRuntime_ns() {
+			return last_ns;
+		}
+
+		public long getMaxRuntime_ns() {
+			return max_ns;
+		}
+
+		public long getTotalRuntime_ns() {
+			return total_ns;
+		}
+
+		/**
+		 * @return Current period in ms including the backoff due to budget violations and the scale
+		 */
+		public long getEffectivePeriod() {
+			return period_ms * backoff * periodScale;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%s: runs=%d skipped=%d failures=%d over budget=%d avg=%.1fms max=%.1fms period=%dms",
+					name, runs, skipped, failures, overBudget,
+					runs > 0 ? total_ns / 1e6 / runs : 0.0, max_ns / 1e6, getEffectivePeriod());
+		}
+	}
+}
@@ -42,11 +42,10 @@ import com.comino.mav.control.IMAVMSPController;
 import com.comino.msp.execution.control.listener.IMAVLinkListener;
 import com.comino.msp.model.DataModel;
 import com.comino.server.mjpeg.impl.HttpMJPEGHandler;
-import com.comino.slam.boofcv.MAVDepthVisualOdometry;
 import com.comino.slam.detectors.ISLAMDetector;
+import com.comino.slam.detectors.MAVDetectorFrame;
 
 import boofcv.struct.geo.Point2D3D;
-import boofcv.struct.image.GrayU16;
 import boofcv.struct.image.GrayU8;
 
 public class VfhDepthDetector implements ISLAMDetector {
@@ -90,12 +89,12 @@ public class VfhDepthDetector implements ISLAMDetector {
 	}
 
 	@Override
-	public void process(MAVDepthVisualOdometry<GrayU8,GrayU16> odometry, GrayU16 depth, GrayU8 gray) {
+	public void process(MAVDetectorFrame frame) {
 
 
-		test.setLocation(odometry.getPoint3DFromPixel(gray.width/2, gray.height/2));
+		GrayU8 gray = frame.getGray();
 		test.getObservation().set(160, 120);
-		if(test.location!=null)
+		if(frame.getPoint3DFromPixel(gray.width/2, gray.height/2, test.location))
 		    System.out.println(test.location.z);
 
 	}
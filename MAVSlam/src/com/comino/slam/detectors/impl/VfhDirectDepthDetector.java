@@ -34,6 +34,8 @@
 package com.comino.slam.detectors.impl;
 
 
+import java.awt.Color;
+
 import org.mavlink.messages.MSP_CMD;
 import org.mavlink.messages.lquac.msg_msp_command;
 
@@ -44,14 +46,11 @@ import com.comino.msp.execution.control.listener.IMAVLinkListener;
 import com.comino.msp.model.DataModel;
 import com.comino.msp.slam.map2D.ILocalMap;
 import com.comino.msp.utils.MSP3DUtils;
+import com.comino.realsense.boofcv.RealSenseInfo;
 import com.comino.server.mjpeg.IVisualStreamHandler;
-import com.comino.slam.boofcv.MAVDepthVisualOdometry;
 import com.comino.slam.detectors.ISLAMDetector;
+import com.comino.slam.detectors.MAVDetectorFrame;
 
-import boofcv.struct.image.GrayU16;
-import boofcv.struct.image.GrayU8;
-import georegression.geometry.ConvertRotation3D_F64;
-import georegression.struct.EulerType;
 import georegression.struct.point.Point3D_F64;
 import georegression.struct.se.Se3_F64;
 import georegression.transform.se.SePointOps_F64;
@@ -60,20 +59,30 @@ public class VfhDirectDepthDetector implements ISLAMDetector {
 
 	private static final float MIN_ALTITUDE  = 0.5f;
 
+	// image rows scanned for obstacles: SCAN_ROW +/- SCAN_RANGE in steps of SCAN_STEP
+	private static final int   SCAN_ROW      = 180;
+	private static final int   SCAN_RANGE    = 15;
+	private static final int   SCAN_STEP     = 5;
+
 	private float     	max_distance     	= 3.0f;
 	private float     	min_altitude     	= 0;
 
 	private DataModel   model        		= null;
 	private ILocalMap 	map 				= null;
 
-	private Point3D_F64	point				= null;
+	private Point3D_F64	point				= new Point3D_F64();
 	private Point3D_F64 point_min      		= new Point3D_F64();
 	private Point3D_F64 point_ned       	= new Point3D_F64();
 
 	private Se3_F64 		current 		= new Se3_F64();
 
 
-	public <T> VfhDirectDepthDetector(IMAVMSPController control, MSPConfig config, IVisualStreamHandler<T> streamer) {
+	/**
+	 * @param info Camera info, its width is the length of the scanned rows in the overlay
+	 * @param streamer Stream showing the scanned rows as overlay or null
+	 */
+	public <T> VfhDirectDepthDetector(IMAVMSPController control, MSPConfig config, RealSenseInfo info,
+			IVisualStreamHandler<T> streamer) {
 
 		this.model	= control.getCurrentModel();
 		this.map 	= AutoPilotBase.getInstance().getMap2D();
@@ -94,12 +103,22 @@ public class VfhDirectDepthDetector implements ISLAMDetector {
 				}
 			}
 		});
+
+		if(streamer != null) {
+			final int width = info.width;
+			streamer.registerOverlayListener(ctx -> {
+				ctx.setColor(Color.WHITE);
+				for(int dy = -SCAN_RANGE; dy <= SCAN_RANGE; dy += SCAN_STEP)
+					ctx.drawLine(0, SCAN_ROW+dy, width, SCAN_ROW+dy);
+			});
+		}
 	}
 
 	@Override
-	public void process(MAVDepthVisualOdometry<GrayU8,GrayU16> odometry, GrayU16 depth, GrayU8 gray) {
+	public void process(MAVDetectorFrame frame) {
 
-		getModelToState(model,current);
+		Se3_F64 state = frame.getState();
+		current.set(state);
 
 		// Do not update map if loaded from storage or vehicle is lower than MIN_ALTITUDE
 		if(model.hud.ar < min_altitude || map.isLoaded())
@@ -107,13 +126,12 @@ public class VfhDirectDepthDetector implements ISLAMDetector {
 
 		model.grid.tms = model.sys.getSynchronizedPX4Time_us();
 
-		for(int x = 0;x < gray.getWidth();x++) {
+		for(int x = 0;x < frame.getGray().getWidth();x++) {
 
 			point_min.set(0,0,99);
-			for(int dy = -15; dy <= 15;dy=dy+5) {
+			for(int dy = -SCAN_RANGE; dy <= SCAN_RANGE;dy=dy+SCAN_STEP) {
 				try {
-					point = odometry.getPoint3DFromPixel(x,180+dy);
-					if(point != null && point.z < point_min.z)
+					if(frame.getPoint3DFromPixel(x,SCAN_ROW+dy,point) && point.z < point_min.z)
 						point_min.set(point);
 				} catch(Exception e) {
 					continue;
@@ -125,7 +143,7 @@ public class VfhDirectDepthDetector implements ISLAMDetector {
 			SePointOps_F64.transform(current,point_min,point_ned);
 			MSP3DUtils.toNED(point_ned);
 			if(point_ned.z > -0.3 && point_min.z < 5)
-			  map.update(model.state.l_x, model.state.l_y,point_ned);
+			  map.update((float)state.T.z, (float)state.T.x, point_ned);
 		}
 	}
 
@@ -135,18 +153,4 @@ public class VfhDirectDepthDetector implements ISLAMDetector {
 		if(x==0 && y==0)
 			map.reset();
 	}
-
-	private Se3_F64 getModelToState(DataModel m, Se3_F64 state) {
-		ConvertRotation3D_F64.eulerToMatrix(EulerType.ZXY,
-				m.attitude.r,
-				m.attitude.p,
-				m.attitude.y,
-				state.getRotation());
-
-		state.getTranslation().y = m.state.l_z;
-		state.getTranslation().x = m.state.l_y;
-		state.getTranslation().z = m.state.l_x;
-
-		return state;
-	}
 }
@@ -45,13 +45,9 @@ import com.comino.msp.model.DataModel;
 import com.comino.msp.slam.map2D.ILocalMap;
 import com.comino.msp.utils.MSP3DUtils;
 import com.comino.server.mjpeg.IVisualStreamHandler;
-import com.comino.slam.boofcv.MAVDepthVisualOdometry;
 import com.comino.slam.detectors.ISLAMDetector;
+import com.comino.slam.detectors.MAVDetectorFrame;
 
-import boofcv.struct.image.GrayU16;
-import boofcv.struct.image.GrayU8;
-import georegression.geometry.ConvertRotation3D_F64;
-import georegression.struct.EulerType;
 import georegression.struct.point.Point3D_F64;
 import georegression.struct.se.Se3_F64;
 import georegression.transform.se.SePointOps_F64;
@@ -67,7 +63,7 @@ public class VfhDynamicDirectDepthDetector implements ISLAMDetector {
 	private DataModel   model        		= null;
 	private ILocalMap 	map 					= null;
 
-	private Point3D_F64	point				= null;
+	private Point3D_F64	point				= new Point3D_F64();
 	private Point3D_F64 point_min      		= new Point3D_F64();
 	private Point3D_F64 point_ned       		= new Point3D_F64();
 
@@ -98,22 +94,23 @@ public class VfhDynamicDirectDepthDetector implements ISLAMDetector {
 	}
 
 	@Override
-	public void process(MAVDepthVisualOdometry<GrayU8,GrayU16> odometry, GrayU16 depth, GrayU8 gray) {
+	public void process(MAVDetectorFrame frame) {
 
 		int win_y = 0;
 
-		getModelToState(model,current);
+		Se3_F64 state = frame.getState();
+		current.set(state);
 
 		// TODO: Narrow down window in Y axis with increasing depth
 
-		for(int x = 0;x < gray.getWidth();x++) {
-			point = odometry.getPoint3DFromPixel(x,180);
+		for(int x = 0;x < frame.getGray().getWidth();x++) {
+			if(!frame.getPoint3DFromPixel(x,180,point))
+				continue;
 			win_y = (int)(15 / point.z);
 			point_min.set(0,0,99);
 			for(int dy = -win_y; dy <= win_y;dy=dy+5) {
 				try {
-				point = odometry.getPoint3DFromPixel(x,180+dy);
-				if(point != null && point.z < point_min.z)
+				if(frame.getPoint3DFromPixel(x,180+dy,point) && point.z < point_min.z)
 					point_min.set(point);
 				} catch(Exception e) {
 					e.printStackTrace();
@@ -123,7 +120,7 @@ public class VfhDynamicDirectDepthDetector implements ISLAMDetector {
 			SePointOps_F64.transform(current,point_min,point_ned);
 			MSP3DUtils.toNED(point_ned);
 			if(point_ned.z > MIN_ALTITUDE)
-			  map.update(model.state.l_x, model.state.l_y,point_ned);
+			  map.update((float)state.T.z, (float)state.T.x, point_ned);
 		}
 	}
 
@@ -133,18 +130,4 @@ public class VfhDynamicDirectDepthDetector implements ISLAMDetector {
 		if(x==0 && y==0)
            map.reset();
 	}
-
-	private Se3_F64 getModelToState(DataModel m, Se3_F64 state) {
-		ConvertRotation3D_F64.eulerToMatrix(EulerType.ZXY,
-				m.attitude.r,
-				m.attitude.p,
-				m.attitude.y,
-				state.getRotation());
-
-		state.getTranslation().y = m.state.l_z;
-		state.getTranslation().x = m.state.l_y;
-		state.getTranslation().z = m.state.l_x;
-
-		return state;
-	}
 }
@@ -49,14 +49,9 @@ import com.comino.msp.model.DataModel;
 import com.comino.msp.slam.map2D.ILocalMap;
 import com.comino.msp.utils.MSP3DUtils;
 import com.comino.server.mjpeg.IVisualStreamHandler;
-import com.comino.slam.boofcv.MAVDepthVisualOdometry;
 import com.comino.slam.detectors.ISLAMDetector;
+import com.comino.slam.detectors.MAVDetectorFrame;
 
-import boofcv.abst.sfm.AccessPointTracks3D;
-import boofcv.struct.image.GrayU16;
-import boofcv.struct.image.GrayU8;
-import georegression.geometry.ConvertRotation3D_F64;
-import georegression.struct.EulerType;
 import georegression.struct.point.Point2D_F64;
 import georegression.struct.point.Point3D_F64;
 import georegression.struct.point.Vector4D_F64;
@@ -125,29 +120,28 @@ public class VfhFeatureDetector implements ISLAMDetector {
 	}
 
 	@Override
-	public void process(MAVDepthVisualOdometry<GrayU8,GrayU16> odometry, GrayU16 depth, GrayU8 gray) {
+	public void process(MAVDetectorFrame frame) {
 		Point2D_F64 xy; Point3D_F64 p;
 
-		AccessPointTracks3D points = (AccessPointTracks3D)odometry;
-
 		nearestPoints.clear();
 
-		current_pos.set(model.state.l_x, model.state.l_y, model.state.l_z, model.state.h);
+		Se3_F64 state = frame.getState();
+		current_pos.set(state.T.z, state.T.x, state.T.y, model.state.h);
 
-//		current.set(odometry.getCameraToWorld());
-		getAttitudeToState(model,current);
+//		current.set(frame.getPose());
+		current.R.set(state.R);
 
 		boolean first = true;
 
 //		int i = 0; {
-		for( int i = 0; i < points.getAllTracks().size(); i++ ) {
+		for( int i = 0; i < frame.getTrackCount(); i++ ) {
 
-			if(points.isInlier(i)) {
+			if(frame.isInlier(i)) {
 
 				// xy is the observation
-				xy = points.getAllTracks().get(i);
+				xy = frame.getTrack(i);
 				// p is the obstacle location in body-frame
-				p = odometry.getTrackLocation(i);
+				p = frame.getTrackLocation(i);
 
 
 				SePointOps_F64.transform(current,p,rel_ned);
@@ -177,7 +171,7 @@ public class VfhFeatureDetector implements ISLAMDetector {
 
 					map.update(rel_ned, current_pos);
 
-					nearestPoints.add(xy);
+					nearestPoints.add(xy.copy());
 
 				//	break;
 
@@ -191,14 +185,6 @@ public class VfhFeatureDetector implements ISLAMDetector {
 		nearestPoints.clear();
 	}
 
-	private Se3_F64 getAttitudeToState(DataModel m, Se3_F64 state) {
-		ConvertRotation3D_F64.eulerToMatrix(EulerType.ZXY,
-				m.attitude.r,
-				m.attitude.p,
-				m.attitude.y,
-				state.getRotation());
-		return state;
-	}
 
 
 
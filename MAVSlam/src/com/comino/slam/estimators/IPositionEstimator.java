@@ -3,11 +3,14 @@ package com.comino.slam.estimators;
 import com.comino.server.mjpeg.IVisualStreamHandler;
 import com.comino.slam.detectors.ISLAMDetector;
 
+import boofcv.struct.image.GrayU8;
+import boofcv.struct.image.Planar;
+
 public interface IPositionEstimator {
 
 	void registerDetector(ISLAMDetector detector);
 
-	void registerStreams(IVisualStreamHandler stream);
+	void registerStreams(IVisualStreamHandler<Planar<GrayU8>> stream);
 
 	void start();
 
@@ -0,0 +1,236 @@
+/****************************************************************************
+ *
+ *   Copyright (c) 2017 Eike Mansfeld ecm@gmx.de. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ * 3. Neither the name of the copyright holder nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS
+ * OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED
+ * AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ ****************************************************************************/
+
+
+package com.comino.slam.estimators;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.mavlink.messages.MAVLinkMessage;
+
+import com.comino.mav.control.IMAVMSPController;
+import com.comino.msp.model.DataModel;
+import com.comino.realsense.boofcv.RealSenseInfo;
+import com.comino.realsense.boofcv.StreamRealSenseVisDepth;
+import com.comino.server.mjpeg.IMJPEGOverlayListener;
+import com.comino.server.mjpeg.IVisualStreamHandler;
+import com.comino.slam.detectors.ISLAMDetector;
+
+import boofcv.struct.image.GrayU8;
+import boofcv.struct.image.Planar;
+import georegression.geometry.ConvertRotation3D_F64;
+import georegression.struct.EulerType;
+import georegression.struct.se.Se3_F64;
+
+/**
+ * Common core of the visual position estimators. Holds the frame source, detectors and
+ * streams and decides whether an estimator publishes its results.
+ *
+ * Two estimators can share one frame source: the primary estimator owns and starts the
+ * camera, a shadow estimator registers on the same source, runs on the same frames but
+ * does not publish anything to the vehicle. Both report per frame CPU time, quality and
+ * pose to a {@link MAVEstimatorComparator}.
+ *
+ * @author Eike Mansfeld
+ */
+public abstract class MAVAbstractPositionEstimator implements IPositionEstimator {
+
+	public static final int ROLE_PRIMARY = 0;
+	public static final int ROLE_SHADOW  = 1;
+
+	protected final RealSenseInfo                              info;
+	protected final IMAVMSPController                          control;
+	protected final DataModel                                  model;
+	protected final List<ISLAMDetector>                        detectors;
+	protected final List<IVisualStreamHandler<Planar<GrayU8>>> streams;
+	private   final List<IMJPEGOverlayListener>                overlays;
+
+	protected StreamRealSenseVisDepth realsense = null;
+	protected boolean                 isRunning = false;
+
+	private final boolean             ownsSource;
+	private final ThreadMXBean        bean = ManagementFactory.getThreadMXBean();
+
+	private int                       role       = ROLE_PRIMARY;
+	private MAVEstimatorComparator    comparator = null;
+
+	protected MAVEstimatorMetrics     metrics    = new MAVEstimatorMetrics("primary");
+	protected MAVTrackStream          tracks     = null;
+
+	/**
+	 * @param source Frame source shared with another estimator or null to open the camera
+	 */
+	protected MAVAbstractPositionEstimator(RealSenseInfo info, IMAVMSPController control, StreamRealSenseVisDepth source) {
+		this.info       = info;
+		this.control    = control;
+		this.model      = control.getCurrentModel();
+		this.detectors  = new ArrayList<ISLAMDetector>();
+		this.streams    = new ArrayList<IVisualStreamHandler<Planar<GrayU8>>>();
+		this.overlays   = new ArrayList<IMJPEGOverlayListener>();
+		this.realsense  = source;
+		this.ownsSource = source == null;
+
+		if(bean.isCurrentThreadCpuTimeSupported() && !bean.isThreadCpuTimeEnabled())
+			bean.setThreadCpuTimeEnabled(true);
+	}
+
+	/**
+	 * Opens the camera if no shared source was provided
+	 */
+	protected StreamRealSenseVisDepth openSource() throws Exception {
+		if(realsense == null)
+			realsense = new StreamRealSenseVisDepth(0,info);
+		return realsense;
+	}
+
+	protected void startSource() {
+		if(realsense != null && ownsSource)
+			realsense.start();
+	}
+
+	protected void stopSource() {
+		if(realsense != null && ownsSource)
+			realsense.stop();
+	}
+
+	/**
+	 * @return Frame source of this estimator to be shared with a shadow estimator
+	 */
+	public StreamRealSenseVisDepth getSource() {
+		return realsense;
+	}
+
+	/**
+	 * Attaches the estimator to a comparator. Must be called before the estimator is started.
+	 *
+	 * @param role ROLE_PRIMARY or ROLE_SHADOW; a shadow estimator does not publish
+	 */
+	public void attach(MAVEstimatorComparator comparator, int role) {
+		this.comparator = comparator;
+		this.role       = role;
+		this.metrics    = new MAVEstimatorMetrics(role == ROLE_SHADOW ? "shadow" : "primary");
+	}
+
+	public boolean isShadow() {
+		return role == ROLE_SHADOW;
+	}
+
+	/**
+	 * @return True if a shadow estimator runs alongside on the same frames
+	 */
+	protected boolean isCompared() {
+		return comparator != null;
+	}
+
+	public void registerStreams(IVisualStreamHandler<Planar<GrayU8>> stream) {
+		System.out.println("[vis] Vision stream registered: "+stream.getClass().getSimpleName());
+		streams.add(stream);
+		for(IMJPEGOverlayListener overlay : overlays)
+			stream.registerOverlayListener(overlay);
+	}
+
+	/**
+	 * Registers a stream receiving the tracks and pose of each valid frame
+	 */
+	public void registerTrackStream(MAVTrackStream tracks) {
+		System.out.println("[vis] Track stream registered");
+		this.tracks = tracks;
+	}
+
+	/**
+	 * Registers an overlay with all streams, including streams registered later
+	 */
+	protected void registerOverlay(IMJPEGOverlayListener overlay) {
+		overlays.add(overlay);
+		for(IVisualStreamHandler<Planar<GrayU8>> stream : streams)
+			stream.registerOverlayListener(overlay);
+	}
+
+	public boolean isRunning() {
+		return isRunning;
+	}
+
+	protected void sendMAVLinkMessage(MAVLinkMessage msg) {
+		if(!isShadow())
+			control.sendMAVLinkMessage(msg);
+	}
+
+	protected void setSensor(int sensor, boolean available) {
+		if(!isShadow())
+			model.sys.setSensor(sensor, available);
+	}
+
+	/**
+	 * @return CPU time of the current thread in ns
+	 */
+	protected long cpuTime() {
+		return bean.isCurrentThreadCpuTimeSupported() ? bean.getCurrentThreadCpuTime() : System.nanoTime();
+	}
+
+	/**
+	 * Reports the result of a frame to the metrics and the comparator
+	 *
+	 * @param pose Estimated pose or null if the frame did not provide a valid pose
+	 */
+	protected void report(long tms_us, long cpu_ns, int quality, Se3_F64 pose) {
+		metrics.frames.inc();
+		metrics.quality.set(quality);
+		if(comparator != null)
+			comparator.report(role, tms_us, cpu_ns, quality, pose);
+	}
+
+	protected void reportInit(String reason) {
+		metrics.resets.inc(reason);
+		if(comparator != null)
+			comparator.init(role, reason);
+	}
+
+	protected Se3_F64 setModelToState(DataModel m, Se3_F64 state) {
+		if(!Float.isNaN(m.attitude.r) && !Float.isNaN(m.attitude.p) && !Float.isNaN(m.attitude.y))
+			ConvertRotation3D_F64.eulerToMatrix(EulerType.ZXY,
+					m.attitude.r,
+					m.attitude.p,
+					m.attitude.y,
+					state.getRotation());
+
+		if(!Float.isNaN(m.state.l_y) && !Float.isNaN(m.state.l_x)) {
+			state.getTranslation().y = m.state.l_z;
+			state.getTranslation().x = m.state.l_y;
+			state.getTranslation().z = m.state.l_x;
+		}
+		return state;
+	}
+}
@@ -0,0 +1,220 @@
+/****************************************************************************
+ *
+ *   Copyright (c) 2017 Eike Mansfeld ecm@gmx.de. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ * 3. Neither the name of the copyright holder nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS
+ * OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED
+ * AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ ****************************************************************************/
+
+
+package com.comino.slam.estimators;
+
+import georegression.geometry.ConvertRotation3D_F64;
+import georegression.struct.EulerType;
+import georegression.struct.se.Se3_F64;
+
+/**
+ * Compares a primary and a shadow estimator running on the same frames. Collects per
+ * estimator CPU time, quality and re-initializations and the divergence of the poses
+ * both estimators report for the same frame.
+ *
+ * Reports are matched by the frame timestamp. As both estimators may run in different
+ * threads and drop frames, the most recent poses of each estimator are kept in a small
+ * window.
+ *
+ * @author Eike Mansfeld
+ */
+public class MAVEstimatorComparator {
+
+	private static final int WINDOW = 16;
+
+	private final Stats[]     stats   = new Stats[2];
+
+	private final long[][]    keys    = new long[2][WINDOW];
+	private final Se3_F64[][] poses   = new Se3_F64[2][WINDOW];
+	private final int[]       head    = new int[2];
+
+	private final double[]    euler_p = new double[3];
+	private final double[]    euler_s = new double[3];
+
+	private long   compared     = 0;
+	private double dist_last    = 0;
+	private double dist_sum     = 0;
+	private double dist_max     = 0;
+	private double yaw_sum      = 0;
+	private double yaw_max      = 0;
+
+	public MAVEstimatorComparator(String primary, String shadow) {
+		stats[MAVAbstractPositionEstimator.ROLE_PRIMARY] = new Stats(primary);
+		stats[MAVAbstractPositionEstimator.ROLE_SHADOW]  = new Stats(shadow);
+		for(int r = 0; r < 2; r++)
+			for(int i = 0; i < WINDOW; i++)
+				poses[r][i] = new Se3_F64();
+	}
+
+	/**
+	 * @param role    Role of the reporting estimator
+	 * @param tms_us  Capture time of the frame
+	 * @param cpu_ns  CPU time spent on the frame
+	 * @param pose    Pose estimated for the frame or null if not valid
+	 */
+	public synchronized void report(int role, long tms_us, long cpu_ns, int quality, Se3_F64 pose) {
+		Stats s = stats[role];
+		s.frames++;
+		s.cpu_total += cpu_ns;
+		if(cpu_ns > s.cpu_max)
+			s.cpu_max = cpu_ns;
+
+		if(pose == null)
+			return;
+
+		s.valid++;
+		s.quality_sum += quality;
+
+		int h = head[role];
+		keys[role][h] = tms_us;
+		poses[role][h].set(pose);
+		head[role] = (h + 1) % WINDOW;
+
+		// compare with the other estimator if it already reported this frame
+		int other = 1 - role;
+		for(int i = 0; i < WINDOW; i++) {
+			if(keys[other][i] == tms_us) {
+				if(role == MAVAbstractPositionEstimator.ROLE_PRIMARY)
+					compare(pose, poses[other][i]);
+				else
+					compare(poses[other][i], pose);
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Counts a re-initialization of the estimator
+	 */
+	public synchronized void init(int role, String reason) {
+		stats[role].inits++;
+		stats[role].last_reason = reason;
+	}
+
+	private void compare(Se3_F64 primary, Se3_F64 shadow) {
+		dist_last = primary.T.distance(shadow.T);
+		dist_sum += dist_last;
+		if(dist_last > dist_max)
+			dist_max = dist_last;
+
+		ConvertRotation3D_F64.matrixToEuler(primary.R, EulerType.ZXY, euler_p);
+		ConvertRotation3D_F64.matrixToEuler(shadow.R, EulerType.ZXY, euler_s);
+		double yaw = Math.abs(euler_p[2] - euler_s[2]);
+		if(yaw > Math.PI)
+			yaw = 2 * Math.PI - yaw;
+		yaw_sum += yaw;
+		if(yaw > yaw_max)
+			yaw_max = yaw;
+
+		compared++;
+	}
+
+	/**
+	 * @return Number of frames both estimators provided a valid pose for
+	 */
+	public synchronized long getCompared() {
+		return compared;
+	}
+
+	/**
+	 * @return Position divergence in m of the last compared frame
+	 */
+	public synchronized double getDivergence() {
+		return dist_last;
+	}
+
+	public synchronized double getMeanDivergence() {
+		return compared > 0 ? dist_sum / compared : 0;
+	}
+
+	public synchronized double getMaxDivergence() {
+		return dist_max;
+	}
+
+	/**
+	 * @return Mean CPU time per frame in ms of the estimator with the given role
+	 */
+	public synchronized double getMeanCpuTime(int role) {
+		Stats s = stats[role];
+		return s.frames > 0 ? s.cpu_total / 1e6 / s.frames : 0;
+	}
+
+	/**
+	 * @return Mean quality of valid frames of the estimator with the given role
+	 */
+	public synchronized double getMeanQuality(int role) {
+		Stats s = stats[role];
+		return s.valid > 0 ? (double)s.quality_sum / s.valid : 0;
+	}
+
+	public synchronized long getInits(int role) {
+		return stats[role].inits;
+	}
+
+	@Override
+	public synchronized String toString() {
+		StringBuilder b = new StringBuilder();
+		for(Stats s : stats)
+			b.append(s.toString()).append('\n');
+		b.append(String.format("divergence: frames=%d mean=%.3fm max=%.3fm yaw mean=%.1f° max=%.1f°",
+				compared, getMeanDivergence(), dist_max,
+				compared > 0 ? Math.toDegrees(yaw_sum / compared) : 0.0, Math.toDegrees(yaw_max)));
+		return b.toString();
+	}
+
+	private static class Stats {
+
+		final String name;
+
+		long   frames      = 0;
+		long   valid       = 0;
+		long   inits       = 0;
+		long   quality_sum = 0;
+		long   cpu_total   = 0;
+		long   cpu_max     = 0;
+		String last_reason = null;
+
+		Stats(String name) {
+			this.name = name;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%s: frames=%d valid=%d inits=%d (%s) quality=%.1f cpu avg=%.1fms max=%.1fms",
+					name, frames, valid, inits, last_reason,
+					valid > 0 ? (double)quality_sum / valid : 0.0,
+					frames > 0 ? cpu_total / 1e6 / frames : 0.0, cpu_max / 1e6);
+		}
+	}
+}
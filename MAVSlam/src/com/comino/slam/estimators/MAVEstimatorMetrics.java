@@ -0,0 +1,88 @@
+/****************************************************************************
+ *
+ *   Copyright (c) 2017 Eike Mansfeld ecm@gmx.de. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ * 3. Neither the name of the copyright holder nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS
+ * OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED
+ * AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ ****************************************************************************/
+
+
+package com.comino.slam.estimators;
+
+import com.comino.server.metrics.Counter;
+import com.comino.server.metrics.Gauge;
+import com.comino.server.metrics.Histogram;
+import com.comino.server.metrics.LabeledCounter;
+import com.comino.server.metrics.MetricsRegistry;
+import com.comino.server.metrics.MetricsWriter;
+
+/**
+ * Metrics of a position estimator, labeled with the role of the estimator. All updates
+ * are lock-free and may be called from the frame processing threads.
+ *
+ * @author Eike Mansfeld
+ */
+public class MAVEstimatorMetrics {
+
+	public final Histogram      ingest;
+	public final Histogram      queue;
+	public final Histogram      odometry;
+
+	public final Counter        frames;
+	public final LabeledCounter resets;
+
+	public final Gauge          fps;
+	public final Gauge          quality;
+	public final Gauge          tracks;
+	public final Gauge          inliers;
+	public final Gauge          ransac;
+	public final Gauge          load;
+
+	public MAVEstimatorMetrics(String role) {
+
+		MetricsRegistry r = MetricsRegistry.getInstance();
+		String l = MetricsWriter.label("estimator", role);
+
+		ingest   = r.histogram("vision_stage_seconds", "Processing time per frame and pipeline stage",
+				MetricsWriter.labels(l, MetricsWriter.label("stage", "ingest")));
+		queue    = r.histogram("vision_stage_seconds", "Processing time per frame and pipeline stage",
+				MetricsWriter.labels(l, MetricsWriter.label("stage", "queue")));
+		odometry = r.histogram("vision_stage_seconds", "Processing time per frame and pipeline stage",
+				MetricsWriter.labels(l, MetricsWriter.label("stage", "odometry")));
+
+		frames   = r.counter("vision_frames_total", "Frames processed by the odometry", l);
+		resets   = r.counter("vision_resets_total", "Odometry re-initializations by reason", l, "reason");
+
+		fps      = r.gauge("vision_fps", "Odometry frame rate", l);
+		quality  = r.gauge("vision_quality", "Odometry quality in percent", l);
+		tracks   = r.gauge("vision_tracks", "Number of active tracks", l);
+		inliers  = r.gauge("vision_inliers", "Number of inlier tracks of the last estimate", l);
+		ransac   = r.gauge("vision_ransac_iterations", "Maximum number of RANSAC iterations", l);
+		load     = r.gauge("vision_load_level", "Number of degradation steps applied by the load governor", l);
+	}
+}
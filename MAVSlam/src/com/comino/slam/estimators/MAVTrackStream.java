@@ -0,0 +1,165 @@
+/****************************************************************************
+ *
+ *   Copyright (c) 2017 Eike Mansfeld ecm@gmx.de. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ * 3. Neither the name of the copyright holder nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS
+ * OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED
+ * AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ ****************************************************************************/
+
+
+
+package com.comino.slam.estimators;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import com.comino.server.http.IHttpStream;
+import com.comino.server.mjpeg.impl.MJPEGBroadcaster;
+import com.comino.server.mjpeg.impl.MJPEGBroadcaster.JpegFrame;
+import com.comino.slam.boofcv.MAVDepthVisualOdometry;
+
+import boofcv.abst.sfm.AccessPointTracks3D;
+import georegression.geometry.ConvertRotation3D_F64;
+import georegression.struct.EulerType;
+import georegression.struct.point.Point2D_F64;
+import georegression.struct.se.Se3_F64;
+
+/**
+ * Binary stream of the tracks and pose of each odometry frame, so that a ground station
+ * can render overlays itself. Each frame is sent as one part of a multipart stream with
+ * the content type application/octet-stream. All values are big endian:
+ * <pre>
+ * header (28 bytes)
+ *   byte[2]  'T','K'
+ *   byte     version (1)
+ *   byte     flags: bit 0 pose from depth ICP, track depths unknown
+ *   int64    timestamp in us
+ *   int16[3] position x,y,z (NED) in cm
+ *   int16[3] Euler angles (ZXY) of the camera in 1e-4 rad
+ *   int16    quality in %
+ *   int16    image width
+ *   int16    image height
+ *   int16    number of tracks n
+ * n tracks (8 bytes each)
+ *   int16    x in 1/8 pixel
+ *   int16    y in 1/8 pixel
+ *   uint16   depth in mm, 0 if unknown
+ *   byte     flags: bit 0 inlier, bit 1 new
+ *   byte     reserved
+ * </pre>
+ * Packing and publishing costs nothing while no client is connected.
+ *
+ * @author Eike Mansfeld
+ */
+public class MAVTrackStream implements IHttpStream {
+
+	public  static final int  VERSION         = 1;
+	private static final int  HEADER_SIZE     = 28;
+	private static final int  TRACK_SIZE      = 8;
+	private static final int  MAX_TRACKS      = 4096;
+	private static final long MIN_INTERVAL_MS = 33;
+
+	private final MJPEGBroadcaster   broadcaster = new MJPEGBroadcaster();
+	private final MJPEGBroadcaster[] levels      = { broadcaster };
+
+	private final int       width;
+	private final int       height;
+	private final double[]  euler = new double[3];
+
+	public MAVTrackStream(int width, int height) {
+		this.width  = width;
+		this.height = height;
+	}
+
+	/**
+	 * Publishes the tracks of the current frame. Called by the odometry thread only.
+	 *
+	 * @param pose Camera to world transform of the published pose
+	 * @param odometry Odometry providing the depth of each track in the current camera frame
+	 * @param icp True if the pose was not estimated from the tracks, so their depth is unknown
+	 */
+	public void publish(long tms_us, Se3_F64 pose, AccessPointTracks3D tracks, MAVDepthVisualOdometry<?,?> odometry,
+			int quality, boolean icp) {
+		if(broadcaster.getClients() == 0)
+			return;
+
+		List<Point2D_F64> all = tracks.getAllTracks();
+		int n = Math.min(all.size(), MAX_TRACKS);
+
+		JpegFrame frame = broadcaster.obtain();
+		frame.ensureCapacity(HEADER_SIZE + n * TRACK_SIZE);
+		ByteBuffer b = ByteBuffer.wrap(frame.getData());
+
+		ConvertRotation3D_F64.matrixToEuler(pose.R, EulerType.ZXY, euler);
+
+		b.put((byte)'T').put((byte)'K').put((byte)VERSION).put((byte)(icp ? 1 : 0));
+		b.putLong(tms_us);
+		b.putShort(quantize(pose.T.z * 100)).putShort(quantize(pose.T.x * 100)).putShort(quantize(pose.T.y * 100));
+		for(int i = 0; i < 3; i++)
+			b.putShort(quantize(euler[i] * 10000));
+		b.putShort((short)quality).putShort((short)width).putShort((short)height).putShort((short)n);
+
+		for(int i = 0; i < n; i++) {
+			Point2D_F64 p = all.get(i);
+			b.putShort(quantize(p.x * 8)).putShort(quantize(p.y * 8));
+			b.putShort((short)(icp ? 0 : depth(odometry.getTrackDepth(i))));
+			b.put((byte)((tracks.isInlier(i) ? 1 : 0) | (tracks.isNew(i) ? 2 : 0))).put((byte)0);
+		}
+
+		frame.setSize(b.position());
+		broadcaster.publish(frame, tms_us);
+	}
+
+	@Override
+	public MJPEGBroadcaster[] getLevels(String query) {
+		return query == null ? levels : null;
+	}
+
+	@Override
+	public String getContentType() {
+		return "application/octet-stream";
+	}
+
+	@Override
+	public long getMinInterval() {
+		return MIN_INTERVAL_MS;
+	}
+
+	/**
+	 * @return Depth in mm or 0 if unknown
+	 */
+	private static int depth(double z) {
+		if(Double.isNaN(z) || z <= 0)
+			return 0;
+		return (int)Math.min(65535, z * 1000);
+	}
+
+	private static short quantize(double v) {
+		return (short)Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, Math.round(v)));
+	}
+}
@@ -36,37 +36,50 @@ package com.comino.slam.estimators.vio;
 
 import java.awt.Color;
 import java.awt.Graphics;
-import java.util.ArrayList;
-import java.util.List;
 
 import org.mavlink.messages.MAV_SEVERITY;
 import org.mavlink.messages.MSP_CMD;
 import org.mavlink.messages.MSP_COMPONENT_CTRL;
+import org.mavlink.messages.lquac.msg_attitude;
 import org.mavlink.messages.lquac.msg_msp_command;
 import org.mavlink.messages.lquac.msg_msp_vision;
 import org.mavlink.messages.lquac.msg_vision_position_estimate;
+import org.mavlink.messages.lquac.msg_vision_speed_estimate;
 
 import com.comino.main.MSPConfig;
 import com.comino.mav.control.IMAVMSPController;
 import com.comino.msp.execution.control.StatusManager;
 import com.comino.msp.execution.control.listener.IMAVLinkListener;
 import com.comino.msp.log.MSPLogger;
-import com.comino.msp.model.DataModel;
 import com.comino.msp.model.segment.Status;
 import com.comino.msp.utils.ExecutorService;
 import com.comino.msp.utils.MSPMathUtils;
 import com.comino.realsense.boofcv.RealSenseInfo;
 import com.comino.realsense.boofcv.StreamRealSenseVisDepth;
 import com.comino.realsense.boofcv.StreamRealSenseVisDepth.Listener;
+import com.comino.server.metrics.MetricsRegistry;
 import com.comino.server.mjpeg.IVisualStreamHandler;
-import com.comino.slam.boofcv.MAVDepthVisualOdometry;
+import com.comino.slam.boofcv.icp.MAVDepthICPOdometry;
 import com.comino.slam.boofcv.vio.FactoryMAVOdometryVIO;
+import com.comino.slam.boofcv.vio.odometry.MAVOdomPixelDepthPnPVIO;
+import com.comino.slam.boofcv.vio.odometry.MAVOdomPixelDepthPnP_to_DepthVisualOdometryVIO;
+import com.comino.slam.boofcv.vio.odometry.MAVSparseFlowVelocityVIO;
 import com.comino.slam.boofcv.vio.tracker.FactoryMAVPointTrackerTwoPassVIO;
+import com.comino.slam.boofcv.vio.tracker.MAVPointTrackerTwoPassKltPyramidVIO;
 import com.comino.slam.detectors.ISLAMDetector;
-import com.comino.slam.estimators.IPositionEstimator;
+import com.comino.slam.detectors.MAVDetectorFrame;
+import com.comino.slam.detectors.MAVDetectorFramePool;
+import com.comino.slam.detectors.MAVDetectorScheduler;
+import com.comino.slam.estimators.MAVAbstractPositionEstimator;
+import com.comino.slam.pipeline.LoadGovernor;
+import com.comino.slam.pipeline.PipelineStage;
+import com.comino.slam.pipeline.SPSCRing;
+import com.comino.slam.pipeline.ThreadAffinity;
+import com.comino.slam.pose.MAVPoseHistory;
+import com.comino.slam.publisher.MAVPoseExtrapolator;
+import com.comino.slam.publisher.MAVVisionPublisher;
 
 import boofcv.abst.feature.detect.interest.ConfigGeneralDetector;
-import boofcv.abst.feature.tracker.PointTrackerTwoPass;
 import boofcv.abst.sfm.AccessPointTracks3D;
 import boofcv.alg.distort.DoNothingPixelTransform_F32;
 import boofcv.alg.sfm.DepthSparse3D;
@@ -80,15 +93,17 @@ import georegression.geometry.ConvertRotation3D_F64;
 import georegression.geometry.GeometryMath_F64;
 import georegression.struct.EulerType;
 import georegression.struct.point.Point3D_F64;
+import georegression.struct.point.Vector3D_F64;
 import georegression.struct.se.Se3_F64;
 import javafx.application.Platform;
 
-public class MAVVisualPositionEstimatorVIO implements IPositionEstimator {
+public class MAVVisualPositionEstimatorVIO extends MAVAbstractPositionEstimator {
 
 	private static final int   	PUBLISH_RATE_MSP	    = 50 - 5;
 	private static final int  	PUBLISH_RATE_PX4    	= 10 - 5;
 
 	private static final int    INIT_COUNT           	= 3;
+	private static final int    MIN_WARM_TRACKS        	= 15;
 	private static final int    MAX_ERRORS    	    	= 5;
 	private static final int    MAX_QUALITY_ERRORS   	= 10;
 
@@ -105,20 +120,71 @@ public class MAVVisualPositionEstimatorVIO implements IPositionEstimator {
 	private static final int    ADD_THRESHOLD       	= 50;
 	private static final int    REFINE_ITERATIONS   	= 60;
 
+	private static final int    PYR_MIN_LEVELS         = 2;
+	private static final int    PYR_MAX_LEVELS         = 4;
+	private static final float  MIN_SCENE_DEPTH        = 0.5f;
+
+	private static final int    ICP_DECIMATION         = 4;
+	private static final long   ICP_MAX_TIME_MS        = 15;
+	private static final int    ICP_HANDOVER_FRAMES    = 5;
+
+	private static final int    PNP_DIVIDER            = 2;
+
+	private static final int    PIPELINE_DEPTH         = 2;
+
+	private static final int    FRAME_BUDGET_MS        = 25;
+	private static final int    DETECTOR_SCALE_LOAD    = 4;
+
+	private static final int    PX4_RATE_HZ            = 30;
+	private static final int    LATENCY_MS             = 15;
+	private static final long   MAX_EXTRAPOLATION_MS   = 200;
+
+	private static final int    HISTORY_SIZE           = 256;
+
+	// detector frames: one per detector running, one per detector pending and the one filled
+	private static final int    DETECTOR_FRAMES        = 1;
+	private static final int    DETECTOR_FRAMES_PER_JOB = 2;
+
 	private static final int    MIN_MESSAGE_INTERVAL_MS = 500;
 
 	// TODO: get mounting offset of camera from config file
 	private final Point3D_F64 mounting_offset = new Point3D_F64(0.015,-0.057,0.068);
 
 
-	private StreamRealSenseVisDepth 				    realsense			= null;
-	private MAVDepthVisualOdometry<GrayU8,GrayU16>    	visualOdometry		= null;
-	private RealSenseInfo 						    	info				= null;
+	private MAVOdomPixelDepthPnP_to_DepthVisualOdometryVIO<GrayU8,GrayU16> visualOdometry = null;
+	private MAVPointTrackerTwoPassKltPyramidVIO<GrayU8,GrayS16> tracker		= null;
+	private MAVDepthICPOdometry                         icp                 = null;
+	private MAVSparseFlowVelocityVIO                    flow                = null;
+
+	private SPSCRing<Frame>                             frames              = null;
+	private PipelineStage<Frame>                        odometryStage       = null;
+	private Listener                                    odometry            = null;
+	private LoadGovernor                                governor            = null;
+
+	private MAVVisionPublisher                                       publisher     = null;
+	private MAVVisionPublisher.Mailbox<msg_vision_position_estimate> px4_position  = null;
+	private MAVVisionPublisher.Mailbox<msg_vision_speed_estimate>    px4_speed     = null;
+	private MAVVisionPublisher.Mailbox<msg_msp_vision>               msp_vision    = null;
+	private MAVPoseExtrapolator                                      extrapolator  = null;
+
+	private Se3_F64     ext_pose            = new Se3_F64();
+	private double[]    ext_att             = new double[3];
+
+	// vision poses and autopilot poses stamped with the capture time
+	private MAVPoseHistory                                           visionHistory    = new MAVPoseHistory(HISTORY_SIZE);
+	private MAVPoseHistory                                           autopilotHistory = new MAVPoseHistory(HISTORY_SIZE);
+	private Se3_F64                                                  autopilotPose    = new Se3_F64();
+	private Se3_F64                                                  detectorState    = new Se3_F64();
+
+	private MAVDetectorFramePool                        detectorFrames      = null;
+	private MAVDetectorScheduler                        detectorScheduler   = null;
 
 	private GrayU8 gray 			= null;
 
 	private double oldTimeDepth_us	= 0;
 	private double estTimeDepth_us	= 0;
+	private double flowTimeDepth_us = 0;
+	private double frame_dt         = 0;
 
 
 	//	private Quaternion_F64 att_q	= new Quaternion_F64();
@@ -127,26 +193,34 @@ public class MAVVisualPositionEstimatorVIO implements IPositionEstimator {
 	private long last_pos_tms        = 0;
 	private long last_msp_tms        = 0;
 
-	private DataModel model;
-
 	private boolean debug 					= false;
 	private boolean heading_init_enabled 	= false;
-	private boolean isRunning    			= false;
 	private boolean isDetectorEnabled       = true;
 
 	private Se3_F64 pose                    = new Se3_F64();
 	private Se3_F64 pose_old                = new Se3_F64();
 	private Se3_F64 speed                   = new Se3_F64();
+	private Se3_F64 attitude                = new Se3_F64();
 
 	private int quality				= 0;
 	private int min_quality 		= 0;
 
 	private long detector_tms 		= 0;
 	private int  detector_cycle_ms 	= 250;
+	private int  detector_budget_ms = 50;
 
 	private float vision_pos_gate    = 0;
 	private float vision_speed_gate  = 0;
 
+	private int   pyr_max_levels    = PYR_MAX_LEVELS;
+	private double focal            = 0;
+
+	private int   max_tracks        = MAXTRACKS;
+	private int   pnp_divider       = PNP_DIVIDER;
+	private int   px4_rate          = PX4_RATE_HZ;
+	private int   latency_ms        = LATENCY_MS;
+	private long  frame_count       = 0;
+
 	private float fps 				= 0;
 	private long  fps_tms         	= 0;
 
@@ -162,21 +236,29 @@ public class MAVVisualPositionEstimatorVIO implements IPositionEstimator {
 	private boolean do_xy_speed 	= false;
 	private boolean do_attitude		= false;
 	private boolean do_covariances  = false;
-
-	private IMAVMSPController 							control		= null;
-	private List<ISLAMDetector> 						detectors 	= null;
-	private List<IVisualStreamHandler<Planar<GrayU8>>>	streams 	= null;
+	private boolean do_icp_fallback = false;
+	private boolean do_pipeline     = false;
+	private int     cpu_ingest      = -1;
+	private int     cpu_odometry    = -1;
+	private boolean icp_active      = false;
+	private int     icp_vo_good     = 0;
+	private boolean frame_valid     = false;
 
 
 	private final Color	bgColor = new Color(128,128,128,130);
 
 
-	public <T> MAVVisualPositionEstimatorVIO(RealSenseInfo info, IMAVMSPController control, MSPConfig config, IVisualStreamHandler<T> stream) {
+	public MAVVisualPositionEstimatorVIO(RealSenseInfo info, IMAVMSPController control, MSPConfig config, IVisualStreamHandler<Planar<GrayU8>> stream) {
+		this(info, control, config, stream, null);
+	}
+
+	/**
+	 * @param source Frame source shared with another estimator or null to open the camera
+	 */
+	public MAVVisualPositionEstimatorVIO(RealSenseInfo info, IMAVMSPController control, MSPConfig config,
+			IVisualStreamHandler<Planar<GrayU8>> stream, StreamRealSenseVisDepth source) {
 
-		this.info    = info;
-		this.control = control;
-		this.detectors = new ArrayList<ISLAMDetector>();
-		this.streams   = new ArrayList<IVisualStreamHandler<Planar<GrayU8>>>();
+		super(info, control, source);
 
 		System.out.println("Vision position estimator: "+this.getClass().getSimpleName());
 		this.debug = config.getBoolProperty("vision_debug", "true");
@@ -208,16 +290,59 @@ public class MAVVisualPositionEstimatorVIO implements IPositionEstimator {
 		this.do_covariances = config.getBoolProperty("vision_pub_covariance", "true");
 		System.out.println("Vision publishes covariances: "+do_covariances);
 
+		this.pyr_max_levels = config.getIntProperty("vision_pyr_max_levels", String.valueOf(PYR_MAX_LEVELS));
+		System.out.println("Vision max. pyramid levels: "+pyr_max_levels);
+
+		this.pnp_divider = Math.max(1,config.getIntProperty("vision_pnp_divider", String.valueOf(PNP_DIVIDER)));
+		System.out.println("Vision PnP every "+pnp_divider+". frame");
+
+		this.do_pipeline = config.getBoolProperty("vision_pipeline", "true");
+		this.cpu_ingest = config.getIntProperty("vision_cpu_ingest", "-1");
+		this.cpu_odometry = config.getIntProperty("vision_cpu_odometry", "-1");
+		System.out.println("Vision pipeline enabled: "+do_pipeline+" (CPU ingest: "+cpu_ingest+" odometry: "+cpu_odometry+")");
+
+		this.px4_rate = config.getIntProperty("vision_px4_rate", String.valueOf(PX4_RATE_HZ));
+		this.latency_ms = config.getIntProperty("vision_latency_ms", String.valueOf(LATENCY_MS));
+		if(px4_rate > 0)
+			System.out.println("Vision publishes to PX4 with "+px4_rate+"Hz (latency "+latency_ms+"ms)");
+
+		this.do_icp_fallback = config.getBoolProperty("vision_icp_fallback", "true");
+		System.out.println("Vision depth ICP fallback: "+do_icp_fallback);
+
 		this.detector_cycle_ms = config.getIntProperty("vision_detector_cycle", "100");
 		if(this.detector_cycle_ms > 0)
 			System.out.printf("Vision detectors enablied with %d [ms] cycle \n",detector_cycle_ms);
+		this.detector_budget_ms = config.getIntProperty("vision_detector_budget", "50");
+		this.detectorScheduler = new MAVDetectorScheduler(config.getBoolProperty("vision_detector_parallel", "false"));
+		this.detectorScheduler.setFailureListener(() -> setSensor(Status.MSP_SLAM_AVAILABILITY, false));
 
 		System.out.println("Resolution: "+info.width+"x"+info.height);
 
-		this.model = control.getCurrentModel();
-
 		gray = new GrayU8(info.width,info.height);
 
+		publisher    = new MAVVisionPublisher(control);
+		px4_position = publisher.register(() -> new msg_vision_position_estimate(1,2));
+		px4_speed    = publisher.register(() -> new msg_vision_speed_estimate(1,2));
+		msp_vision   = publisher.register(() -> new msg_msp_vision(2,1));
+
+		// record autopilot pose with every attitude update
+		control.registerListener(msg_attitude.class, new IMAVLinkListener() {
+			@Override
+			public void received(Object o) {
+				msg_attitude att = (msg_attitude)o;
+				if(Float.isNaN(model.state.l_x) || Float.isNaN(model.state.l_y))
+					return;
+				ConvertRotation3D_F64.eulerToMatrix(EulerType.ZXY, att.roll, att.pitch, att.yaw, autopilotPose.R);
+				autopilotPose.T.set(model.state.l_y, model.state.l_z, model.state.l_x);
+				autopilotHistory.add(System.currentTimeMillis()*1000, autopilotPose);
+			}
+		});
+
+		if(px4_rate > 0) {
+			extrapolator = new MAVPoseExtrapolator(visionHistory, MAX_EXTRAPOLATION_MS * 1000L);
+			publisher.setPeriodicTask(1000 / px4_rate, () -> publishPX4Extrapolated());
+		}
+
 		control.registerListener(msg_msp_command.class, new IMAVLinkListener() {
 			@Override
 			public void received(Object o) {
@@ -269,7 +394,7 @@ public class MAVVisualPositionEstimatorVIO implements IPositionEstimator {
 		}
 
 		try {
-			realsense = new StreamRealSenseVisDepth(0,info);
+			openSource();
 		} catch(Exception e) {
 			this.do_odometry = false;
 			this.detector_cycle_ms = 0;
@@ -278,12 +403,11 @@ public class MAVVisualPositionEstimatorVIO implements IPositionEstimator {
 		}
 
 		PkltConfig configKlt = new PkltConfig();
-		configKlt.pyramidScaling = new int[]{ 1, 2, 4, 8 };
+		configKlt.pyramidScaling = new int[]{ 1, 2, 4, 8, 16 };
 		configKlt.templateRadius = 3;
 
-		PointTrackerTwoPass<GrayU8> tracker =
-				FactoryMAVPointTrackerTwoPassVIO.klt(configKlt, new ConfigGeneralDetector(MAXTRACKS, KLT_RADIUS, KLT_THRESHOLD),
-						GrayU8.class, GrayS16.class);
+		tracker = FactoryMAVPointTrackerTwoPassVIO.klt(configKlt, new ConfigGeneralDetector(MAXTRACKS, KLT_RADIUS, KLT_THRESHOLD),
+						PYR_MIN_LEVELS, pyr_max_levels, GrayU8.class, GrayS16.class);
 
 		DepthSparse3D<GrayU16> sparseDepth = new DepthSparse3D.I<GrayU16>(1e-3);
 
@@ -292,13 +416,30 @@ public class MAVVisualPositionEstimatorVIO implements IPositionEstimator {
 				ADD_THRESHOLD, RETIRE_THRESHOLD, RANSAC_ITERATIONS, REFINE_ITERATIONS, true, mounting_offset,
 				sparseDepth, tracker, GrayU8.class, GrayU16.class);
 
+		int frame_budget_ms = config.getIntProperty("vision_frame_budget_ms", String.valueOf(FRAME_BUDGET_MS));
+		if(frame_budget_ms > 0) {
+			System.out.println("Vision load governor enabled with "+frame_budget_ms+"ms per frame");
+			governor = createGovernor(visualOdometry.getAlgorithm(), frame_budget_ms);
+		}
+
 		visualOdometry.setCalibration(realsense.getIntrinsics(),new DoNothingPixelTransform_F32());
+		focal = realsense.getIntrinsics().fx;
+
+		detectorFrames = new MAVDetectorFramePool(DETECTOR_FRAMES, realsense.getIntrinsics(), 1e-3, MAXTRACKS);
+
+		flow = new MAVSparseFlowVelocityVIO(tracker, 1e-3);
+		flow.setCalibration(realsense.getIntrinsics());
+
+		if(do_icp_fallback) {
+			icp = new MAVDepthICPOdometry(ICP_DECIMATION, 1e-3f, ICP_MAX_TIME_MS);
+			icp.setCalibration(realsense.getIntrinsics(),new DoNothingPixelTransform_F32());
+		}
 
 		if(stream!=null) {
 			registerStreams(stream);
 
-			if(debug && streams.get(0) !=null) {
-				streams.get(0).registerOverlayListener(ctx -> {
+			if(debug && config.getBoolProperty("stream_overlay", "true")) {
+				registerOverlay(ctx -> {
 					overlayFeatures(ctx);
 				});
 			}
@@ -307,30 +448,46 @@ public class MAVVisualPositionEstimatorVIO implements IPositionEstimator {
 		initialized_count = 0;
 
 
-		realsense.registerListener(new Listener() {
+		odometry = new Listener() {
 
 			double dt; int mf=0; int fpm;
 			int qual_error_count=0;
 
 			@Override
 			public void process(Planar<GrayU8> rgb, GrayU16 depth, long timeRgb, long timeDepth) {
+				long tms_ns = System.nanoTime();
+				long cpu_ns = cpuTime();
+				frame_valid = false;
+				estimate(rgb, depth, timeRgb, timeDepth);
+				if(!do_odometry)
+					return;
+				report(timeDepth * 1000, cpuTime() - cpu_ns, quality, frame_valid ? pose : null);
+				long frame_ns = System.nanoTime() - tms_ns;
+				metrics.odometry.observeNanos(frame_ns);
+				metrics.tracks.set(visualOdometry.getAllTracks().size());
+				metrics.inliers.set(visualOdometry.getInlierCount());
+				metrics.ransac.set(visualOdometry.getAlgorithm().getRansacIterations());
+				if(governor != null) {
+					// with a shadow estimator, only the CPU time of this estimator counts
+					governor.update(isCompared() ? cpuTime() - cpu_ns : frame_ns);
+					metrics.load.set(governor.getLevel());
+				}
+			}
 
-				publish_tms_us = System.currentTimeMillis()*1000;
-
-				for(IVisualStreamHandler<Planar<GrayU8>> stream : streams)
-					stream.addToStream(rgb, model, System.currentTimeMillis()*1000);
+			private void estimate(Planar<GrayU8> rgb, GrayU16 depth, long timeRgb, long timeDepth) {
 
 				if(!do_odometry || visualOdometry == null ) {
 					return;
 				}
 
 				// Averaging frames per second
-				if(dt >0) {
-					fpm += (int)(1f/dt+0.5f);
+				if(frame_dt >0) {
+					fpm += (int)(1f/frame_dt+0.5f);
 					if((System.currentTimeMillis() - fps_tms) > 500) {
 						fps_tms = System.currentTimeMillis();
 						if(mf>0)
 							fps = fpm/mf;
+						metrics.fps.set(fps);
 						mf=0; fpm=0;
 					}
 					mf++;
@@ -340,15 +497,62 @@ public class MAVVisualPositionEstimatorVIO implements IPositionEstimator {
 
 					ConvertImage.average(rgb, gray);
 
+					tracker.setPredictedMotion(predictPixelMotion(frame_dt));
 
+					// velocity only between PnP frames
+					if(!icp_active && initialized_count > INIT_COUNT && (++frame_count % pnp_divider) != 0) {
+						tracker.process(gray);
+						tracker.finishTracking();
+						if(updateVelocity(depth, timeDepth))
+							publishVelocity();
+						return;
+					}
+
+					boolean tracked;
 					if(control.isSimulation()) {
-						if( !visualOdometry.process(gray,depth,null)) {
-							init("Tracking");
+						tracked = visualOdometry.process(gray,depth,null);
+					} else {
+						setModelToState(model, pose);
+						tracked = visualOdometry.process(gray,depth,pose);
+					}
+
+					quality = (int)((visualOdometry.getQuality())*100f / max_tracks);
+
+					// fall back to depth ICP if feature tracking fails or is poor, e.g. in textureless scenes
+					if(icp != null && (icp_active || !tracked || quality <= min_quality) && initialized_count > INIT_COUNT) {
+						if(!icp_active) {
+							// restart feature tracking once; it continues in the background
+							icp.reset(pose_old);
+							visualOdometry.reset(pose_old);
+							icp_active  = true;
+							icp_vo_good = 0;
+							if(debug)
+								System.out.println("[vio] Switched to depth ICP");
+						} else if(!tracked) {
+							visualOdometry.reset(icp.getCameraToWorld());
+							icp_vo_good = 0;
+						} else if(quality > min_quality)
+							icp_vo_good++;
+						else
+							icp_vo_good = 0;
+
+						if(!icp.process(gray, depth, control.isSimulation() ? null : pose)) {
+							init("ICP");
 							return;
 						}
+
+						// hand back to feature odometry after its quality was good for several frames
+						if(icp_vo_good >= ICP_HANDOVER_FRAMES && visualOdometry.softReset(icp.getCameraToWorld(), MIN_WARM_TRACKS)) {
+							icp_active = false;
+							if(debug)
+								System.out.println("[vio] Switched to feature odometry");
+						} else {
+							if(icp_vo_good >= ICP_HANDOVER_FRAMES)
+								icp_vo_good = 0;
+							quality = (int)(icp.getQuality()*100f);
+						}
 					} else {
-						setModelToState(model, pose);
-						if( !visualOdometry.process(gray,depth,pose)) {
+						if(!tracked) {
 							init("Tracking");
 							return;
 						}
@@ -362,12 +566,16 @@ public class MAVVisualPositionEstimatorVIO implements IPositionEstimator {
 					return;
 				}
 
-				quality = (int)((visualOdometry.getQuality())*100f / (MAXTRACKS));
 				if(quality > 100) quality = 100; if(quality < 1) quality = 1;
 
+				boolean hasVelocity = updateVelocity(depth, timeDepth) && !icp_active;
+
 
 				// get Measurement from odometry
-				pose.set(visualOdometry.getCameraToWorld());
+				if(icp_active)
+					pose.set(icp.getCameraToWorld());
+				else
+					pose.set(visualOdometry.getCameraToWorld());
 
 
 				estTimeDepth_us = timeDepth * 1000d;
@@ -404,6 +612,10 @@ public class MAVVisualPositionEstimatorVIO implements IPositionEstimator {
 							return;
 						}
 
+						// prefer the flow based velocity
+						if(hasVelocity)
+							speed.T.set(flow.getVelocity());
+
 					} else {
 
 						if(++qual_error_count > MAX_QUALITY_ERRORS) {
@@ -421,7 +633,7 @@ public class MAVVisualPositionEstimatorVIO implements IPositionEstimator {
 
 					if(Math.abs(visAttitude[2] - model.attitude.y) > 0.1 && model.sys.isStatus(Status.MSP_LANDED)
 							&& heading_init_enabled && !control.isSimulation()) {
-						init("Heading div.");
+						init("Heading div.", true);
 						return;
 					}
 				}
@@ -431,28 +643,40 @@ public class MAVVisualPositionEstimatorVIO implements IPositionEstimator {
 				if(	( Math.abs(pose.T.z - model.state.l_x) > vision_pos_gate ||
 						Math.abs(pose.T.x - model.state.l_y) > vision_pos_gate ) && !control.isSimulation())   {
 					pose_old.set(pose);
-					init("Vision pos. gate");
+					init("Vision pos. gate", true);
 					return;
 				}
 
+				final long capture_us = publish_tms_us - latency_ms * 1000L;
+				visionHistory.add(capture_us, pose);
+				frame_valid = true;
+
 				publishPX4Vision();
+				if(tracks != null)
+					tracks.publish(publish_tms_us, pose, (AccessPointTracks3D)visualOdometry, visualOdometry, quality, icp_active);
+				if(hasVelocity)
+					publishPX4Speed();
 				error_count=0;
 
 				if(detectors.size()>0 && detector_cycle_ms>0 && do_odometry && isDetectorEnabled) {
-					if((System.currentTimeMillis() - detector_tms) > detector_cycle_ms) {
-						detector_tms = System.currentTimeMillis();
-						model.sys.setSensor(Status.MSP_SLAM_AVAILABILITY, true);
-
-						ExecutorService.submit(() -> {
-							for(ISLAMDetector d : detectors) {
-								try {
-									d.process(visualOdometry, depth, gray);
-								} catch(Exception e) {
-									model.sys.setSensor(Status.MSP_SLAM_AVAILABILITY, false);
-									//System.out.println(timeDepth+"[vis] SLAM exception: "+e.getMessage());
-								}
-							}
-						}, ExecutorService.LOW);
+					// hold off after init, then let the scheduler decide which detector is due
+					if((System.currentTimeMillis() - detector_tms) > detector_cycle_ms && detectorScheduler.isDue()) {
+
+						// snapshot of the frame; skip detectors if all snapshots are still in use
+						MAVDetectorFrame frame = detectorFrames.acquire();
+						if(frame != null) {
+							setSensor(Status.MSP_SLAM_AVAILABILITY, true);
+
+							// vehicle pose at the time the frame was captured
+							if(!autopilotHistory.get(capture_us, detectorState))
+								setModelToState(model, detectorState);
+
+							frame.set(capture_us, depth, gray, detectorState, pose);
+							frame.setTracks((AccessPointTracks3D)visualOdometry, visualOdometry);
+
+							detectorScheduler.submit(frame);
+							frame.release();
+						}
 					}
 				}
 
@@ -462,6 +686,61 @@ public class MAVVisualPositionEstimatorVIO implements IPositionEstimator {
 				publisMSPVision();
 
 
+			}
+		};
+
+		if(do_pipeline) {
+			frames = new SPSCRing<Frame>(PIPELINE_DEPTH, () -> new Frame(info.width, info.height));
+			odometryStage = new PipelineStage<Frame>("VIO-odometry", frames, cpu_odometry) {
+				@Override
+				protected void process(Frame f) {
+					metrics.queue.observeNanos(System.nanoTime() - f.tms_ns);
+					publish_tms_us = f.tms_us;
+					odometry.process(f.rgb, f.depth, f.timeRgb, f.timeDepth);
+				}
+			};
+		}
+
+		// ingest stage runs in the camera thread; odometry of the previous frame runs in parallel
+		realsense.registerListener(new Listener() {
+
+			boolean pinned = false;
+
+			@Override
+			public void process(Planar<GrayU8> rgb, GrayU16 depth, long timeRgb, long timeDepth) {
+
+				long tms_us = System.currentTimeMillis()*1000;
+				long tms_ns = System.nanoTime();
+
+				if(!pinned) {
+					pinned = true;
+					if(cpu_ingest >= 0)
+						ThreadAffinity.pin(cpu_ingest);
+				}
+
+				for(IVisualStreamHandler<Planar<GrayU8>> stream : streams)
+					stream.addToStream(rgb, model, tms_us);
+
+				if(odometryStage == null) {
+					publish_tms_us = tms_us;
+					odometry.process(rgb, depth, timeRgb, timeDepth);
+					return;
+				}
+
+				// frame is dropped if the odometry stage is still busy with all slots
+				Frame f = frames.claim();
+				if(f == null)
+					return;
+
+				f.rgb.setTo(rgb);
+				f.depth.setTo(depth);
+				f.timeRgb   = timeRgb;
+				f.timeDepth = timeDepth;
+				f.tms_us    = tms_us;
+				f.tms_ns    = System.nanoTime();
+				frames.publish();
+
+				metrics.ingest.observeNanos(f.tms_ns - tms_ns);
 			}
 		});
 	}
@@ -478,7 +757,9 @@ public class MAVVisualPositionEstimatorVIO implements IPositionEstimator {
 		ctx.fillRect(5, 5, info.width-10, 21);
 		ctx.setColor(Color.white);
 
-		if(points.getAllTracks().size()==0)
+		if(icp_active)
+			ctx.drawString("Depth ICP", info.width-80, 20);
+		else if(points.getAllTracks().size()==0)
 			ctx.drawString("No odometry", info.width-90, 20);
 		else if(quality <  min_quality)
 			ctx.drawString("Low quality", info.width-85, 20);
@@ -498,38 +779,77 @@ public class MAVVisualPositionEstimatorVIO implements IPositionEstimator {
 	}
 
 	public void registerDetector(ISLAMDetector detector) {
+		registerDetector(detector, detector_cycle_ms, detector_budget_ms);
+	}
+
+	/**
+	 * @param period_ms Minimum time between two runs of the detector
+	 * @param budget_ms CPU time per run; the detector runs less often if exceeded
+	 */
+	public void registerDetector(ISLAMDetector detector, int period_ms, int budget_ms) {
 		if(detector_cycle_ms>0) {
-			System.out.println("[vis] Vision detector registered: "+detector.getClass().getSimpleName());
+			System.out.println("[vis] Vision detector registered: "+detector.getClass().getSimpleName()+
+					" ("+period_ms+"ms, budget "+budget_ms+"ms)");
 			detectors.add(detector);
+			detectorScheduler.register(detector, period_ms, budget_ms);
+			// a newer frame can always replace the pending one
+			if(detectorFrames != null)
+				detectorFrames.ensureSize(detectors.size() * DETECTOR_FRAMES_PER_JOB + DETECTOR_FRAMES);
 		}
 	}
 
-	public void enableDetectors( boolean enable) {
-		this.isDetectorEnabled = enable;
+	/**
+	 * @return Scheduler providing runtime, skip and failure counters per detector
+	 */
+	public MAVDetectorScheduler getDetectorScheduler() {
+		return detectorScheduler;
 	}
 
-	public void registerStreams(IVisualStreamHandler stream) {
-		System.out.println("[vis] Vision stream registered: "+stream.getClass().getSimpleName());
-		streams.add(stream);
+	public void enableDetectors( boolean enable) {
+		this.isDetectorEnabled = enable;
 	}
 
 	public void start() {
 		isRunning = true;
+		if(!isShadow())
+			MetricsRegistry.getInstance().register("vision_detector", detectorScheduler);
 		init("StartUp");
-		if(realsense!=null)
-			realsense.start();
+		publisher.setMuted(isShadow());
+		if(governor != null) {
+			governor.setName(isShadow() ? "vio-shadow" : "vio");
+			governor.setMuted(isShadow());
+		}
+		publisher.start();
+		if(odometryStage!=null)
+			odometryStage.start();
+		startSource();
 	}
 
 	public void stop() {
 		if(isRunning) {
-			realsense.stop();
+			stopSource();
+			if(odometryStage!=null) {
+				odometryStage.shutdown();
+				System.out.println("[vis] "+odometryStage);
+			}
 			publisMSPVision();
+			publisher.shutdown();
+			System.out.println("[vis] "+publisher);
+			System.out.print(detectorScheduler);
+			if(governor!=null)
+				System.out.println("[vis] "+governor);
+			System.out.printf("[vis] Average pyramid levels per frame: %.2f\n",tracker.getAverageLayers());
 		}
 		isRunning=false;
 	}
 
-	public boolean isRunning() {
-		return isRunning;
+	/**
+	 * @return Number of frames waiting for the odometry stage
+	 */
+	public int getQueueDepth() {
+		if(odometryStage==null)
+			return 0;
+		return odometryStage.getQueueDepth();
 	}
 
 	public void reset() {
@@ -537,45 +857,145 @@ public class MAVVisualPositionEstimatorVIO implements IPositionEstimator {
 	}
 
 
-	private Se3_F64 setModelToState(DataModel m, Se3_F64 state) {
-		if(!Float.isNaN(m.attitude.r) && !Float.isNaN(m.attitude.p) && !Float.isNaN(m.attitude.y))
-			ConvertRotation3D_F64.eulerToMatrix(EulerType.ZXY,
-					m.attitude.r,
-					m.attitude.p,
-					m.attitude.y,
-					state.getRotation());
+	/**
+	 * Load governor degrading the tracking in this order: number of tracks, RANSAC iterations,
+	 * refine iterations, second tracking pass, pyramid levels and detector cadence.
+	 * <p>
+	 * With a shadow estimator both estimators run serially on the camera thread unless
+	 * vision_pipeline is enabled, and compete for the CPU otherwise. The governors are then
+	 * fed with the CPU time of their own frames, so the load of one estimator does not
+	 * degrade the other. The combined time of both may still exceed the frame period.
+	 */
+	private LoadGovernor createGovernor(MAVOdomPixelDepthPnPVIO<GrayU8> pnp, int frame_budget_ms) {
+		LoadGovernor g = new LoadGovernor("vio", frame_budget_ms);
 
-		if(!Float.isNaN(m.state.l_y) && !Float.isNaN(m.state.l_x)) {
-			state.getTranslation().y = m.state.l_z;
-			state.getTranslation().x = m.state.l_y;
-			state.getTranslation().z = m.state.l_x;
-		}
-		return state;
+		g.addStep(() -> setMaxTracks(MAXTRACKS * 2 / 3), () -> setMaxTracks(MAXTRACKS));
+
+		g.addStep(() -> { pnp.setRansacIterations(RANSAC_ITERATIONS / 2); return "RANSAC "+RANSAC_ITERATIONS / 2; },
+				  () -> { pnp.setRansacIterations(RANSAC_ITERATIONS);     return "RANSAC "+RANSAC_ITERATIONS; });
+
+		g.addStep(() -> { pnp.setRefineIterations(REFINE_ITERATIONS / 3); return "Refine "+REFINE_ITERATIONS / 3; },
+				  () -> { pnp.setRefineIterations(REFINE_ITERATIONS);     return "Refine "+REFINE_ITERATIONS; });
+
+		g.addStep(() -> { pnp.setDoublePass(false); return "Second pass off"; },
+				  () -> { pnp.setDoublePass(true);  return "Second pass on"; });
+
+		g.addStep(() -> { tracker.setMaxLayers(tracker.getMaxLayers() - 1); return "Pyramid "+tracker.getMaxLayers(); },
+				  () -> { tracker.setMaxLayers(pyr_max_levels);              return "Pyramid "+tracker.getMaxLayers(); });
+
+		g.addStep(() -> { detectorScheduler.setPeriodScale(DETECTOR_SCALE_LOAD); return "Detectors x"+DETECTOR_SCALE_LOAD; },
+				  () -> { detectorScheduler.setPeriodScale(1);                   return "Detectors x1"; });
+
+		g.addStep(() -> setMaxTracks(MAXTRACKS / 2), () -> setMaxTracks(MAXTRACKS * 2 / 3));
+
+		return g;
+	}
+
+	private String setMaxTracks(int tracks) {
+		max_tracks = tracks;
+		tracker.setMaxFeatures(tracks);
+		return "Tracks "+tracks;
+	}
+
+	/**
+	 * Predicts the pixel motion of features for the next frame from the last
+	 * vision speed and the current attitude rates.
+	 */
+	private double predictPixelMotion(double dt) {
+		if(dt <= 0)
+			return Double.MAX_VALUE;
+
+		double rate = 0;
+		if(!Float.isNaN(model.attitude.rr) && !Float.isNaN(model.attitude.pr) && !Float.isNaN(model.attitude.yr))
+			rate = Math.sqrt(model.attitude.rr*model.attitude.rr +
+					model.attitude.pr*model.attitude.pr +
+					model.attitude.yr*model.attitude.yr);
+
+		double vel = speed.T.norm();
+		return focal * dt * (rate + vel / MIN_SCENE_DEPTH);
+	}
+
+	/**
+	 * Estimates the velocity from the sparse flow of the current frame. The rotation
+	 * between frames is taken from the attitude, or from the last pose in simulation.
+	 */
+	private boolean updateVelocity(GrayU16 depth, long timeDepth) {
+		double time_us = timeDepth * 1000d;
+		frame_dt = flowTimeDepth_us > 0 ? (time_us - flowTimeDepth_us) / 1000000d : 0;
+		flowTimeDepth_us = time_us;
+
+		if(control.isSimulation())
+			attitude.R.set(pose.R);
+		else
+			setModelToState(model, attitude);
+
+		return flow.process(depth, attitude.R, frame_dt);
+	}
+
+	/**
+	 * Publishes the flow based velocity of a frame without PnP
+	 */
+	private void publishVelocity() {
+		Vector3D_F64 v = flow.getVelocity();
+		if(Math.sqrt(v.x*v.x+v.z*v.z) > MAX_SPEED)
+			return;
+		speed.T.set(v);
+		if(extrapolator != null && do_odometry)
+			extrapolator.setVelocity(speed.T);
+		publishPX4Speed();
+		updateInternalModel();
+		publisMSPVision();
 	}
 
 	private void init(String reason) {
+		init(reason, false);
+	}
+
+	/**
+	 * @param warm If true, the odometry is re-anchored to the vehicle pose keeping the tracker
+	 *             state and surviving tracks. Falls back to a full reset if not possible.
+	 */
+	private void init(String reason, boolean warm) {
 
 		if(visualOdometry==null)
 			return;
 
-		this.initialized_count = 0;
-
 		this.last_pos_tms = 0;
 
+		visionHistory.clear();
+
 		setModelToState(model,pose);
-		visualOdometry.reset(pose);
+
+		warm = warm && !icp_active && initialized_count > INIT_COUNT && visualOdometry.softReset(pose, MIN_WARM_TRACKS);
+
+		if(warm) {
+			// next frame is tracked against the surviving tracks and published again
+			pose_old.set(pose);
+			this.initialized_count = INIT_COUNT;
+		} else {
+			this.initialized_count = 0;
+			this.icp_active = false;
+			this.frame_count = 0;
+
+			if(flow!=null)
+				flow.reset();
+
+			visualOdometry.reset(pose);
+		}
 
 		if(do_odometry) {
 
-			if((System.currentTimeMillis()-last_msg_tms)>MIN_MESSAGE_INTERVAL_MS && error_count < MAX_ERRORS) {
-				MSPLogger.getInstance().writeLocalMsg("[vio] Init ("+reason+")",
+			reportInit(reason);
+
+			if((System.currentTimeMillis()-last_msg_tms)>MIN_MESSAGE_INTERVAL_MS && error_count < MAX_ERRORS && !isShadow()) {
+				MSPLogger.getInstance().writeLocalMsg((warm ? "[vio] Re-anchored (" : "[vio] Init (")+reason+")",
 						MAV_SEVERITY.MAV_SEVERITY_WARNING);
 				last_msg_tms = System.currentTimeMillis();
 			}
 
 			if(++error_count > MAX_ERRORS) {
 				fps=0; quality=0;
-				model.sys.setSensor(Status.MSP_OPCV_AVAILABILITY, false);
+				setSensor(Status.MSP_OPCV_AVAILABILITY, false);
 			}
 
 			if(detectors.size()>0) {
@@ -590,10 +1010,20 @@ public class MAVVisualPositionEstimatorVIO implements IPositionEstimator {
 
 
 	private void publishPX4Vision() {
+
+		// position is sent by the publisher at a fixed rate
+		if(extrapolator != null) {
+			if(do_odometry) {
+				extrapolator.setVelocity(speed.T);
+				setSensor(Status.MSP_OPCV_AVAILABILITY, true);
+			}
+			return;
+		}
+
 		if(do_odometry && (System.currentTimeMillis()-last_pos_tms) > PUBLISH_RATE_PX4) {
 			last_pos_tms = System.currentTimeMillis();
 
-			msg_vision_position_estimate sms = new msg_vision_position_estimate(1,2);
+			msg_vision_position_estimate sms = px4_position.obtain();
 			//		sms.usec = (long)estTimeDepth_us;
 			sms.usec = (long)publish_tms_us;
 			if(do_xy_position)  {
@@ -619,18 +1049,67 @@ public class MAVVisualPositionEstimatorVIO implements IPositionEstimator {
 
 			sms.covariance[0] = Float.NaN;
 
-			control.sendMAVLinkMessage(sms);
+			px4_position.post();
 
-			model.sys.setSensor(Status.MSP_OPCV_AVAILABILITY, true);
+			setSensor(Status.MSP_OPCV_AVAILABILITY, true);
 
 		}
 	}
 
+	/**
+	 * Publishes the latest position extrapolated to the time of sending. Runs in the
+	 * publisher thread.
+	 */
+	private void publishPX4Extrapolated() {
+		long now_us = System.currentTimeMillis()*1000;
+		if(!do_odometry || !extrapolator.extrapolate(now_us, ext_pose))
+			return;
+
+		ConvertRotation3D_F64.matrixToEuler(ext_pose.R, EulerType.ZXY, ext_att);
+
+		msg_vision_position_estimate sms = px4_position.obtain();
+		sms.usec = now_us;
+		if(do_xy_position)  {
+			sms.x = (float) ext_pose.T.z;
+			sms.y = (float) ext_pose.T.x;
+			sms.z = (float) ext_pose.T.y;
+		} else {
+			sms.x = Float.NaN;
+			sms.y = Float.NaN;
+			sms.z = Float.NaN;
+		}
+
+		if(do_attitude) {
+			sms.roll  = (float)ext_att[0];
+			sms.pitch = (float)ext_att[1];
+			sms.yaw   = (float)ext_att[2];
+		} else {
+			sms.roll  = Float.NaN;
+			sms.pitch = Float.NaN;
+			sms.yaw   = Float.NaN;
+		}
+
+		sms.covariance[0] = Float.NaN;
+		px4_position.post();
+	}
+
+	private void publishPX4Speed() {
+		if(do_odometry && do_xy_speed) {
+			msg_vision_speed_estimate sms = px4_speed.obtain();
+			sms.usec = (long)publish_tms_us;
+			sms.x = (float) speed.T.z;
+			sms.y = (float) speed.T.x;
+			sms.z = (float) speed.T.y;
+			sms.covariance[0] = Float.NaN;
+			px4_speed.post();
+		}
+	}
+
 	private void publisMSPVision() {
 		if((System.currentTimeMillis()-last_msp_tms) > PUBLISH_RATE_MSP) {
 			last_msp_tms = System.currentTimeMillis();
 
-			msg_msp_vision msg = new msg_msp_vision(2,1);
+			msg_msp_vision msg = msp_vision.obtain();
 			msg.x =  (float) pose.T.z;
 			msg.y =  (float) pose.T.x;
 			msg.z =  (float) pose.T.y;
@@ -646,6 +1125,7 @@ public class MAVVisualPositionEstimatorVIO implements IPositionEstimator {
 			//	msg.tms = (long)estTimeDepth_us;
 			msg.tms = publish_tms_us;
 			msg.errors = error_count;
+			msg.flags = 0;
 			if(do_xy_position && do_odometry)
 				msg.flags = msg.flags | 1;
 			if(do_xy_speed && do_odometry)
@@ -653,13 +1133,16 @@ public class MAVVisualPositionEstimatorVIO implements IPositionEstimator {
 			if(do_attitude && do_odometry)
 				msg.flags = msg.flags | 4;
 			msg.tms = (long)estTimeDepth_us;
-			control.sendMAVLinkMessage(msg);
+			msp_vision.post();
 
 		}
 	}
 
 	private void updateInternalModel() {
 
+		if(isShadow())
+			return;
+
 		model.vision.tms = model.sys.getSynchronizedPX4Time_us();
 		model.vision.x  = (float) pose.T.z;
 		model.vision.y  = (float) pose.T.x;
@@ -675,4 +1158,23 @@ public class MAVVisualPositionEstimatorVIO implements IPositionEstimator {
 
 	}
 
+	/**
+	 * Preallocated frame slot passed from the ingest to the odometry stage
+	 */
+	private static class Frame {
+
+		final Planar<GrayU8> rgb;
+		final GrayU16        depth;
+
+		long timeRgb;
+		long timeDepth;
+		long tms_us;
+		long tms_ns;
+
+		Frame(int width, int height) {
+			rgb   = new Planar<GrayU8>(GrayU8.class, width, height, 3);
+			depth = new GrayU16(width, height);
+		}
+	}
+
 }
@@ -36,8 +36,6 @@ package com.comino.slam.estimators.vo;
 
 import java.awt.Color;
 import java.awt.Graphics;
-import java.util.ArrayList;
-import java.util.List;
 
 import org.mavlink.messages.MAV_SEVERITY;
 import org.mavlink.messages.MSP_CMD;
@@ -49,7 +47,6 @@ import org.mavlink.messages.lquac.msg_vision_position_estimate;
 import com.comino.main.MSPConfig;
 import com.comino.mav.control.IMAVMSPController;
 import com.comino.msp.execution.control.listener.IMAVLinkListener;
-import com.comino.msp.model.DataModel;
 import com.comino.msp.model.segment.LogMessage;
 import com.comino.msp.model.segment.Status;
 import com.comino.msp.utils.ExecutorService;
@@ -62,7 +59,9 @@ import com.comino.slam.boofcv.MAVDepthVisualOdometry;
 import com.comino.slam.boofcv.vo.FactoryMAVOdometry;
 import com.comino.slam.boofcv.vo.tracker.FactoryMAVPointTrackerTwoPass;
 import com.comino.slam.detectors.ISLAMDetector;
-import com.comino.slam.estimators.IPositionEstimator;
+import com.comino.slam.detectors.MAVDetectorFrame;
+import com.comino.slam.detectors.MAVDetectorFramePool;
+import com.comino.slam.estimators.MAVAbstractPositionEstimator;
 
 import boofcv.abst.feature.detect.interest.ConfigGeneralDetector;
 import boofcv.abst.feature.tracker.PointTrackerTwoPass;
@@ -82,7 +81,7 @@ import georegression.struct.point.Vector3D_F64;
 import georegression.struct.se.Se3_F64;
 import georegression.struct.so.Quaternion_F64;
 
-public class MAVVisualPositionEstimatorVO implements IPositionEstimator {
+public class MAVVisualPositionEstimatorVO extends MAVAbstractPositionEstimator {
 
 	private static final int   	PUBLISH_RATE_MSP	    = 50 - 5;
 	private static final int  	PUBLISH_RATE_PX4    	= 15 - 5;
@@ -104,9 +103,7 @@ public class MAVVisualPositionEstimatorVO implements IPositionEstimator {
 	private static final int    ADD_THRESHOLD       	= 70;
 	private static final int    REFINE_ITERATIONS   	= 80;
 
-	private StreamRealSenseVisDepth 				realsense			= null;
 	private MAVDepthVisualOdometry<GrayU8,GrayU16> 	visualOdometry		= null;
-	private RealSenseInfo 							info				= null;
 
 	private GrayU8 gray 			= null;
 
@@ -123,6 +120,10 @@ public class MAVVisualPositionEstimatorVO implements IPositionEstimator {
 	private Se3_F64 rot_ned          = new Se3_F64();
 
 	private Se3_F64 current          = new Se3_F64();
+	private Se3_F64 reported         = new Se3_F64();
+	private Se3_F64 detectorState    = new Se3_F64();
+
+	private MAVDetectorFramePool detectorFrames = null;
 
 	private Quaternion_F64 att_q	= new Quaternion_F64();
 	private double[] visAttitude     = new double[3];
@@ -131,11 +132,8 @@ public class MAVVisualPositionEstimatorVO implements IPositionEstimator {
 	private long last_msp_tms        = 0;
 	private long last_msg            = 0;
 
-	private DataModel model;
-
 	private boolean debug 					= false;
 	private boolean heading_init_enabled 	= false;
-	private boolean isRunning    			= false;
 
 
 	private int quality				= 0;
@@ -165,20 +163,23 @@ public class MAVVisualPositionEstimatorVO implements IPositionEstimator {
 
 	private boolean do_covariances  = false;
 
-	private IMAVMSPController 							control		= null;
-	private List<ISLAMDetector> 						detectors 	= null;
-	private List<IVisualStreamHandler<Planar<GrayU8>>>	streams 	= null;
 	private String 										last_reason	= null;
+	private boolean                                     frame_valid = false;
 
 	private final Color	bgColor = new Color(128,128,128,130);
 
 
-	public <T> MAVVisualPositionEstimatorVO(RealSenseInfo info, IMAVMSPController control, MSPConfig config, IVisualStreamHandler<T> stream) {
+	public MAVVisualPositionEstimatorVO(RealSenseInfo info, IMAVMSPController control, MSPConfig config, IVisualStreamHandler<Planar<GrayU8>> stream) {
+		this(info, control, config, stream, null);
+	}
 
-		this.info    = info;
-		this.control = control;
-		this.detectors = new ArrayList<ISLAMDetector>();
-		this.streams   = new ArrayList<IVisualStreamHandler<Planar<GrayU8>>>();
+	/**
+	 * @param source Frame source shared with another estimator or null to open the camera
+	 */
+	public MAVVisualPositionEstimatorVO(RealSenseInfo info, IMAVMSPController control, MSPConfig config,
+			IVisualStreamHandler<Planar<GrayU8>> stream, StreamRealSenseVisDepth source) {
+
+		super(info, control, source);
 
 		System.out.println("Vision position estimator: "+this.getClass().getSimpleName());
 		this.debug = config.getBoolProperty("vision_debug", "true");
@@ -217,8 +218,6 @@ public class MAVVisualPositionEstimatorVO implements IPositionEstimator {
 
 		System.out.println("Resolution: "+info.width+"x"+info.height);
 
-		this.model = control.getCurrentModel();
-
 		gray = new GrayU8(info.width,info.height);
 
 		control.registerListener(msg_msp_command.class, new IMAVLinkListener() {
@@ -253,7 +252,7 @@ public class MAVVisualPositionEstimatorVO implements IPositionEstimator {
 		});
 
 		try {
-			realsense = new StreamRealSenseVisDepth(0,info);
+			openSource();
 		} catch(Exception e) {
 			this.do_odometry = false;
 			this.detector_cycle_ms = 0;
@@ -277,12 +276,13 @@ public class MAVVisualPositionEstimatorVO implements IPositionEstimator {
 				sparseDepth, tracker, GrayU8.class, GrayU16.class);
 
 		visualOdometry.setCalibration(realsense.getIntrinsics(),new DoNothingPixelTransform_F32());
+		detectorFrames = new MAVDetectorFramePool(2, realsense.getIntrinsics(), 1e-3, MAXTRACKS);
 
 		if(stream!=null) {
 			registerStreams(stream);
 
-			if(debug && streams.get(0) !=null) {
-				streams.get(0).registerOverlayListener(ctx -> {
+			if(debug && config.getBoolProperty("stream_overlay", "true")) {
+				registerOverlay(ctx -> {
 					overlayFeatures(ctx);
 				});
 			}
@@ -298,6 +298,18 @@ public class MAVVisualPositionEstimatorVO implements IPositionEstimator {
 
 			@Override
 			public void process(Planar<GrayU8> rgb, GrayU16 depth, long timeRgb, long timeDepth) {
+				long tms_ns = System.nanoTime();
+				long cpu_ns = cpuTime();
+				frame_valid = false;
+				estimate(rgb, depth, timeRgb, timeDepth);
+				if(!do_odometry)
+					return;
+				report(timeDepth * 1000, cpuTime() - cpu_ns, quality, frame_valid ? reported : null);
+				metrics.odometry.observeNanos(System.nanoTime() - tms_ns);
+				metrics.inliers.set(visualOdometry.getInlierCount());
+			}
+
+			private void estimate(Planar<GrayU8> rgb, GrayU16 depth, long timeRgb, long timeDepth) {
 
 				publish_tms_us = System.currentTimeMillis()*1000;
 
@@ -314,6 +326,7 @@ public class MAVVisualPositionEstimatorVO implements IPositionEstimator {
 						fps_tms = System.currentTimeMillis();
 						if(mf>0)
 							fps = fpm/mf;
+						metrics.fps.set(fps);
 						mf=0; fpm=0;
 					}
 					mf++;
@@ -352,7 +365,7 @@ public class MAVVisualPositionEstimatorVO implements IPositionEstimator {
 						if(++initialized_count == INIT_COUNT) {
 							oldTimeDepth_us = estTimeDepth_us;
 							publishPX4Vision();
-							if(debug && (System.currentTimeMillis() - last_msg) > 500 && last_reason != null) {
+							if(debug && (System.currentTimeMillis() - last_msg) > 500 && last_reason != null && !isShadow()) {
 								last_msg = System.currentTimeMillis();
 								control.writeLogMessage(new LogMessage("[vis] odometry re-init: "+last_reason,
 										MAV_SEVERITY.MAV_SEVERITY_NOTICE));
@@ -435,22 +448,33 @@ public class MAVVisualPositionEstimatorVO implements IPositionEstimator {
 //						return;
 //					}
 
+				// integrated position with the rotation of the odometry
+				reported.T.set(pos_ned.T);
+				reported.R.set(rot_ned.R);
+				frame_valid = true;
+
 				publishPX4Vision();
+				if(tracks != null)
+					tracks.publish(publish_tms_us, visualOdometry.getCameraToWorld(), (AccessPointTracks3D)visualOdometry, visualOdometry, quality, false);
 				error_count=0;
 
 				if(detectors.size()>0 && detector_cycle_ms>0 && do_odometry) {
-					if((System.currentTimeMillis() - detector_tms) > detector_cycle_ms) {
+					final MAVDetectorFrame frame;
+					if((System.currentTimeMillis() - detector_tms) > detector_cycle_ms && (frame = detectorFrames.acquire()) != null) {
 						detector_tms = System.currentTimeMillis();
-						model.sys.setSensor(Status.MSP_SLAM_AVAILABILITY, true);
+						setSensor(Status.MSP_SLAM_AVAILABILITY, true);
+						frame.set(timeDepth*1000, depth, rgb.getBand(0), setModelToState(model, detectorState), visualOdometry.getCameraToWorld());
+						frame.setTracks((AccessPointTracks3D)visualOdometry, visualOdometry);
 						ExecutorService.get().execute(() -> {
 							for(ISLAMDetector d : detectors) {
 								try {
-									d.process(visualOdometry, depth, rgb.getBand(0));
+									d.process(frame);
 								} catch(Exception e) {
-									model.sys.setSensor(Status.MSP_SLAM_AVAILABILITY, false);
+									setSensor(Status.MSP_SLAM_AVAILABILITY, false);
 									//System.out.println(timeDepth+"[vis] SLAM exception: "+e.getMessage());
 								}
 							}
+							frame.release();
 						});
 					}
 				}
@@ -503,30 +527,20 @@ public class MAVVisualPositionEstimatorVO implements IPositionEstimator {
 		}
 	}
 
-	public void registerStreams(IVisualStreamHandler stream) {
-		System.out.println("[vis] Vision stream registered: "+stream.getClass().getSimpleName());
-		streams.add(stream);
-	}
-
 	public void start() {
 		isRunning = true;
 		init("StartUp");
-		if(realsense!=null)
-			realsense.start();
+		startSource();
 	}
 
 	public void stop() {
 		if(isRunning) {
-			realsense.stop();
+			stopSource();
 			publisMSPVision();
 		}
 		isRunning=false;
 	}
 
-	public boolean isRunning() {
-		return isRunning;
-	}
-
 	public void reset() {
 		init("msp reset");
 	}
@@ -536,22 +550,6 @@ public class MAVVisualPositionEstimatorVO implements IPositionEstimator {
 	}
 
 
-	private Se3_F64 setModelToState(DataModel m, Se3_F64 state) {
-		if(!Float.isNaN(m.attitude.r) && !Float.isNaN(m.attitude.p))
-			ConvertRotation3D_F64.eulerToMatrix(EulerType.ZXY,
-					m.attitude.r,
-					m.attitude.p,
-					m.attitude.y,
-					state.getRotation());
-
-		if(!Float.isNaN(m.state.l_y) && !Float.isNaN(m.state.l_x)) {
-			state.getTranslation().y = m.state.l_z;
-			state.getTranslation().x = m.state.l_y;
-			state.getTranslation().z = m.state.l_x;
-		}
-		return state;
-	}
-
 	private void init(String reason) {
 
 		if(visualOdometry==null)
@@ -560,11 +558,13 @@ public class MAVVisualPositionEstimatorVO implements IPositionEstimator {
 		this.last_pos_tms = 0;
 		this.last_reason = reason;
 
+		reportInit(reason);
+
 		if(do_odometry) {
 			initialized_count = 0;
 			if(++error_count > MAX_ERRORS) {
 				fps=0; quality=0;
-				model.sys.setSensor(Status.MSP_OPCV_AVAILABILITY, false);
+				setSensor(Status.MSP_OPCV_AVAILABILITY, false);
 			}
 			current = setModelToState(model,current);
 			visualOdometry.reset(current);
@@ -611,9 +611,9 @@ public class MAVVisualPositionEstimatorVO implements IPositionEstimator {
 
 			sms.covariance[0] = Float.NaN;
 
-			control.sendMAVLinkMessage(sms);
+			sendMAVLinkMessage(sms);
 
-			model.sys.setSensor(Status.MSP_OPCV_AVAILABILITY, true);
+			setSensor(Status.MSP_OPCV_AVAILABILITY, true);
 
 		}
 	}
@@ -644,12 +644,15 @@ public class MAVVisualPositionEstimatorVO implements IPositionEstimator {
 			if(do_attitude && do_odometry)
 				msg.flags = msg.flags | 4;
 			msg.tms = (long)estTimeDepth_us;
-			control.sendMAVLinkMessage(msg);
+			sendMAVLinkMessage(msg);
 		}
 	}
 
 	private void updateInternalModel() {
 
+		if(isShadow())
+			return;
+
 		model.vision.tms = model.sys.getSynchronizedPX4Time_us();
 		model.vision.x  = (float) pos_ned.T.z;
 		model.vision.y  = (float) pos_ned.T.x;
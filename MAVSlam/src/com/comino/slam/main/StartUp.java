@@ -36,7 +36,6 @@ package com.comino.slam.main;
 import java.io.IOException;
 import java.lang.management.MemoryMXBean;
 import java.lang.management.OperatingSystemMXBean;
-import java.net.InetSocketAddress;
 
 import org.mavlink.messages.MAV_SEVERITY;
 import org.mavlink.messages.lquac.msg_msp_micro_grid;
@@ -59,12 +58,23 @@ import com.comino.msp.utils.upboard.CPUTemperature;
 import com.comino.msp.utils.upboard.UpLEDControl;
 import com.comino.msp.utils.upboard.WifiQuality;
 import com.comino.realsense.boofcv.RealSenseInfo;
+import com.comino.realsense.boofcv.StreamRealSenseVisDepth;
+import com.comino.server.http.impl.HttpStreamServer;
+import com.comino.server.metrics.JvmCollector;
+import com.comino.server.metrics.MetricsRegistry;
+import com.comino.server.metrics.impl.HttpMetricsHandler;
+import com.comino.server.mjpeg.impl.FileMJPEGHandler;
 import com.comino.server.mjpeg.impl.HttpMJPEGHandler;
 import com.comino.slam.detectors.impl.VfhDirectDepthDetector;
-import com.comino.slam.estimators.IPositionEstimator;
+import com.comino.slam.estimators.MAVAbstractPositionEstimator;
+import com.comino.slam.estimators.MAVEstimatorComparator;
+import com.comino.slam.estimators.MAVTrackStream;
 import com.comino.slam.estimators.vio.MAVVisualPositionEstimatorVIO;
-import com.sun.net.httpserver.HttpServer;
+import com.comino.slam.estimators.vo.MAVVisualPositionEstimatorVO;
 
+import boofcv.struct.image.GrayU16;
+import boofcv.struct.image.GrayU8;
+import boofcv.struct.image.Planar;
 import javafx.application.Platform;
 
 public class StartUp implements Runnable {
@@ -75,12 +85,17 @@ public class StartUp implements Runnable {
 	private OperatingSystemMXBean osBean = null;
 	private MemoryMXBean mxBean = null;
 
-	private HttpMJPEGHandler<?> streamer = null;
+	private HttpMJPEGHandler<Planar<GrayU8>> streamer = null;
+	private HttpMJPEGHandler<GrayU16> depth_streamer = null;
+	private MAVTrackStream track_streamer = null;
+	private FileMJPEGHandler<Planar<GrayU8>> recorder = null;
 
 	private MSPCommander  commander = null;
 	private final long startTime_ms = System.currentTimeMillis();
 
-	IPositionEstimator vision = null;
+	MAVAbstractPositionEstimator vision = null;
+	MAVAbstractPositionEstimator shadow = null;
+	MAVEstimatorComparator   comparator = null;
 	private boolean publish_microslam;
 	private boolean is_simulation;
 
@@ -127,6 +142,12 @@ public class StartUp implements Runnable {
 			public void run() {
 				if(vision!=null)
 					vision.stop();
+				if(shadow!=null)
+					shadow.stop();
+				if(comparator!=null)
+					System.out.println("[vis] "+comparator);
+				if(recorder!=null)
+					recorder.close();
 			}
 		});
 
@@ -153,21 +174,55 @@ public class StartUp implements Runnable {
 					info = new RealSenseInfo(320,240, RealSenseInfo.MODE_RGB);
 
 
-				streamer = new HttpMJPEGHandler(info, control.getCurrentModel());
+				MetricsRegistry.getInstance().register("jvm", new JvmCollector());
+
+				streamer = new HttpMJPEGHandler<Planar<GrayU8>>(info, control.getCurrentModel(), config);
 
 				// Start HTTP Service with MJPEG streamer
 
-				//		vision = new MAVVisualPositionEstimatorVO(info, control, config, streamer);
-				vision = new MAVVisualPositionEstimatorVIO(info, control, config, streamer);
+				String primary_type = config.getProperty("vision_estimator", "vio");
+				String shadow_type  = config.getProperty("vision_shadow", "none");
+
+				vision = createEstimator(primary_type, info, streamer, null);
+
+				// depth stream is fed by the camera, but only converted and encoded while clients are connected
+				depth_streamer = new HttpMJPEGHandler<GrayU16>(info, control.getCurrentModel(), config, "depth");
+				if(vision.getSource() != null)
+					vision.getSource().registerListener((rgb, depth, timeRgb, timeDepth) -> {
+						depth_streamer.addToStream(depth, control.getCurrentModel(), System.currentTimeMillis()*1000);
+					});
+
+				// tracks and pose for overlays rendered by the ground station
+				track_streamer = new MAVTrackStream(info.width, info.height);
+				vision.registerTrackStream(track_streamer);
+
+				// record the overlayed stream of armed flights
+				if(config.getBoolProperty("stream_record", "false")) {
+					recorder = new FileMJPEGHandler<Planar<GrayU8>>(info, control, config);
+					vision.registerStreams(recorder);
+				}
+
+				vision.registerDetector(new VfhDirectDepthDetector(control,config,info,
+						config.getBoolProperty("stream_depth_overlay", "true") ? depth_streamer : null));
 
-				vision.registerDetector(new VfhDirectDepthDetector(control,config,streamer));
+				// shadow estimator runs on the frames of the primary estimator without publishing
+				if(!shadow_type.equalsIgnoreCase("none") && vision.getSource() != null) {
+					shadow = createEstimator(shadow_type, info, null, vision.getSource());
+					comparator = new MAVEstimatorComparator(primary_type, shadow_type+" (shadow)");
+					vision.attach(comparator, MAVAbstractPositionEstimator.ROLE_PRIMARY);
+					shadow.attach(comparator, MAVAbstractPositionEstimator.ROLE_SHADOW);
+					System.out.println("[vis] Shadow estimator: "+shadow_type);
+				}
 
 
-				HttpServer server;
 				try {
-					server = HttpServer.create(new InetSocketAddress(8080),2);
-					server.createContext("/mjpeg", streamer);
-					server.setExecutor(null); // creates a default executor
+					HttpStreamServer server = new HttpStreamServer(8080, config);
+					server.addStream("/mjpeg", streamer);
+					server.addStream("/depth", depth_streamer);
+					server.addStream("/tracks", track_streamer);
+					server.addResource("/snapshot.jpg", streamer.createSnapshot("jpeg"));
+					server.addResource("/snapshot.depth.png", depth_streamer.createSnapshot("png"));
+					server.addResource("/metrics", new HttpMetricsHandler(MetricsRegistry.getInstance()));
 					server.start();
 				} catch (IOException e) {
 					System.err.println(e.getMessage());
@@ -180,12 +235,23 @@ public class StartUp implements Runnable {
 		this.publish_microslam = config.getBoolProperty("slam_publish_microslam", "true");
 		System.out.println("[vis] Publishing microSlam enabled: "+publish_microslam);
 
+		if(shadow!=null && !shadow.isRunning()) {
+			shadow.start();
+		}
+
 		if(vision!=null && !vision.isRunning()) {
 			vision.start();
 		}
 
 	}
 
+	private MAVAbstractPositionEstimator createEstimator(String type, RealSenseInfo info, HttpMJPEGHandler<Planar<GrayU8>> stream,
+			StreamRealSenseVisDepth source) {
+		if(type.equalsIgnoreCase("vo"))
+			return new MAVVisualPositionEstimatorVO(info, control, config, stream, source);
+		return new MAVVisualPositionEstimatorVIO(info, control, config, stream, source);
+	}
+
 	public static void main(String[] args)  {
 
 		if(args.length==0)
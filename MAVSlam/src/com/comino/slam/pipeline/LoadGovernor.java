@@ -0,0 +1,205 @@
+/****************************************************************************
+ *
+ *   Copyright (c) 2017 Eike Mansfeld ecm@gmx.de. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ * 3. Neither the name of the copyright holder nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS
+ * OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED
+ * AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ ****************************************************************************/
+
+
+package com.comino.slam.pipeline;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.mavlink.messages.MAV_SEVERITY;
+
+import com.comino.msp.log.MSPLogger;
+
+/**
+ * Closed loop governor keeping the processing time per frame below a target. The
+ * governor owns an ordered list of degradation steps. If the smoothed frame time exceeds
+ * the target, the next step is applied; if there is enough headroom for a while, the last
+ * applied step is reverted. Transitions are rate limited, so that the frame time settles
+ * before the next decision is taken.
+ *
+ * {@link #update(long)} and all steps are executed in the calling thread, usually the
+ * odometry thread, so steps may change tracking parameters directly.
+ *
+ * @author Eike Mansfeld
+ */
+public class LoadGovernor {
+
+	// smoothing factor of the frame time average
+	private static final double ALPHA          = 0.1;
+	// fraction of the target below which the frame time has headroom
+	private static final double HEADROOM       = 0.6;
+	// consecutive frames required to degrade resp. restore
+	private static final int    DEGRADE_FRAMES = 10;
+	private static final int    RESTORE_FRAMES = 90;
+	// frames to wait after a transition
+	private static final int    HOLD_FRAMES    = 30;
+
+	private String           name;
+	private boolean          muted = false;
+	private final long       target_ns;
+	private final List<Step> steps = new ArrayList<Step>();
+
+	private double avg_ns   = 0;
+	private int    level    = 0;
+	private int    over     = 0;
+	private int    under    = 0;
+	private int    hold     = 0;
+
+	private volatile long transitions = 0;
+	private volatile int  maxLevel    = 0;
+
+	/**
+	 * @param name Prefix of log messages
+	 * @param target_ms Target processing time per frame
+	 */
+	public LoadGovernor(String name, long target_ms) {
+		this.name      = name;
+		this.target_ns = target_ms * 1000000L;
+	}
+
+	public void setName(String name) {
+		this.name = name;
+	}
+
+	/**
+	 * @param muted If true, transitions are logged to the console only and not sent to the
+	 *        vehicle log, e.g. for a shadow estimator
+	 */
+	public void setMuted(boolean muted) {
+		this.muted = muted;
+	}
+
+	/**
+	 * Adds a step. Steps are applied in the order they were added and reverted in reverse order.
+	 *
+	 * @param degrade Applies the step and returns a description of the change
+	 * @param restore Reverts the step and returns a description of the change
+	 */
+	public LoadGovernor addStep(Action degrade, Action restore) {
+		steps.add(new Step(degrade, restore));
+		return this;
+	}
+
+	/**
+	 * Updates the governor with the processing time of a frame
+	 */
+	public void update(long frame_ns) {
+
+		avg_ns = avg_ns == 0 ? frame_ns : avg_ns + ALPHA * (frame_ns - avg_ns);
+
+		if(hold > 0) {
+			hold--;
+			return;
+		}
+
+		if(avg_ns > target_ns) {
+			under = 0;
+			if(++over >= DEGRADE_FRAMES && level < steps.size()) {
+				String change = steps.get(level++).degrade.apply();
+				transition("degraded", change);
+			}
+		} else if(avg_ns < target_ns * HEADROOM) {
+			over = 0;
+			if(++under >= RESTORE_FRAMES && level > 0) {
+				String change = steps.get(--level).restore.apply();
+				transition("restored", change);
+			}
+		} else {
+			over = 0; under = 0;
+		}
+	}
+
+	/**
+	 * Reverts all applied steps
+	 */
+	public void reset() {
+		while(level > 0)
+			steps.get(--level).restore.apply();
+		over = 0; under = 0; hold = 0; avg_ns = 0;
+	}
+
+	/**
+	 * @return Number of steps currently applied
+	 */
+	public int getLevel() {
+		return level;
+	}
+
+	public int getMaxLevel() {
+		return maxLevel;
+	}
+
+	public long getTransitions() {
+		return transitions;
+	}
+
+	/**
+	 * @return Smoothed processing time per frame in ms
+	 */
+	public double getAverageTime() {
+		return avg_ns / 1e6;
+	}
+
+	private void transition(String direction, String change) {
+		over = 0; under = 0; hold = HOLD_FRAMES;
+		transitions++;
+		if(level > maxLevel)
+			maxLevel = level;
+		String msg = String.format("[%s] Load %s (%d/%d, %.0fms): %s",
+				name, direction, level, steps.size(), avg_ns / 1e6, change);
+		if(muted)
+			System.out.println(msg);
+		else
+			MSPLogger.getInstance().writeLocalMsg(msg, MAV_SEVERITY.MAV_SEVERITY_INFO);
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%s governor: level=%d max=%d transitions=%d avg=%.1fms target=%dms",
+				name, level, maxLevel, transitions, avg_ns / 1e6, target_ns / 1000000L);
+	}
+
+	public interface Action {
+		String apply();
+	}
+
+	private static class Step {
+		final Action degrade;
+		final Action restore;
+		Step(Action degrade, Action restore) {
+			this.degrade = degrade;
+			this.restore = restore;
+		}
+	}
+}
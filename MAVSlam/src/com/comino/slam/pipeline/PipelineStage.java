@@ -0,0 +1,129 @@
+/****************************************************************************
+ *
+ *   Copyright (c) 2017 Eike Mansfeld ecm@gmx.de. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ * 3. Neither the name of the copyright holder nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS
+ * OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED
+ * AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ ****************************************************************************/
+
+
+package com.comino.slam.pipeline;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Pipeline stage consuming the items of a {@link SPSCRing} in its own thread.
+ * Optionally the stage pins itself to a CPU when started.
+ *
+ * @author Eike Mansfeld
+ */
+public abstract class PipelineStage<T> extends Thread {
+
+	private static final long POLL_TIMEOUT_NS = TimeUnit.MILLISECONDS.toNanos(100);
+
+	private final SPSCRing<T> input;
+	private final int         cpu;
+
+	private volatile boolean  requestStop = false;
+	private volatile long     processed   = 0;
+	private volatile int      maxDepth    = 0;
+
+	/**
+	 * @param name Thread name of the stage
+	 * @param input Ring the stage consumes from
+	 * @param cpu CPU the stage is pinned to or -1
+	 */
+	public PipelineStage(String name, SPSCRing<T> input, int cpu) {
+		super(name);
+		this.input = input;
+		this.cpu   = cpu;
+		setDaemon(true);
+	}
+
+	@Override
+	public void run() {
+
+		if(cpu >= 0 && !ThreadAffinity.pin(cpu))
+			System.out.println("["+getName()+"] CPU pinning to "+cpu+" failed");
+
+		while(!requestStop) {
+			T item = input.poll(POLL_TIMEOUT_NS);
+			if(item == null)
+				continue;
+			int depth = input.size();
+			if(depth > maxDepth)
+				maxDepth = depth;
+			try {
+				process(item);
+			} catch(Exception e) {
+				e.printStackTrace();
+			} finally {
+				input.release();
+				processed++;
+			}
+		}
+	}
+
+	/**
+	 * Processes one item. The item must not be referenced after returning.
+	 */
+	protected abstract void process(T item);
+
+	public void shutdown() {
+		requestStop = true;
+		interrupt();
+	}
+
+	/**
+	 * @return Number of items waiting for this stage
+	 */
+	public int getQueueDepth() {
+		return input.size();
+	}
+
+	/**
+	 * @return Maximum number of items waiting for this stage since start
+	 */
+	public int getMaxQueueDepth() {
+		return maxDepth;
+	}
+
+	public long getProcessed() {
+		return processed;
+	}
+
+	public long getDropped() {
+		return input.getDropped();
+	}
+
+	@Override
+	public String toString() {
+		return getName()+": queue="+getQueueDepth()+"/"+input.capacity()+" max="+maxDepth+
+				" processed="+processed+" dropped="+getDropped();
+	}
+}
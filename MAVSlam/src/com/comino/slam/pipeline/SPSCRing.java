@@ -0,0 +1,149 @@
+/****************************************************************************
+ *
+ *   Copyright (c) 2017 Eike Mansfeld ecm@gmx.de. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ * 3. Neither the name of the copyright holder nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS
+ * OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED
+ * AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ ****************************************************************************/
+
+
+package com.comino.slam.pipeline;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
+
+/**
+ * Preallocated single-producer/single-consumer ring. The producer claims a free slot,
+ * fills it and publishes it; the consumer polls the oldest published slot and releases
+ * it after processing. Slots are reused, so no objects are allocated while running.
+ * If the ring is full, claim returns null and the item is counted as dropped.
+ *
+ * @author Eike Mansfeld
+ */
+public class SPSCRing<T> {
+
+	private final T[]  slots;
+	private final int  mask;
+
+	// next slot to be written by the producer
+	private final AtomicLong tail = new AtomicLong();
+	// next slot to be read by the consumer
+	private final AtomicLong head = new AtomicLong();
+
+	private volatile Thread consumer = null;
+	private volatile long   dropped  = 0;
+
+	/**
+	 * @param capacity Number of slots, rounded up to the next power of two
+	 * @param factory Creates the slot objects
+	 */
+	@SuppressWarnings("unchecked")
+	public SPSCRing(int capacity, Supplier<T> factory) {
+		int size = 1;
+		while(size < capacity)
+			size <<= 1;
+		this.slots = (T[])new Object[size];
+		this.mask  = size - 1;
+		for(int i = 0; i < size; i++)
+			slots[i] = factory.get();
+	}
+
+	/**
+	 * Producer: returns the next free slot or null if the ring is full
+	 */
+	public T claim() {
+		long t = tail.get();
+		if(t - head.get() >= slots.length) {
+			dropped++;
+			return null;
+		}
+		return slots[(int)(t & mask)];
+	}
+
+	/**
+	 * Producer: makes the claimed slot visible to the consumer
+	 */
+	public void publish() {
+		// full fence: the store of tail must not be reordered with the load of consumer,
+		// otherwise a consumer about to park may miss the wakeup
+		tail.set(tail.get() + 1);
+		Thread c = consumer;
+		if(c != null)
+			LockSupport.unpark(c);
+	}
+
+	/**
+	 * Consumer: returns the oldest published slot. Parks the calling thread until
+	 * a slot is available or the timeout expires.
+	 *
+	 * @return Slot or null if timed out
+	 */
+	public T poll(long timeout_ns) {
+		long h = head.get();
+		if(h == tail.get()) {
+			consumer = Thread.currentThread();
+			long deadline = System.nanoTime() + timeout_ns;
+			while(h == tail.get()) {
+				long remaining = deadline - System.nanoTime();
+				if(remaining <= 0 || Thread.interrupted()) {
+					consumer = null;
+					return null;
+				}
+				LockSupport.parkNanos(this, remaining);
+			}
+			consumer = null;
+		}
+		return slots[(int)(h & mask)];
+	}
+
+	/**
+	 * Consumer: returns the slot obtained by poll to the producer
+	 */
+	public void release() {
+		head.lazySet(head.get() + 1);
+	}
+
+	/**
+	 * @return Number of published slots not yet released by the consumer
+	 */
+	public int size() {
+		return (int)(tail.get() - head.get());
+	}
+
+	public int capacity() {
+		return slots.length;
+	}
+
+	/**
+	 * @return Number of items the producer could not claim a slot for
+	 */
+	public long getDropped() {
+		return dropped;
+	}
+}
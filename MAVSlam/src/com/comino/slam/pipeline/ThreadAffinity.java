@@ -0,0 +1,70 @@
+/****************************************************************************
+ *
+ *   Copyright (c) 2017 Eike Mansfeld ecm@gmx.de. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ * 3. Neither the name of the copyright holder nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS
+ * OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED
+ * AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ ****************************************************************************/
+
+
+package com.comino.slam.pipeline;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * Pins the calling thread to a CPU using taskset. Linux only; the native thread id
+ * is read from /proc/thread-self, so this must be called by the thread to be pinned.
+ *
+ * @author Eike Mansfeld
+ */
+public class ThreadAffinity {
+
+	/**
+	 * @param cpu CPU the calling thread should run on
+	 * @return true if pinning succeeded
+	 */
+	public static boolean pin(int cpu) {
+		if(cpu < 0 || cpu >= Runtime.getRuntime().availableProcessors())
+			return false;
+		try {
+			Path self = Files.readSymbolicLink(Paths.get("/proc/thread-self"));
+			String tid = self.getFileName().toString();
+			Process p = new ProcessBuilder("taskset", "-p", "-c", String.valueOf(cpu), tid)
+					.redirectErrorStream(true).start();
+			while(p.getInputStream().read() != -1);
+			if(p.waitFor() != 0)
+				return false;
+			System.out.println("["+Thread.currentThread().getName()+"] pinned to CPU "+cpu+" (tid "+tid+")");
+			return true;
+		} catch(Exception e) {
+			return false;
+		}
+	}
+}
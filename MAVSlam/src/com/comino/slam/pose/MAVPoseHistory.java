@@ -0,0 +1,295 @@
+/****************************************************************************
+ *
+ *   Copyright (c) 2017 Eike Mansfeld ecm@gmx.de. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ * 3. Neither the name of the copyright holder nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS
+ * OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED
+ * AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ ****************************************************************************/
+
+
+package com.comino.slam.pose;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import georegression.geometry.ConvertRotation3D_F64;
+import georegression.struct.se.Se3_F64;
+import georegression.struct.so.Quaternion_F64;
+
+/**
+ * Preallocated ring buffer of timestamped poses. Poses are added by a single writer
+ * with increasing timestamps; any number of readers can query the pose at an arbitrary
+ * time without locking. Lookup is a binary search over the buffered poses, the result
+ * is interpolated linearly for the translation and by slerp for the rotation.
+ *
+ * Each slot carries a sequence number derived from the index of the pose it holds;
+ * readers retry if a slot was overwritten while being read.
+ *
+ * @author Eike Mansfeld
+ */
+public class MAVPoseHistory {
+
+	private static final int FIELDS  = 8;   // tms, tx, ty, tz, qw, qx, qy, qz
+	private static final int RETRIES = 3;
+
+	// returned by readTime if the slot was overwritten
+	private static final long INVALID = Long.MIN_VALUE;
+
+	private final int  capacity;
+	private final int  mask;
+
+	private final AtomicLongArray data;
+	private final AtomicLongArray seq;
+
+	// number of poses added, first valid index
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong start = new AtomicLong();
+
+	// writer only
+	private final Quaternion_F64 wq = new Quaternion_F64();
+
+	// reader scratch, one per thread
+	private final ThreadLocal<Scratch> scratch = new ThreadLocal<Scratch>() {
+		@Override protected Scratch initialValue() { return new Scratch(); }
+	};
+
+	/**
+	 * @param capacity Number of poses kept, rounded up to the next power of two
+	 */
+	public MAVPoseHistory(int capacity) {
+		int size = 2;
+		while(size < capacity)
+			size <<= 1;
+		this.capacity = size;
+		this.mask     = size - 1;
+		this.data     = new AtomicLongArray(size * FIELDS);
+		this.seq      = new AtomicLongArray(size);
+	}
+
+	/**
+	 * Adds a pose. Must only be called by one thread. Poses older than the latest one are ignored.
+	 *
+	 * @param tms_us Timestamp of the pose in us
+	 */
+	public void add(long tms_us, Se3_F64 pose) {
+		long n = count.get();
+		if(n > start.get() && tms_us <= getTime(n-1))
+			return;
+
+		ConvertRotation3D_F64.matrixToQuaternion(pose.R, wq);
+
+		int s = (int)(n & mask); int o = s * FIELDS;
+		seq.set(s, 2*n+1);
+		data.set(o,   tms_us);
+		data.set(o+1, Double.doubleToRawLongBits(pose.T.x));
+		data.set(o+2, Double.doubleToRawLongBits(pose.T.y));
+		data.set(o+3, Double.doubleToRawLongBits(pose.T.z));
+		data.set(o+4, Double.doubleToRawLongBits(wq.w));
+		data.set(o+5, Double.doubleToRawLongBits(wq.x));
+		data.set(o+6, Double.doubleToRawLongBits(wq.y));
+		data.set(o+7, Double.doubleToRawLongBits(wq.z));
+		seq.set(s, 2*n+2);
+		count.set(n+1);
+	}
+
+	/**
+	 * Removes all poses, e.g. after a reset of the reference frame. Must only be called by the writer.
+	 */
+	public void clear() {
+		start.set(count.get());
+	}
+
+	/**
+	 * Gets the pose at the given time. If the time is newer than the latest pose, the latest pose is returned.
+	 *
+	 * @param tms_us Timestamp in us
+	 * @param pose Interpolated pose
+	 * @return false if no pose is available or the time is older than the oldest pose
+	 */
+	public boolean get(long tms_us, Se3_F64 pose) {
+
+		Scratch sc = scratch.get();
+
+		for(int retry = 0; retry < RETRIES; retry++) {
+
+			long n = count.get();
+			// the slot of the oldest index may already be overwritten by the writer
+			long first = Math.max(start.get(), n - capacity + 1);
+			if(n <= first)
+				return false;
+
+			long last = n - 1;
+			long t_last = readTime(last), t_first = readTime(first);
+			if(t_last == INVALID || t_first == INVALID)
+				continue;
+
+			if(tms_us >= t_last) {
+				if(!read(last, sc.a))
+					continue;
+				toPose(sc.a, pose, sc.q0);
+				return true;
+			}
+			if(tms_us < t_first)
+				return false;
+
+			// largest index with a timestamp <= tms_us
+			long lo = first, hi = last; long t = 0;
+			while(hi - lo > 1) {
+				long mid = (lo + hi) >>> 1;
+				if((t = readTime(mid)) == INVALID)
+					break;
+				if(t <= tms_us)
+					lo = mid;
+				else
+					hi = mid;
+			}
+
+			if(t == INVALID || !read(lo, sc.a) || !read(hi, sc.b))
+				continue;
+
+			interpolate(sc, tms_us, pose);
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * @param pose Latest pose
+	 * @return Timestamp of the latest pose or 0 if no pose is available
+	 */
+	public long getLatest(Se3_F64 pose) {
+		Scratch sc = scratch.get();
+		for(int retry = 0; retry < RETRIES; retry++) {
+			long n = count.get();
+			if(n <= start.get())
+				return 0;
+			if(!read(n-1, sc.a))
+				continue;
+			toPose(sc.a, pose, sc.q0);
+			return sc.a[0];
+		}
+		return 0;
+	}
+
+	/**
+	 * @return Timestamp of the latest pose or 0 if no pose is available
+	 */
+	public long getLatestTime() {
+		long n = count.get();
+		if(n <= start.get())
+			return 0;
+		return getTime(n-1);
+	}
+
+	/**
+	 * @return Number of poses available
+	 */
+	public int size() {
+		long n = count.get();
+		return (int)Math.min(n - start.get(), capacity - 1);
+	}
+
+	private long getTime(long index) {
+		return data.get((int)(index & mask) * FIELDS);
+	}
+
+	private long readTime(long index) {
+		int s = (int)(index & mask);
+		long t = data.get(s * FIELDS);
+		if(seq.get(s) != 2*index+2)
+			return INVALID;
+		return t;
+	}
+
+	private boolean read(long index, long[] out) {
+		int s = (int)(index & mask); int o = s * FIELDS;
+		if(seq.get(s) != 2*index+2)
+			return false;
+		for(int i = 0; i < FIELDS; i++)
+			out[i] = data.get(o+i);
+		return seq.get(s) == 2*index+2;
+	}
+
+	private void interpolate(Scratch sc, long tms_us, Se3_F64 pose) {
+
+		double f = (double)(tms_us - sc.a[0]) / (sc.b[0] - sc.a[0]);
+
+		pose.T.x = lerp(sc.a[1], sc.b[1], f);
+		pose.T.y = lerp(sc.a[2], sc.b[2], f);
+		pose.T.z = lerp(sc.a[3], sc.b[3], f);
+
+		toQuaternion(sc.a, sc.q0);
+		toQuaternion(sc.b, sc.q1);
+
+		double dot = sc.q0.w*sc.q1.w + sc.q0.x*sc.q1.x + sc.q0.y*sc.q1.y + sc.q0.z*sc.q1.z;
+		if(dot < 0) {
+			dot = -dot;
+			sc.q1.set(-sc.q1.w, -sc.q1.x, -sc.q1.y, -sc.q1.z);
+		}
+
+		double w0, w1;
+		if(dot > 0.9995) {
+			w0 = 1 - f; w1 = f;
+		} else {
+			double theta = Math.acos(dot);
+			double sin   = Math.sin(theta);
+			w0 = Math.sin((1 - f) * theta) / sin;
+			w1 = Math.sin(f * theta) / sin;
+		}
+
+		sc.q0.set(w0*sc.q0.w + w1*sc.q1.w, w0*sc.q0.x + w1*sc.q1.x,
+				  w0*sc.q0.y + w1*sc.q1.y, w0*sc.q0.z + w1*sc.q1.z);
+		sc.q0.normalize();
+		ConvertRotation3D_F64.quaternionToMatrix(sc.q0, pose.R);
+	}
+
+	private static void toPose(long[] a, Se3_F64 pose, Quaternion_F64 q) {
+		pose.T.x = Double.longBitsToDouble(a[1]);
+		pose.T.y = Double.longBitsToDouble(a[2]);
+		pose.T.z = Double.longBitsToDouble(a[3]);
+		toQuaternion(a, q);
+		ConvertRotation3D_F64.quaternionToMatrix(q, pose.R);
+	}
+
+	private static void toQuaternion(long[] a, Quaternion_F64 q) {
+		q.set(Double.longBitsToDouble(a[4]), Double.longBitsToDouble(a[5]),
+			  Double.longBitsToDouble(a[6]), Double.longBitsToDouble(a[7]));
+	}
+
+	private static double lerp(long a, long b, double f) {
+		double va = Double.longBitsToDouble(a);
+		return va + (Double.longBitsToDouble(b) - va) * f;
+	}
+
+	private static class Scratch {
+		final long[] a = new long[FIELDS];
+		final long[] b = new long[FIELDS];
+		final Quaternion_F64 q0 = new Quaternion_F64();
+		final Quaternion_F64 q1 = new Quaternion_F64();
+	}
+}
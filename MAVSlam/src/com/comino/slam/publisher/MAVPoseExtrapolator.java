@@ -0,0 +1,93 @@
+/****************************************************************************
+ *
+ *   Copyright (c) 2017 Eike Mansfeld ecm@gmx.de. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ * 3. Neither the name of the copyright holder nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS
+ * OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED
+ * AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ ****************************************************************************/
+
+
+package com.comino.slam.publisher;
+
+import com.comino.slam.pose.MAVPoseHistory;
+
+import georegression.struct.point.Vector3D_F64;
+import georegression.struct.se.Se3_F64;
+
+/**
+ * Extrapolates the latest pose of a pose history with the latest velocity to the
+ * time of sending. Poses in the history are stamped with the capture time of the
+ * frame they are based on.
+ *
+ * @author Eike Mansfeld
+ */
+public class MAVPoseExtrapolator {
+
+	private final MAVPoseHistory history;
+	private final long max_horizon_us;
+
+	private final Vector3D_F64 velocity = new Vector3D_F64();
+
+	/**
+	 * @param history History of the poses to be extrapolated
+	 * @param max_horizon_us Maximum time a pose is extrapolated
+	 */
+	public MAVPoseExtrapolator(MAVPoseHistory history, long max_horizon_us) {
+		this.history        = history;
+		this.max_horizon_us = max_horizon_us;
+	}
+
+	/**
+	 * Updates the latest velocity; called by the vision thread
+	 */
+	public synchronized void setVelocity(Vector3D_F64 vel) {
+		velocity.set(vel);
+	}
+
+	/**
+	 * Extrapolates the latest pose to the given time.
+	 *
+	 * @param time_us Time the pose is extrapolated to
+	 * @return false if no pose is available or it is too old
+	 */
+	public boolean extrapolate(long time_us, Se3_F64 pose) {
+		long capture_us = history.getLatest(pose);
+		if(capture_us == 0)
+			return false;
+		long dt_us = time_us - capture_us;
+		if(dt_us < 0 || dt_us > max_horizon_us)
+			return false;
+		double dt = dt_us / 1e6;
+		synchronized(this) {
+			pose.T.x += velocity.x * dt;
+			pose.T.y += velocity.y * dt;
+			pose.T.z += velocity.z * dt;
+		}
+		return true;
+	}
+}
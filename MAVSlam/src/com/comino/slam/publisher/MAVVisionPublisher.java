@@ -0,0 +1,258 @@
+/****************************************************************************
+ *
+ *   Copyright (c) 2017 Eike Mansfeld ecm@gmx.de. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ * 3. Neither the name of the copyright holder nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS
+ * OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED
+ * AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ ****************************************************************************/
+
+
+package com.comino.slam.publisher;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
+
+import org.mavlink.messages.MAVLinkMessage;
+
+import com.comino.mav.control.IMAVController;
+
+/**
+ * Sends MAVLink messages from a dedicated thread, so that the vision thread never blocks
+ * on the link. Each message type has a mailbox of three preallocated instances
+ * (triple buffer): the producer fills one, one is ready to be sent and one is being sent.
+ * If a message is posted before the previous one was sent, the previous one is
+ * replaced (latest value wins) and counted as coalesced.
+ * Optionally, a periodic task is run by the sender thread at a fixed rate, e.g. to
+ * produce messages independent of the frame rate.
+ *
+ * @author Eike Mansfeld
+ */
+public class MAVVisionPublisher extends Thread {
+
+	private static final long MAX_WAIT_NS     = TimeUnit.MILLISECONDS.toNanos(50);
+	private static final long MAX_LATENCY_NS  = TimeUnit.MILLISECONDS.toNanos(10);
+
+	private final IMAVController control;
+	private final List<Mailbox<?>> mailboxes = new ArrayList<Mailbox<?>>();
+
+	private volatile boolean requestStop = false;
+	private volatile boolean muted       = false;
+
+	private Runnable periodicTask = null;
+	private long     period_ns    = 0;
+	private long     overruns     = 0;
+
+	public MAVVisionPublisher(IMAVController control) {
+		super("VIO-publisher");
+		this.control = control;
+		setDaemon(true);
+	}
+
+	/**
+	 * Creates a mailbox for a message type. Must be called before the publisher is started.
+	 *
+	 * @param factory Creates the preallocated message instances
+	 */
+	public <T extends MAVLinkMessage> Mailbox<T> register(Supplier<T> factory) {
+		Mailbox<T> mailbox = new Mailbox<T>(factory);
+		mailboxes.add(mailbox);
+		return mailbox;
+	}
+
+	/**
+	 * Sets a task which is executed by the sender thread at a fixed rate. Must be called
+	 * before the publisher is started.
+	 *
+	 * @param period_ms Period of the task in ms
+	 */
+	public void setPeriodicTask(long period_ms, Runnable task) {
+		this.period_ns    = TimeUnit.MILLISECONDS.toNanos(period_ms);
+		this.periodicTask = task;
+	}
+
+	/**
+	 * If muted, messages are consumed and counted but not sent to the vehicle
+	 */
+	public void setMuted(boolean muted) {
+		this.muted = muted;
+	}
+
+	@Override
+	public void run() {
+		long next = System.nanoTime() + period_ns;
+		while(!requestStop) {
+
+			if(periodicTask != null && System.nanoTime() - next >= 0) {
+				periodicTask.run();
+				next += period_ns;
+				// skip missed periods instead of bursting
+				if(System.nanoTime() - next >= 0) {
+					next = System.nanoTime() + period_ns;
+					overruns++;
+				}
+			}
+
+			boolean sent = false;
+			for(int i = 0; i < mailboxes.size(); i++)
+				sent |= mailboxes.get(i).send();
+
+			if(!sent) {
+				long wait = MAX_WAIT_NS;
+				if(periodicTask != null)
+					wait = Math.min(wait, next - System.nanoTime());
+				if(wait > 0)
+					LockSupport.parkNanos(this, wait);
+			}
+		}
+	}
+
+	/**
+	 * @return Number of periods the periodic task missed
+	 */
+	public long getOverruns() {
+		return overruns;
+	}
+
+	public void shutdown() {
+		requestStop = true;
+		LockSupport.unpark(this);
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder b = new StringBuilder();
+		if(periodicTask != null)
+			b.append("overruns=").append(overruns).append(' ');
+		for(Mailbox<?> m : mailboxes)
+			b.append(m.toString()).append(' ');
+		return b.toString();
+	}
+
+	private static class Slot<T> {
+		final T msg;
+		volatile boolean fresh;
+		long posted_ns;
+		Slot(T msg) { this.msg = msg; }
+	}
+
+	/**
+	 * Single slot mailbox of one message type. obtain() and post() must only be called by
+	 * one producer thread.
+	 */
+	public class Mailbox<T extends MAVLinkMessage> {
+
+		private Slot<T> back;
+		private Slot<T> front;
+		private final AtomicReference<Slot<T>> middle;
+
+		private final String name;
+
+		private volatile long posted    = 0;
+		private volatile long sent      = 0;
+		private volatile long coalesced = 0;
+		private volatile long late      = 0;
+
+		private Mailbox(Supplier<T> factory) {
+			this.back   = new Slot<T>(factory.get());
+			this.front  = new Slot<T>(factory.get());
+			this.middle = new AtomicReference<Slot<T>>(new Slot<T>(factory.get()));
+			this.name   = back.msg.getClass().getSimpleName();
+		}
+
+		/**
+		 * @return Message instance to be filled by the producer before calling post
+		 */
+		public T obtain() {
+			return back.msg;
+		}
+
+		/**
+		 * Hands the message obtained before over to the sender thread. Never blocks.
+		 */
+		public void post() {
+			back.posted_ns = System.nanoTime();
+			back.fresh = true;
+			Slot<T> prev = middle.getAndSet(back);
+			if(prev.fresh)
+				coalesced++;
+			prev.fresh = false;
+			back = prev;
+			posted++;
+			LockSupport.unpark(MAVVisionPublisher.this);
+		}
+
+		private boolean send() {
+			if(!middle.get().fresh)
+				return false;
+
+			front = middle.getAndSet(front);
+			if(!front.fresh)
+				return false;
+
+			if(System.nanoTime() - front.posted_ns > MAX_LATENCY_NS)
+				late++;
+
+			if(!muted)
+				control.sendMAVLinkMessage(front.msg);
+			front.fresh = false;
+			sent++;
+			return true;
+		}
+
+		public long getPosted() {
+			return posted;
+		}
+
+		public long getSent() {
+			return sent;
+		}
+
+		/**
+		 * @return Number of messages replaced by a newer one before being sent
+		 */
+		public long getCoalesced() {
+			return coalesced;
+		}
+
+		/**
+		 * @return Number of messages sent later than 10ms after posting
+		 */
+		public long getLate() {
+			return late;
+		}
+
+		@Override
+		public String toString() {
+			return name+": sent="+sent+" coalesced="+coalesced+" late="+late;
+		}
+	}
+}